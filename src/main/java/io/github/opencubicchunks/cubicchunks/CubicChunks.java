@@ -4,6 +4,7 @@ import io.github.opencubicchunks.cubicchunks.chunk.IChunkManager;
 import io.github.opencubicchunks.cubicchunks.meta.EarlyConfig;
 import io.github.opencubicchunks.cubicchunks.misc.TestWorldType;
 import io.github.opencubicchunks.cubicchunks.network.PacketDispatcher;
+import io.github.opencubicchunks.cubicchunks.server.CubicChunksCommand;
 import net.minecraft.world.WorldType;
 import net.minecraft.world.biome.Biome;
 import net.minecraft.world.gen.GenerationStage;
@@ -28,9 +29,6 @@ import java.lang.reflect.InvocationTargetException;
 @Mod(CubicChunks.MODID)
 public class CubicChunks {
 
-    // TODO: debug and fix optimized cubeload
-    public static final boolean OPTIMIZED_CUBELOAD = false;
-
     public static long SECTIONPOS_SENTINEL = -1;
 
     // Directly reference a log4j logger.
@@ -40,7 +38,7 @@ public class CubicChunks {
     public static final Logger LOGGER = LogManager.getLogger();
     public static WorldType CUBIC = new TestWorldType();
 
-    public static final String PROTOCOL_VERSION = "0";
+    public static final String PROTOCOL_VERSION = "1";
 
     public CubicChunks() {
         if (!(IChunkManager.class.isAssignableFrom(ChunkManager.class))) {
@@ -83,6 +81,7 @@ public class CubicChunks {
     public void onServerStarting(FMLServerStartingEvent event) {
         // do something when the server starts
         LOGGER.info("HELLO from server starting");
+        CubicChunksCommand.register(event.getCommandDispatcher());
     }
 
     // You can use EventBusSubscriber to automatically subscribe events on the contained class (this is subscribing to the MOD
@@ -11,7 +11,9 @@ public class ClientChunkProviderCubeArray {
 
     public final AtomicReferenceArray<BigCube> cubes;
     public final int viewDistance;
+    public final int verticalViewDistance;
     private final int sideLength;
+    private final int verticalSideLength;
     private final int sideArea;
     private final Consumer<BigCube> onUnload;
     public volatile int centerX;
@@ -19,17 +21,19 @@ public class ClientChunkProviderCubeArray {
     public volatile int centerZ;
     public int loaded;
 
-    public ClientChunkProviderCubeArray(int viewDistanceIn, Consumer<BigCube> onUnload) {
+    public ClientChunkProviderCubeArray(int viewDistanceIn, int verticalViewDistanceIn, Consumer<BigCube> onUnload) {
         this.viewDistance = viewDistanceIn;
+        this.verticalViewDistance = verticalViewDistanceIn;
         this.sideLength = viewDistanceIn * 2 + 1;
-        this.sideArea = this.sideLength * this.sideLength;
+        this.verticalSideLength = verticalViewDistanceIn * 2 + 1;
+        this.sideArea = this.sideLength * this.verticalSideLength;
         this.onUnload = onUnload;
-        this.cubes = new AtomicReferenceArray<>(this.sideLength * this.sideLength * this.sideLength);
+        this.cubes = new AtomicReferenceArray<>(this.sideArea * this.sideLength);
     }
 
     public int getIndex(int x, int y, int z) {
         return Math.floorMod(z, this.sideLength) * this.sideArea
-                + Math.floorMod(y, this.sideLength) * this.sideLength
+                + Math.floorMod(y, this.verticalSideLength) * this.sideLength
                 + Math.floorMod(x, this.sideLength);
     }
 
@@ -57,7 +61,7 @@ public class ClientChunkProviderCubeArray {
 
     public boolean inView(int x, int y, int z) {
         return Math.abs(x - this.centerX) <= this.viewDistance
-                && Math.abs(y - this.centerY) <= this.viewDistance
+                && Math.abs(y - this.centerY) <= this.verticalViewDistance
                 && Math.abs(z - this.centerZ) <= this.viewDistance;
     }
 
@@ -1,38 +1,113 @@
 package io.github.opencubicchunks.cubicchunks.chunk;
 
 import com.mojang.datafixers.util.Either;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
 import net.minecraft.world.server.ChunkHolder;
 
-import java.util.Arrays;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.Optional;
+import java.util.RandomAccess;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
-public class CubeCollectorFuture extends CompletableFuture<List<Either<IBigCube, ChunkHolder.IChunkLoadingError>>> {
+import javax.annotation.Nullable;
 
-    private final int size;
+/**
+ * Collects the cubes in a cube shaped neighbourhood as the futures for them complete.
+ *
+ * <p>Cubes are indexed by {@link #index}, ordered by x, then y, then z offset from the center. The future completes with a list view of
+ * the collected cubes once all of them are added, or with the first error as soon as one is added.</p>
+ */
+public class CubeCollectorFuture extends CompletableFuture<Either<List<IBigCube>, ChunkHolder.IChunkLoadingError>> {
 
-    private AtomicInteger added = new AtomicInteger();
+    private final int centerX;
+    private final int centerY;
+    private final int centerZ;
+    private final int radius;
+    private final int diameter;
+    private final IBigCube[] cubes;
+    private final AtomicInteger remaining;
 
-    private final Either<IBigCube, ChunkHolder.IChunkLoadingError>[] results;
+    public CubeCollectorFuture(CubePos center, int radius) {
+        this.centerX = center.getX();
+        this.centerY = center.getY();
+        this.centerZ = center.getZ();
+        this.radius = radius;
+        this.diameter = radius * 2 + 1;
+        this.cubes = new IBigCube[this.diameter * this.diameter * this.diameter];
+        this.remaining = new AtomicInteger(this.cubes.length);
+    }
 
+    public int index(int dx, int dy, int dz) {
+        return ((dx + this.radius) * this.diameter + dy + this.radius) * this.diameter + dz + this.radius;
+    }
 
-    public CubeCollectorFuture(int size) {
-        this.size = size;
-        results = new Either[size];
+    public void add(int index, @Nullable Either<IBigCube, ChunkHolder.IChunkLoadingError> either, @Nullable Throwable error) {
+        if (this.isDone()) {
+            return;
+        }
+        if (error != null) {
+            this.completeExceptionally(error);
+            return;
+        }
+        Optional<IBigCube> cube = either.left();
+        if (!cube.isPresent()) {
+            this.complete(Either.right(new NeighbourError(index, either.right().get())));
+            return;
+        }
+        this.cubes[index] = cube.get();
+        // the decrement publishes the array element to the thread that adds the last cube
+        if (this.remaining.decrementAndGet() == 0) {
+            this.complete(Either.left(new CubeList(this.cubes)));
+        }
     }
 
+    /**
+     * Completes the future with an error for a cube that isn't loaded.
+     */
+    public CubeCollectorFuture addUnloaded(int index) {
+        this.complete(Either.right(new NeighbourError(index, null)));
+        return this;
+    }
 
-    public void add(int idx, Either<IBigCube, ChunkHolder.IChunkLoadingError> either, Throwable error) {
-        if (error != null) {
-            completeExceptionally(error);
-        } else {
-            results[idx] = either;
-            added.getAndIncrement();
+    private CubePos getPos(int index) {
+        return CubePos.of(
+                this.centerX + index / (this.diameter * this.diameter) - this.radius,
+                this.centerY + (index / this.diameter) % this.diameter - this.radius,
+                this.centerZ + index % this.diameter - this.radius);
+    }
+
+    private final class NeighbourError implements ChunkHolder.IChunkLoadingError {
+        private final int index;
+        @Nullable private final ChunkHolder.IChunkLoadingError cause;
+
+        private NeighbourError(int index, @Nullable ChunkHolder.IChunkLoadingError cause) {
+            this.index = index;
+            this.cause = cause;
+        }
+
+        @Override
+        public String toString() {
+            return "Unloaded " + getPos(this.index) + (this.cause == null ? "" : " " + this.cause);
+        }
+    }
+
+    private static final class CubeList extends AbstractList<IBigCube> implements RandomAccess {
+        private final IBigCube[] cubes;
+
+        private CubeList(IBigCube[] cubes) {
+            this.cubes = cubes;
+        }
+
+        @Override
+        public IBigCube get(int index) {
+            return this.cubes[index];
         }
 
-        if (added.get() >= size) {
-            this.complete(Arrays.asList(results));
+        @Override
+        public int size() {
+            return this.cubes.length;
         }
     }
 }
@@ -0,0 +1,254 @@
+package io.github.opencubicchunks.cubicchunks.chunk;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs cube generation tasks on a fixed size thread pool, never running two tasks whose neighbourhoods overlap at the same time.
+ *
+ * <p>A task for a cube with a task range of {@code r} may write to all cubes up to {@code r} cubes away, so it locks that neighbourhood
+ * while it runs. Tasks that can't lock their neighbourhood wait, and a waiting task is started before any later task it overlaps with, so
+ * tasks for the same cubes run in the order they were submitted.</p>
+ *
+ * <p>Only a few tasks are queued here. Once {@link #MAX_WAITING_PER_THREAD} tasks per thread are waiting, a submitted task isn't
+ * accepted until another one starts, so the cube task priority sorter keeps choosing which cube is generated next.</p>
+ *
+ * <p>Schedulers made by {@link #createShared} run their tasks on one thread pool, so every dimension can use all of the generation threads
+ * without each adding threads of its own.</p>
+ */
+public class CubeGenerationScheduler implements AutoCloseable {
+
+    private static final int MAX_WAITING_PER_THREAD = 4;
+    // waiting tasks looked at when looking for one that can start
+    private static final int MAX_SCAN_PER_THREAD = 64;
+
+    private static final Object SHARED_LOCK = new Object();
+    @Nullable private static ThreadPoolExecutor sharedExecutor;
+    private static int sharedUsers;
+
+    private final ThreadPoolExecutor executor;
+    private final boolean shared;
+    private final int threads;
+
+    private final Object lock = new Object();
+    private final List<Task> running = new ArrayList<>();
+    private final ArrayDeque<Task> waiting = new ArrayDeque<>();
+    // futures of submitted tasks that aren't accepted yet
+    private final ArrayDeque<CompletableFuture<Void>> unaccepted = new ArrayDeque<>();
+    private boolean closed;
+
+    public CubeGenerationScheduler(String name, int threads) {
+        this(createExecutor(name, threads), false);
+    }
+
+    private CubeGenerationScheduler(ThreadPoolExecutor executor, boolean shared) {
+        this.executor = executor;
+        this.shared = shared;
+        this.threads = executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Creates a scheduler that runs its tasks on the thread pool shared by all schedulers created this way. The pool is created with the
+     * given number of threads if it doesn't exist yet, and shut down when the last of its schedulers is closed.
+     */
+    public static CubeGenerationScheduler createShared(String name, int threads) {
+        synchronized (SHARED_LOCK) {
+            if (sharedExecutor == null) {
+                sharedExecutor = createExecutor(name, threads);
+            }
+            sharedUsers++;
+            return new CubeGenerationScheduler(sharedExecutor, true);
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, name + " #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> CubicChunks.LOGGER.error("Uncaught exception in {}", t.getName(), e));
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the task once no running task overlaps the cubes up to {@code range} cubes around the position.
+     *
+     * @return a future that completes when the scheduler accepts more tasks
+     */
+    public CompletableFuture<Void> submit(long cubePos, int range, Runnable task) {
+        CompletableFuture<Void> accepted;
+        List<Task> started;
+        synchronized (this.lock) {
+            if (this.closed) {
+                return CompletableFuture.completedFuture(null);
+            }
+            this.waiting.addLast(new Task(cubePos, range, task));
+            started = startTasks();
+            if (this.waiting.size() <= this.threads * MAX_WAITING_PER_THREAD) {
+                accepted = CompletableFuture.completedFuture(null);
+            } else {
+                accepted = new CompletableFuture<>();
+                this.unaccepted.addLast(accepted);
+            }
+        }
+        execute(started);
+        return accepted;
+    }
+
+    /**
+     * @return number of tasks waiting for a free worker thread or for overlapping tasks to finish
+     */
+    public int getWaitingCount() {
+        synchronized (this.lock) {
+            return this.waiting.size();
+        }
+    }
+
+    private void finish(Task task) {
+        List<Task> started;
+        List<CompletableFuture<Void>> accepted = new ArrayList<>();
+        synchronized (this.lock) {
+            this.running.remove(task);
+            this.lock.notifyAll();
+            started = startTasks();
+            if (this.waiting.size() <= this.threads * MAX_WAITING_PER_THREAD) {
+                accepted.addAll(this.unaccepted);
+                this.unaccepted.clear();
+            }
+        }
+        execute(started);
+        accepted.forEach(future -> future.complete(null));
+    }
+
+    /**
+     * Moves the waiting tasks that can lock their neighbourhood to the running tasks.
+     */
+    private List<Task> startTasks() {
+        List<Task> started = new ArrayList<>();
+        List<Task> skipped = new ArrayList<>();
+        int scanned = 0;
+        for (Iterator<Task> it = this.waiting.iterator(); it.hasNext() && this.running.size() < this.threads
+                && scanned < this.threads * MAX_SCAN_PER_THREAD; scanned++) {
+            Task task = it.next();
+            if (overlapsAny(task, this.running) || overlapsAny(task, skipped)) {
+                skipped.add(task);
+                continue;
+            }
+            it.remove();
+            this.running.add(task);
+            started.add(task);
+        }
+        return started;
+    }
+
+    private void execute(List<Task> tasks) {
+        for (Task task : tasks) {
+            this.executor.execute(() -> {
+                try {
+                    task.runnable.run();
+                } catch (Throwable t) {
+                    CubicChunks.LOGGER.error("Exception generating cube {}", CubePos.from(task.cubePos), t);
+                } finally {
+                    finish(task);
+                }
+            });
+        }
+    }
+
+    private static boolean overlapsAny(Task task, List<Task> tasks) {
+        for (Task other : tasks) {
+            if (task.overlaps(other)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the waiting tasks and waits for the running ones to finish.
+     */
+    @Override
+    public void close() {
+        List<CompletableFuture<Void>> accepted;
+        synchronized (this.lock) {
+            this.closed = true;
+            this.waiting.clear();
+            accepted = new ArrayList<>(this.unaccepted);
+            this.unaccepted.clear();
+        }
+        accepted.forEach(future -> future.complete(null));
+        try {
+            if (this.shared) {
+                // the pool keeps running for the other schedulers
+                if (!awaitRunning(TimeUnit.SECONDS.toNanos(30))) {
+                    CubicChunks.LOGGER.warn("Cube generation tasks didn't finish in time");
+                }
+                synchronized (SHARED_LOCK) {
+                    if (--sharedUsers == 0) {
+                        sharedExecutor.shutdown();
+                        sharedExecutor = null;
+                    }
+                }
+            } else {
+                this.executor.shutdown();
+                if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    CubicChunks.LOGGER.warn("Cube generation tasks didn't finish in time");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean awaitRunning(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (this.lock) {
+            while (!this.running.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this.lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    private static final class Task {
+        private final long cubePos;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final int range;
+        private final Runnable runnable;
+
+        private Task(long cubePos, int range, Runnable runnable) {
+            this.cubePos = cubePos;
+            this.x = CubePos.extractX(cubePos);
+            this.y = CubePos.extractY(cubePos);
+            this.z = CubePos.extractZ(cubePos);
+            this.range = range;
+            this.runnable = runnable;
+        }
+
+        private boolean overlaps(Task other) {
+            int distance = this.range + other.range;
+            return Math.abs(this.x - other.x) <= distance
+                    && Math.abs(this.y - other.y) <= distance
+                    && Math.abs(this.z - other.z) <= distance;
+        }
+    }
+}
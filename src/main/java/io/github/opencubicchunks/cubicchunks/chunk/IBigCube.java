@@ -10,6 +10,7 @@ import net.minecraft.world.IBlockReader;
 import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.ChunkStatus;
 
+import java.util.BitSet;
 import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
@@ -38,6 +39,10 @@ public interface IBigCube extends IBlockReader {
 
     void setDirty(boolean modified);
 
+    // sections changed since the last save, indexed like getCubeSections(). Cleared by setDirty(false)
+    BitSet getDirtySections();
+    void setSectionDirty(int sectionIndex);
+
     boolean isEmptyCube();
 
     //can't be set/hasLight due to obfuscation issues with IChunk
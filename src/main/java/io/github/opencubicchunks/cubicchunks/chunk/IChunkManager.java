@@ -3,10 +3,15 @@ package io.github.opencubicchunks.cubicchunks.chunk;
 import com.mojang.datafixers.util.Either;
 import io.github.opencubicchunks.cubicchunks.chunk.cube.BigCube;
 import io.github.opencubicchunks.cubicchunks.chunk.cube.CubeStatus;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLoadShape;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.meta.EarlyConfig;
 import io.github.opencubicchunks.cubicchunks.utils.Coords;
+import io.github.opencubicchunks.cubicchunks.world.storage.CubeIOExecutor;
+import io.github.opencubicchunks.cubicchunks.world.storage.RegionCubeIO;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import net.minecraft.entity.player.ServerPlayerEntity;
+import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.SectionPos;
 import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.server.ChunkHolder;
@@ -21,10 +26,20 @@ import javax.annotation.Nullable;
 public interface IChunkManager {
     int MAX_CUBE_LOADED_LEVEL = 33 + CubeStatus.maxDistance();
 
+    // in cubes, 0 uses the horizontal view distance
+    int VERTICAL_VIEW_DISTANCE = EarlyConfig.getVerticalViewDistance();
+    CubeLoadShape.Type CUBE_LOAD_SHAPE = EarlyConfig.getCubeLoadShape();
+
     int getCubeLoadCounter();
 
     int getLoadedCubeCount();
 
+    CubeIOExecutor getCubeIOExecutor();
+
+    CubeGenerationScheduler getCubeGenerationScheduler();
+
+    RegionCubeIO getRegionCubeIO();
+
     @Nullable
     ChunkHolder setCubeLevel(long cubePosIn, int newLevel, @Nullable ChunkHolder holder, int oldLevel);
 
@@ -71,6 +86,36 @@ public interface IChunkManager {
         return getCubeDistance(pos, x, y, z);
     }
 
+    /**
+     * @param viewDistance the view distance in sections, as stored by the ChunkManager
+     * @return the vertical view distance in cubes
+     */
+    static int getVerticalViewDistance(int viewDistance) {
+        if (VERTICAL_VIEW_DISTANCE <= 0 || CUBE_LOAD_SHAPE == CubeLoadShape.Type.SPHERE) {
+            return Coords.sectionToCubeRenderDistance(viewDistance);
+        }
+        // the same limits as the horizontal view distance
+        return MathHelper.clamp(VERTICAL_VIEW_DISTANCE, 3, Coords.sectionToCubeRenderDistance(33));
+    }
+
+    /**
+     * @param viewDistance the view distance in sections, as stored by the ChunkManager
+     */
+    static CubeLoadShape createViewShape(int viewDistance) {
+        return CubeLoadShape.create(CUBE_LOAD_SHAPE, Coords.sectionToCubeRenderDistance(viewDistance), getVerticalViewDistance(viewDistance));
+    }
+
+    /**
+     * @return whether the cube is within the shape around the managed position of the player, or on its boundary if boundaryOnly is set
+     */
+    static boolean isCubeInView(CubeLoadShape shape, CubePos pos, ServerPlayerEntity player, boolean boundaryOnly) {
+        SectionPos sectionpos = player.getManagedSectionPos();
+        int dX = pos.getX() - Coords.sectionToCube(sectionpos.getSectionX());
+        int dY = pos.getY() - Coords.sectionToCube(sectionpos.getSectionY());
+        int dZ = pos.getZ() - Coords.sectionToCube(sectionpos.getSectionZ());
+        return boundaryOnly ? shape.isOnBoundary(dX, dY, dZ) : shape.contains(dX, dY, dZ);
+    }
+
     static int getCubeDistance(CubePos cubePosIn, int x, int y, int z) {
         int dX = cubePosIn.getX() - x;
         int dY = cubePosIn.getY() - y;
@@ -80,5 +125,7 @@ public interface IChunkManager {
 
     IntSupplier getCompletedLevel(long cubePosIn);
 
+    CubeLoadShape getViewShape();
+
     void releaseLightTicket(CubePos cubePos);
 }
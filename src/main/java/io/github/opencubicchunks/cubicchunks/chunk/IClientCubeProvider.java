@@ -13,6 +13,8 @@ public interface IClientCubeProvider extends ICubeProvider {
 
     void setCenter(int x, int y, int z);
 
+    void setVerticalViewDistance(int verticalViewDistance);
+
     BigCube loadCube(int cubeX, int cubeY, int cubeZ, @Nullable CubeBiomeContainer biomes, PacketBuffer readBuffer, CompoundNBT nbtTagIn,
                      boolean cubeExists);
 }
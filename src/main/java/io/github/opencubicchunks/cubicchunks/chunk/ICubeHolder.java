@@ -35,6 +35,14 @@ public interface ICubeHolder {
     @Nullable
     BigCube getCubeIfComplete();
 
+    /**
+     * Reads the status future without waiting on it, so it can be called from any thread.
+     *
+     * @return the cube if it reached the status and the holder level allows it, null otherwise
+     */
+    @Nullable
+    IBigCube getCubeIfReached(ChunkStatus status);
+
     CubePos getCubePos();
 
     // func_219276_a
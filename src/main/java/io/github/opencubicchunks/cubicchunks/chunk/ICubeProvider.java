@@ -1,6 +1,10 @@
 package io.github.opencubicchunks.cubicchunks.chunk;
 
+import com.mojang.datafixers.util.Either;
 import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.server.ChunkHolder;
+
+import java.util.concurrent.CompletableFuture;
 
 import javax.annotation.Nullable;
 
@@ -9,4 +13,23 @@ public interface ICubeProvider {
     @Nullable
     IBigCube getCube(int cubeX, int cubeY, int cubeZ, ChunkStatus requiredStatus, boolean load);
 
+    /**
+     * Never loads the cube and never waits for another thread, so it can be called from any thread.
+     *
+     * @return the cube if it already reached the status, null otherwise
+     */
+    @Nullable
+    default IBigCube getCubeIfLoaded(int cubeX, int cubeY, int cubeZ, ChunkStatus requiredStatus) {
+        return getCube(cubeX, cubeY, cubeZ, requiredStatus, false);
+    }
+
+    /**
+     * Loads the cube up to the status without blocking the calling thread. The future completes with an error if the cube gets unloaded
+     * before reaching the status.
+     */
+    default CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> getCubeAsync(int cubeX, int cubeY, int cubeZ,
+            ChunkStatus requiredStatus) {
+        IBigCube cube = getCubeIfLoaded(cubeX, cubeY, cubeZ, requiredStatus);
+        return CompletableFuture.completedFuture(cube == null ? ICubeHolder.MISSING_CUBE : Either.left(cube));
+    }
 }
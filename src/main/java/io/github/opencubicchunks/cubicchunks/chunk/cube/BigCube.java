@@ -66,7 +66,9 @@ public class BigCube implements IChunk, IBigCube {
 
     private CubeBiomeContainer cubeBiomeContainer;
 
-    private boolean dirty = true; // todo: change back to false?
+    // new cubes have never been saved, a cube loaded from storage is marked clean by the serializer
+    private boolean dirty = true;
+    private final BitSet dirtySections = new BitSet(CUBE_SIZE);
     private boolean loaded = false;
 
     private volatile boolean lightCorrect;
@@ -118,6 +120,7 @@ public class BigCube implements IChunk, IBigCube {
                 }
             }
         }
+        this.dirtySections.set(0, CUBE_SIZE);
 
 //        this.gatherCapabilities();
     }
@@ -154,6 +157,8 @@ public class BigCube implements IChunk, IBigCube {
 
         this.setLight(cubePrimerIn.hasLight());
         this.dirty = true;
+        this.dirtySections.clear();
+        this.dirtySections.or(cubePrimerIn.getDirtySections());
     }
 
     @Override
@@ -307,6 +312,9 @@ public class BigCube implements IChunk, IBigCube {
     @Override
     public void setCubeStatus(ChunkStatus status)
     {
+        if (this.cubeStatus != status) {
+            this.dirty = true;
+        }
         this.cubeStatus = status;
     }
 
@@ -380,7 +388,7 @@ public class BigCube implements IChunk, IBigCube {
             }
         }
 
-        this.dirty = true;
+        this.setSectionDirty(sectionIndex);
         return blockstate;
     }
 
@@ -406,6 +414,7 @@ public class BigCube implements IChunk, IBigCube {
             if (tileentity != null && tileentity != tileEntityIn) {
                 tileentity.remove();
             }
+            this.setSectionDirty(Coords.blockToIndex(pos.getX(), pos.getY(), pos.getZ()));
         }
     }
 
@@ -529,12 +538,24 @@ public class BigCube implements IChunk, IBigCube {
 
     @Override public void setDirty(boolean modified) {
         this.dirty = modified;
+        if (!modified) {
+            this.dirtySections.clear();
+        }
     }
 
     @Override public boolean isDirty() {
         return dirty;
     }
 
+    @Override public BitSet getDirtySections() {
+        return this.dirtySections;
+    }
+
+    @Override public void setSectionDirty(int sectionIndex) {
+        this.dirtySections.set(sectionIndex);
+        this.dirty = true;
+    }
+
     @Override
     public boolean hasCubeLight() {
         return this.lightCorrect;
@@ -542,8 +563,10 @@ public class BigCube implements IChunk, IBigCube {
 
     @Override
     public void setCubeLight(boolean lightCorrectIn) {
-        this.lightCorrect = lightCorrectIn;
-        this.setModified(true);
+        if (this.lightCorrect != lightCorrectIn) {
+            this.lightCorrect = lightCorrectIn;
+            this.setModified(true);
+        }
     }
 
     @Deprecated
@@ -556,6 +579,7 @@ public class BigCube implements IChunk, IBigCube {
             TileEntity tileentity = this.tileEntities.remove(pos);
             if (tileentity != null) {
                 tileentity.remove();
+                this.setSectionDirty(Coords.blockToIndex(pos.getX(), pos.getY(), pos.getZ()));
             }
         }
     }
@@ -31,6 +31,7 @@ import net.minecraft.world.gen.Heightmap;
 import net.minecraft.world.gen.feature.structure.StructureStart;
 import net.minecraft.world.lighting.WorldLightManager;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +51,7 @@ public class CubePrimer implements IBigCube, IChunk {
 
     private final Map<BlockPos, TileEntity> tileEntities = Maps.newHashMap();
     private volatile boolean modified = true;
+    private final BitSet dirtySections = new BitSet(IBigCube.CUBE_SIZE);
 
     private final List<BlockPos> lightPositions = Lists.newArrayList();
     private volatile boolean hasLight;
@@ -73,6 +75,7 @@ public class CubePrimer implements IBigCube, IChunk {
                 throw new IllegalStateException("Number of Sections must equal BigCube.CUBESIZE");
             }
         }
+        this.dirtySections.set(0, IBigCube.CUBE_SIZE);
     }
 
     @Override
@@ -131,6 +134,9 @@ public class CubePrimer implements IBigCube, IChunk {
 
             ChunkSection chunksection = this.sections[index];
             BlockState blockstate = chunksection.setBlockState(x, y, z, state);
+            if (blockstate != state) {
+                this.setSectionDirty(index);
+            }
             if (this.status.isAtLeast(ChunkStatus.FEATURES) && state != blockstate && (state.getOpacity(this, pos) != blockstate.getOpacity(this, pos) || state.getLightValue(this, pos) != blockstate.getLightValue(this, pos) || state.isTransparent() || blockstate.isTransparent())) {
                 lightManager.checkBlock(pos);
             }
@@ -179,6 +185,7 @@ public class CubePrimer implements IBigCube, IChunk {
     @Override public void addCubeTileEntity(BlockPos pos, TileEntity tileEntityIn) {
         tileEntityIn.setPos(pos);
         this.tileEntities.put(pos, tileEntityIn);
+        this.setSectionDirty(Coords.blockToIndex(pos.getX(), pos.getY(), pos.getZ()));
     }
 
     @Override public void removeTileEntity(BlockPos pos) {
@@ -186,7 +193,9 @@ public class CubePrimer implements IBigCube, IChunk {
     }
 
     @Override public void removeCubeTileEntity(BlockPos pos) {
-        this.tileEntities.remove(pos);
+        if (this.tileEntities.remove(pos) != null) {
+            this.setSectionDirty(Coords.blockToIndex(pos.getX(), pos.getY(), pos.getZ()));
+        }
         //TODO: reimplement deferredtileentities
         //this.deferredTileEntities.remove(pos);
     }
@@ -265,12 +274,24 @@ public class CubePrimer implements IBigCube, IChunk {
 
     @Override public void setDirty(boolean modified) {
         this.modified = modified;
+        if (!modified) {
+            this.dirtySections.clear();
+        }
     }
 
     @Override public boolean isDirty() {
         return modified;
     }
 
+    @Override public BitSet getDirtySections() {
+        return this.dirtySections;
+    }
+
+    @Override public void setSectionDirty(int sectionIndex) {
+        this.dirtySections.set(sectionIndex);
+        this.modified = true;
+    }
+
     @Override public ChunkStatus getStatus() {
         return getCubeStatus();
     }
@@ -281,6 +302,11 @@ public class CubePrimer implements IBigCube, IChunk {
     @Override
     public void setCubeStatus(ChunkStatus status)
     {
+        if (this.status != status) {
+            // generation stages may write to the sections directly
+            this.getDirtySections().set(0, IBigCube.CUBE_SIZE);
+            this.setDirty(true);
+        }
         this.status = status;
     }
 
@@ -290,7 +316,7 @@ public class CubePrimer implements IBigCube, IChunk {
     }
 
     public void setStatus(ChunkStatus status) {
-        this.status = status;
+        this.setCubeStatus(status);
     }
 
     @Override public ShortList[] getPackedPositions() {
@@ -340,8 +366,10 @@ public class CubePrimer implements IBigCube, IChunk {
         return this.hasLight;
     }
     @Override public void setCubeLight(boolean lightCorrectIn) {
-        this.hasLight = lightCorrectIn;
-        this.setModified(true);
+        if (this.hasLight != lightCorrectIn) {
+            this.hasLight = lightCorrectIn;
+            this.setModified(true);
+        }
     }
 
     @Nullable @Override public StructureStart getStructureStart(String stucture) {
@@ -151,6 +151,14 @@ public class CubePrimerWrapper extends CubePrimer {
         return this.cube.isDirty();
     }
 
+    @Override public BitSet getDirtySections() {
+        return this.cube.getDirtySections();
+    }
+
+    @Override public void setSectionDirty(int sectionIndex) {
+        this.cube.setSectionDirty(sectionIndex);
+    }
+
     @Override public ChunkStatus getStatus() {
         return this.cube.getCubeStatus();
     }
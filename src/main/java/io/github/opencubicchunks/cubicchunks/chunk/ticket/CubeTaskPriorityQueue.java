@@ -1,25 +1,22 @@
 package io.github.opencubicchunks.cubicchunks.chunk.ticket;
 
-import com.google.common.collect.Lists;
-import com.mojang.datafixers.util.Either;
 import io.github.opencubicchunks.cubicchunks.chunk.IChunkManager;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
-import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
 
 public class CubeTaskPriorityQueue<T> {
    public static final int levelCount = IChunkManager.MAX_CUBE_LOADED_LEVEL + 2;
-   private final List<Long2ObjectLinkedOpenHashMap<List<Optional<T>>>> levelToPosToElements = IntStream.range(0, levelCount).mapToObj((p_219415_0_) -> new Long2ObjectLinkedOpenHashMap<List<Optional<T>>>()).collect(Collectors.toList());
-   private volatile int firstNonEmptyLvl = levelCount;
+   // a null task is a marker, polling it counts the cube as in progress until its position is cleared
+   private final PositionBucketQueue<T> queue = new PositionBucketQueue<>(levelCount);
+   private final PositionBucketQueue.ElementConsumer<T> pollHandler = this::acceptPolled;
+   // reused by every poll, so polling doesn't allocate
+   private final List<T> polled = new ArrayList<>();
    private final String name;
    private final LongSet cubePostions = new LongOpenHashSet();
    private final int sizeMax;
@@ -31,80 +28,42 @@ public class CubeTaskPriorityQueue<T> {
 
    protected void updateCubeLevel(int p_219407_1_, CubePos pos, int p_219407_3_) {
       if (p_219407_1_ < levelCount) {
-         Long2ObjectLinkedOpenHashMap<List<Optional<T>>> long2objectlinkedopenhashmap = this.levelToPosToElements.get(p_219407_1_);
-         List<Optional<T>> list = long2objectlinkedopenhashmap.remove(pos.asLong());
-         if (p_219407_1_ == this.firstNonEmptyLvl) {
-            while (this.firstNonEmptyLvl < levelCount && this.levelToPosToElements.get(this.firstNonEmptyLvl).isEmpty()) {
-               ++this.firstNonEmptyLvl;
-            }
-         }
-
-         if (list != null && !list.isEmpty()) {
-            this.levelToPosToElements.get(p_219407_3_).computeIfAbsent(pos.asLong(), (p_219411_0_) -> Lists.newArrayList()).addAll(list);
-            this.firstNonEmptyLvl = Math.min(this.firstNonEmptyLvl, p_219407_3_);
-         }
-
+         this.queue.move(p_219407_1_, pos.asLong(), p_219407_3_);
       }
    }
 
-   protected void add(Optional<T> p_219412_1_, long p_219412_2_, int p_219412_4_) {
-      this.levelToPosToElements.get(p_219412_4_).computeIfAbsent(p_219412_2_, (p_219410_0_) -> Lists.newArrayList()).add(p_219412_1_);
-      this.firstNonEmptyLvl = Math.min(this.firstNonEmptyLvl, p_219412_4_);
+   protected void add(@Nullable T task, long pos, int level) {
+      this.queue.add(pos, level, task);
    }
 
-   protected void clearPostion(long p_219416_1_, boolean p_219416_3_) {
-      for (Long2ObjectLinkedOpenHashMap<List<Optional<T>>> long2objectlinkedopenhashmap : this.levelToPosToElements) {
-         List<Optional<T>> list = long2objectlinkedopenhashmap.get(p_219416_1_);
-         if (list != null) {
-            if (p_219416_3_) {
-               list.clear();
-            } else {
-               list.removeIf((p_219413_0_) -> !p_219413_0_.isPresent());
-            }
-
-            if (list.isEmpty()) {
-               long2objectlinkedopenhashmap.remove(p_219416_1_);
-            }
-         }
-      }
-
-      while (this.firstNonEmptyLvl < levelCount && this.levelToPosToElements.get(this.firstNonEmptyLvl).isEmpty()) {
-         ++this.firstNonEmptyLvl;
-      }
-
-      this.cubePostions.remove(p_219416_1_);
-   }
-
-   private Runnable createCubePositionAdder(long p_219418_1_) {
-      return () -> {
-         this.cubePostions.add(p_219418_1_);
-      };
+   protected void clearPostion(long pos, boolean all) {
+      this.queue.clear(pos, all);
+      this.cubePostions.remove(pos);
    }
 
+   /**
+    * Takes the tasks of the first cube of the lowest level.
+    *
+    * @return the tasks, in a list that is reused by the next poll, or null if the queue is empty or too many cubes are in progress
+    */
    @Nullable
-   public Stream<Either<T, Runnable>> poll() {
+   public List<T> poll() {
       if (this.cubePostions.size() >= this.sizeMax) {
          return null;
-      } else if (this.firstNonEmptyLvl >= levelCount) {
-         return null;
-      } else {
-         int i = this.firstNonEmptyLvl;
-         Long2ObjectLinkedOpenHashMap<List<Optional<T>>> long2objectlinkedopenhashmap = this.levelToPosToElements.get(i);
-         long j = long2objectlinkedopenhashmap.firstLongKey();
-
-         List<Optional<T>> list;
-         list = long2objectlinkedopenhashmap.removeFirst();
-         while (this.firstNonEmptyLvl < levelCount && this.levelToPosToElements.get(this.firstNonEmptyLvl).isEmpty()) {
-            ++this.firstNonEmptyLvl;
-         }
+      }
+      this.polled.clear();
+      return this.queue.poll(this.pollHandler) ? this.polled : null;
+   }
 
-         return list.stream().map((p_219408_3_) -> p_219408_3_.<Either<T, Runnable>>map(Either::left).orElseGet(() -> {
-            return Either.right(this.createCubePositionAdder(j));
-         }));
+   private void acceptPolled(long pos, @Nullable T task) {
+      if (task == null) {
+         this.cubePostions.add(pos);
+      } else {
+         this.polled.add(task);
       }
    }
 
    public String toString() {
-      return this.name + " " + this.firstNonEmptyLvl + "...";
+      return this.name + " " + this.queue.getFirstLevel() + "...";
    }
 }
@@ -1,7 +1,6 @@
 package io.github.opencubicchunks.cubicchunks.chunk.ticket;
 
 import com.google.common.collect.Sets;
-import com.mojang.datafixers.util.Either;
 import io.github.opencubicchunks.cubicchunks.chunk.ICubeHolder;
 import io.github.opencubicchunks.cubicchunks.chunk.ICubeHolderListener;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
@@ -14,23 +13,25 @@ import net.minecraft.util.concurrent.ITaskQueue;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.server.ChunkHolder;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class CubeTaskPriorityQueueSorter implements AutoCloseable, ChunkHolder.IListener, ICubeHolderListener {
 
     private final Map<ITaskExecutor<?>, CubeTaskPriorityQueue<? extends Function<ITaskExecutor<Unit>, ?>>> queues;
     private final Set<ITaskExecutor<?>> actors;
     private final DelegatedTaskExecutor<ITaskQueue.RunnableWithPriority> sorter;
+    // only used by tasks of the sorter, which run one at a time
+    private final List<CompletableFuture<Unit>> pollFutures = new ArrayList<>();
 
     public CubeTaskPriorityQueueSorter(List<ITaskExecutor<?>> taskExecutors, Executor executor, int p_i50713_3_) {
         this.queues = taskExecutors.stream().collect(Collectors.toMap(Function.identity(), (p_219084_1_) ->
@@ -52,6 +53,16 @@ public class CubeTaskPriorityQueueSorter implements AutoCloseable, ChunkHolder.I
         return createMsg(p_219081_1_, ((ICubeHolder) holder).getCubePos().asLong(), holder::func_219281_j);
     }
 
+    /**
+     * Like {@link #createMsg(ChunkHolder, Runnable)}, but the next task of the same executor isn't started until the future returned by the
+     * task completes.
+     */
+    public static CubeTaskPriorityQueueSorter.FunctionEntry<Runnable> createAsyncMsg(ChunkHolder holder, Supplier<CompletableFuture<?>> task) {
+        return new CubeTaskPriorityQueueSorter.FunctionEntry<>((executor) -> () ->
+                task.get().whenComplete((result, error) -> executor.enqueue(Unit.INSTANCE)),
+                ((ICubeHolder) holder).getCubePos().asLong(), holder::func_219281_j);
+    }
+
     // func_219073_a
     public static CubeTaskPriorityQueueSorter.RunnableEntry createSorterMsg(Runnable p_219073_0_, long p_219073_1_, boolean p_219073_3_) {
         return new CubeTaskPriorityQueueSorter.RunnableEntry(p_219073_0_, p_219073_1_, p_219073_3_);
@@ -99,9 +110,9 @@ public class CubeTaskPriorityQueueSorter implements AutoCloseable, ChunkHolder.I
         this.sorter.enqueue(new ITaskQueue.RunnableWithPriority(2, () -> {
             CubeTaskPriorityQueue<Function<ITaskExecutor<Unit>, T>> cubeTaskPriorityQueue = this.getQueue(p_219067_1_);
             int i = p_219067_5_.getAsInt();
-            cubeTaskPriorityQueue.add(Optional.of(p_219067_2_), p_219067_3_, i);
+            cubeTaskPriorityQueue.add(p_219067_2_, p_219067_3_, i);
             if (p_219067_6_) {
-                cubeTaskPriorityQueue.add(Optional.empty(), p_219067_3_, i);
+                cubeTaskPriorityQueue.add(null, p_219067_3_, i);
             }
 
             if (this.actors.remove(p_219067_1_)) {
@@ -114,14 +125,17 @@ public class CubeTaskPriorityQueueSorter implements AutoCloseable, ChunkHolder.I
     // func_219078_a
     private <T> void func_219078_a(CubeTaskPriorityQueue<Function<ITaskExecutor<Unit>, T>> p_219078_1_, ITaskExecutor<T> p_219078_2_) {
         this.sorter.enqueue(new ITaskQueue.RunnableWithPriority(3, () -> {
-            Stream<Either<Function<ITaskExecutor<Unit>, T>, Runnable>> stream = p_219078_1_.poll();
-            if (stream == null) {
+            List<Function<ITaskExecutor<Unit>, T>> tasks = p_219078_1_.poll();
+            if (tasks == null) {
                 this.actors.add(p_219078_2_);
             } else {
-                Util.gather(stream.map((p_219092_1_) -> p_219092_1_.map(p_219078_2_::func_213141_a, (p_219077_0_) -> {
-                    p_219077_0_.run();
-                    return CompletableFuture.completedFuture(Unit.INSTANCE);
-                })).collect(Collectors.toList())).thenAccept((p_219088_3_) ->
+                for (Function<ITaskExecutor<Unit>, T> task : tasks) {
+                    this.pollFutures.add(p_219078_2_.func_213141_a(task));
+                }
+                // gather copies the futures, so the buffer can be cleared right away
+                CompletableFuture<List<Unit>> future = Util.gather(this.pollFutures);
+                this.pollFutures.clear();
+                future.thenAccept((p_219088_3_) ->
                         this.func_219078_a(p_219078_1_, p_219078_2_));
             }
 
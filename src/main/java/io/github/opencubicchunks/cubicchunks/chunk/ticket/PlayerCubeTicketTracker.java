@@ -2,19 +2,45 @@ package io.github.opencubicchunks.cubicchunks.chunk.ticket;
 
 import io.github.opencubicchunks.cubicchunks.chunk.IBigCube;
 import io.github.opencubicchunks.cubicchunks.chunk.graph.CCTicketType;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLoadShape;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeViewDelta;
 import it.unimi.dsi.fastutil.longs.Long2IntMap;
 import it.unimi.dsi.fastutil.longs.Long2IntMaps;
 import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import net.minecraft.entity.player.ServerPlayerEntity;
 import net.minecraft.world.server.Ticket;
 
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+/**
+ * Tracks the cubes that get player tickets, within the ticket shape around a player. The ticket shape is the view shape, two cubes
+ * smaller.
+ *
+ * <p>Every cube in a column within the vertical view distance of a player is a source, and levels only propagate horizontally, so the level
+ * of a cube is its horizontal distance to the closest player that is within the vertical view distance. The level is the priority of the
+ * ticket, and decides which cubes get a ticket when the shape is a box. For other shapes, the tracker also counts the players whose shape
+ * contains each cube, and only the cubes with a player get a ticket.</p>
+ */
 public class PlayerCubeTicketTracker extends PlayerCubeTracker {
     private int viewDistance;
+    private CubeLoadShape ticketShape = CubeLoadShape.create(CubeLoadShape.Type.BOX, 0, 0);
     private final Long2IntMap distances = Long2IntMaps.synchronize(new Long2IntOpenHashMap());
     private final LongSet positionsAffected = new LongOpenHashSet();
+    private final LongSet cubesInView = new LongOpenHashSet();
+    // only used when the ticket shape isn't a box
+    private final Long2IntOpenHashMap playersInShape = new Long2IntOpenHashMap();
+    private final Object2LongOpenHashMap<ServerPlayerEntity> playerPositions = new Object2LongOpenHashMap<>();
+    private final Set<ServerPlayerEntity> removedPlayers = new ObjectOpenHashSet<>();
     private final ITicketManager iTicketManager;
 
 
@@ -30,14 +56,165 @@ public class PlayerCubeTicketTracker extends PlayerCubeTracker {
         this.positionsAffected.add(cubePosIn);
     }
 
-    public void setViewDistance(int viewDistanceIn) {
-        for (it.unimi.dsi.fastutil.longs.Long2ByteMap.Entry entry : this.cubesInRange.long2ByteEntrySet()) {
-            byte b0 = entry.getByteValue();
-            long i = entry.getLongKey();
-            this.updateTicket(i, b0, this.isWithinViewDistance(b0), b0 <= viewDistanceIn - 2);
+    public void setViewDistance(CubeLoadShape viewShape) {
+        this.flushRemovedPlayers();
+        // every cube that has a ticket or a level may change, processAllUpdates checks them
+        this.positionsAffected.addAll(this.cubesInRange.keySet());
+        this.positionsAffected.addAll(this.cubesInView);
+
+        this.viewDistance = viewShape.getRadius();
+
+        CubeLoadShape oldShape = this.ticketShape;
+        this.ticketShape = CubeLoadShape.create(viewShape.getType(),
+                Math.max(0, viewShape.getRadius() - 2), Math.max(0, viewShape.getVerticalRadius() - 2));
+        if (this.ticketShape.getVerticalRadius() != oldShape.getVerticalRadius()) {
+            int range = Math.max(this.ticketShape.getVerticalRadius(), oldShape.getVerticalRadius());
+            for (long cubePos : iTicketManager.getPlayersByCubePos().keySet()) {
+                this.updatePlayerColumn(cubePos, range);
+            }
+        }
+
+        this.playersInShape.clear();
+        if (!this.ticketShape.isBox()) {
+            for (Object2LongMap.Entry<ServerPlayerEntity> entry : this.playerPositions.object2LongEntrySet()) {
+                this.forEachInShape(entry.getLongValue(), this::addToShape);
+            }
         }
+    }
+
+    /**
+     * Called after the player was added to playersByCubePos.
+     */
+    public void addPlayer(long cubePosIn, ServerPlayerEntity player) {
+        this.updatePlayerColumn(cubePosIn);
+        this.removedPlayers.remove(player);
+        if (this.playerPositions.containsKey(player)) {
+            long oldPos = this.playerPositions.put(player, cubePosIn);
+            if (!this.ticketShape.isBox()) {
+                CubeViewDelta.forEachChanged(CubePos.extractX(oldPos), CubePos.extractY(oldPos), CubePos.extractZ(oldPos),
+                        CubePos.extractX(cubePosIn), CubePos.extractY(cubePosIn), CubePos.extractZ(cubePosIn),
+                        this.ticketShape, this::removeFromShape, this::addToShape);
+            }
+        } else {
+            this.playerPositions.put(player, cubePosIn);
+            if (!this.ticketShape.isBox()) {
+                this.forEachInShape(cubePosIn, this::addToShape);
+            }
+        }
+    }
 
-        this.viewDistance = viewDistanceIn;
+    /**
+     * Called after the player was removed from playersByCubePos.
+     */
+    public void removePlayer(long cubePosIn, ServerPlayerEntity player) {
+        this.updatePlayerColumn(cubePosIn);
+        // a moving player is added back right away, so only the cubes that entered or left its shape are updated then
+        this.removedPlayers.add(player);
+    }
+
+    private void flushRemovedPlayers() {
+        for (ServerPlayerEntity player : this.removedPlayers) {
+            if (!this.playerPositions.containsKey(player)) {
+                continue;
+            }
+            long cubePos = this.playerPositions.removeLong(player);
+            if (!this.ticketShape.isBox()) {
+                this.forEachInShape(cubePos, this::removeFromShape);
+            }
+        }
+        this.removedPlayers.clear();
+    }
+
+    private void forEachInShape(long cubePosIn, LongConsumer consumer) {
+        CubeViewDelta.forEachInView(CubePos.extractX(cubePosIn), CubePos.extractY(cubePosIn), CubePos.extractZ(cubePosIn),
+                this.ticketShape, consumer);
+    }
+
+    private void addToShape(long cubePosIn) {
+        if (this.playersInShape.addTo(cubePosIn, 1) == 0) {
+            this.positionsAffected.add(cubePosIn);
+        }
+    }
+
+    private void removeFromShape(long cubePosIn) {
+        if (this.playersInShape.addTo(cubePosIn, -1) == 1) {
+            this.playersInShape.remove(cubePosIn);
+            this.positionsAffected.add(cubePosIn);
+        }
+    }
+
+    private void updatePlayerColumn(long cubePosIn) {
+        this.updatePlayerColumn(cubePosIn, this.ticketShape.getVerticalRadius());
+    }
+
+    private void updatePlayerColumn(long cubePosIn, int range) {
+        int x = CubePos.extractX(cubePosIn);
+        int y = CubePos.extractY(cubePosIn);
+        int z = CubePos.extractZ(cubePosIn);
+        for (int dy = -range; dy <= range; dy++) {
+            long pos = CubePos.asLong(x, y + dy, z);
+            int level = this.getSourceLevel(pos);
+            this.updateSourceLevel(pos, level, level == 0);
+        }
+    }
+
+    @Override
+    protected int getSourceLevel(long pos) {
+        Long2ObjectMap<ObjectSet<ServerPlayerEntity>> playersByCubePos = iTicketManager.getPlayersByCubePos();
+        int x = CubePos.extractX(pos);
+        int y = CubePos.extractY(pos);
+        int z = CubePos.extractZ(pos);
+        int range = this.ticketShape.getVerticalRadius();
+        for (int dy = -range; dy <= range; dy++) {
+            ObjectSet<ServerPlayerEntity> players = playersByCubePos.get(CubePos.asLong(x, y + dy, z));
+            if (players != null && !players.isEmpty()) {
+                return 0;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    protected void notifyNeighbors(long pos, int level, boolean isDecreasing) {
+        int x = CubePos.extractX(pos);
+        int y = CubePos.extractY(pos);
+        int z = CubePos.extractZ(pos);
+        for (int x2 = -1; x2 <= 1; ++x2) {
+            for (int z2 = -1; z2 <= 1; ++z2) {
+                long i1 = CubePos.asLong(x + x2, y, z + z2);
+                if (i1 != pos) {
+                    this.propagateLevel(pos, i1, level, isDecreasing);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected int computeLevel(long pos, long excludedSourcePos, int level) {
+        int i = level;
+        int x = CubePos.extractX(pos);
+        int y = CubePos.extractY(pos);
+        int z = CubePos.extractZ(pos);
+        for (int x2 = -1; x2 <= 1; ++x2) {
+            for (int z2 = -1; z2 <= 1; ++z2) {
+                long j1 = CubePos.asLong(x + x2, y, z + z2);
+                if (j1 == pos) {
+                    j1 = Long.MAX_VALUE;
+                }
+
+                if (j1 != excludedSourcePos) {
+                    int k1 = this.getEdgeLevel(j1, pos, this.getLevel(j1));
+                    if (i > k1) {
+                        i = k1;
+                    }
+
+                    if (i == 0) {
+                        return i;
+                    }
+                }
+            }
+        }
+        return i;
     }
 
     // func_215504_a
@@ -47,7 +224,7 @@ public class PlayerCubeTicketTracker extends PlayerCubeTracker {
             if (withinViewDistance) {
                 iTicketManager.getCubePlayerTicketThrottler().enqueue(CubeTaskPriorityQueueSorter.createMsg(() ->
                         iTicketManager.executor().execute(() -> {
-                            if (this.isWithinViewDistance(this.getLevel(cubePosIn))) {
+                            if (this.cubesInView.contains(cubePosIn)) {
                                 iTicketManager.registerCube(cubePosIn, ticket);
                                 iTicketManager.getCubePositions().add(cubePosIn);
                             } else {
@@ -67,6 +244,7 @@ public class PlayerCubeTicketTracker extends PlayerCubeTracker {
     }
 
     public void processAllUpdates() {
+        this.flushRemovedPlayers();
         super.processAllUpdates();
         if (!this.positionsAffected.isEmpty()) {
             LongIterator longiterator = this.positionsAffected.iterator();
@@ -85,7 +263,10 @@ public class PlayerCubeTicketTracker extends PlayerCubeTracker {
                         }
 
                     });
-                    this.updateTicket(i, k, this.isWithinViewDistance(j), this.isWithinViewDistance(k));
+                }
+                boolean withinViewDistance = this.isWithinViewDistance(i, k);
+                if (withinViewDistance ? this.cubesInView.add(i) : this.cubesInView.remove(i)) {
+                    this.updateTicket(i, k, !withinViewDistance, withinViewDistance);
                 }
             }
 
@@ -94,7 +275,7 @@ public class PlayerCubeTicketTracker extends PlayerCubeTracker {
 
     }
 
-    private boolean isWithinViewDistance(int p_215505_1_) {
-        return p_215505_1_ <= this.viewDistance - 2;
+    private boolean isWithinViewDistance(long cubePosIn, int level) {
+        return level <= this.viewDistance - 2 && (this.ticketShape.isBox() || this.playersInShape.get(cubePosIn) > 0);
     }
 }
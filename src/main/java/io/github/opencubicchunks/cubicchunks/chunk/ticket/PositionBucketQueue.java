@@ -0,0 +1,268 @@
+package io.github.opencubicchunks.cubicchunks.chunk.ticket;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Elements grouped by position and by level, polled one position of the lowest non-empty level at a time.
+ *
+ * <p>Each level keeps its positions in the order they were first added at that level, and each position keeps its elements in the order
+ * they were added. A position can have elements at several levels at once. Null elements are allowed and are told apart by
+ * {@link #clear}.</p>
+ *
+ * <p>Positions and elements are intrusive linked list nodes that are reused once removed, and a bitset of the non-empty levels finds the
+ * first one, so after warming up no operation allocates.</p>
+ */
+public class PositionBucketQueue<T> {
+
+    private final int levels;
+    private final Entry<T>[] firstEntries;
+    private final Entry<T>[] lastEntries;
+    private final long[] nonEmptyLevels;
+    // the entries of a position at all levels, linked by Entry.nextOfPosition
+    private final Long2ObjectOpenHashMap<Entry<T>> entriesByPosition = new Long2ObjectOpenHashMap<>();
+
+    @Nullable private Entry<T> freeEntries;
+    @Nullable private Element<T> freeElements;
+
+    @SuppressWarnings("unchecked")
+    public PositionBucketQueue(int levels) {
+        this.levels = levels;
+        this.firstEntries = new Entry[levels];
+        this.lastEntries = new Entry[levels];
+        this.nonEmptyLevels = new long[(levels + Long.SIZE - 1) / Long.SIZE];
+    }
+
+    /**
+     * Adds an element to the end of the position's elements at the given level.
+     */
+    public void add(long pos, int level, @Nullable T value) {
+        Entry<T> entry = find(pos, level);
+        if (entry == null) {
+            entry = newEntry(pos, level);
+            linkLevel(entry);
+            linkPosition(entry);
+        }
+        Element<T> element = this.freeElements;
+        if (element == null) {
+            element = new Element<>();
+        } else {
+            this.freeElements = element.next;
+            element.next = null;
+        }
+        element.value = value;
+        if (entry.last == null) {
+            entry.first = element;
+        } else {
+            entry.last.next = element;
+        }
+        entry.last = element;
+    }
+
+    /**
+     * Moves the elements of the position at level {@code from} to the end of its elements at level {@code to}. The position goes to the end
+     * of level {@code to} unless it already has elements there.
+     */
+    public void move(int from, long pos, int to) {
+        Entry<T> entry = find(pos, from);
+        if (entry == null) {
+            return;
+        }
+        unlinkLevel(entry);
+        Entry<T> target = from == to ? null : find(pos, to);
+        if (target == null) {
+            // the entry keeps its place in the position's list
+            entry.level = to;
+            linkLevel(entry);
+            return;
+        }
+        target.last.next = entry.first;
+        target.last = entry.last;
+        entry.first = null;
+        entry.last = null;
+        unlinkPosition(entry);
+        freeEntry(entry);
+    }
+
+    /**
+     * Removes the null elements of the position at all levels, or all its elements.
+     */
+    public void clear(long pos, boolean all) {
+        Entry<T> entry = this.entriesByPosition.get(pos);
+        while (entry != null) {
+            Entry<T> next = entry.nextOfPosition;
+            Element<T> previous = null;
+            for (Element<T> element = entry.first; element != null; ) {
+                Element<T> nextElement = element.next;
+                if (all || element.value == null) {
+                    if (previous == null) {
+                        entry.first = nextElement;
+                    } else {
+                        previous.next = nextElement;
+                    }
+                    freeElement(element);
+                } else {
+                    previous = element;
+                }
+                element = nextElement;
+            }
+            entry.last = previous;
+            if (entry.first == null) {
+                unlinkLevel(entry);
+                unlinkPosition(entry);
+                freeEntry(entry);
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * @return the lowest level with elements, or the number of levels if the queue is empty
+     */
+    public int getFirstLevel() {
+        for (int i = 0; i < this.nonEmptyLevels.length; i++) {
+            if (this.nonEmptyLevels[i] != 0) {
+                return i * Long.SIZE + Long.numberOfTrailingZeros(this.nonEmptyLevels[i]);
+            }
+        }
+        return this.levels;
+    }
+
+    /**
+     * Removes the first position of the lowest non-empty level and passes its elements at that level to the consumer, in the order they were
+     * added.
+     *
+     * @return false if the queue is empty
+     */
+    public boolean poll(ElementConsumer<T> consumer) {
+        int level = getFirstLevel();
+        if (level >= this.levels) {
+            return false;
+        }
+        Entry<T> entry = this.firstEntries[level];
+        unlinkLevel(entry);
+        unlinkPosition(entry);
+        long pos = entry.pos;
+        Element<T> element = entry.first;
+        entry.first = null;
+        entry.last = null;
+        freeEntry(entry);
+        while (element != null) {
+            Element<T> next = element.next;
+            T value = element.value;
+            freeElement(element);
+            consumer.accept(pos, value);
+            element = next;
+        }
+        return true;
+    }
+
+    @Nullable
+    private Entry<T> find(long pos, int level) {
+        Entry<T> entry = this.entriesByPosition.get(pos);
+        while (entry != null && entry.level != level) {
+            entry = entry.nextOfPosition;
+        }
+        return entry;
+    }
+
+    private Entry<T> newEntry(long pos, int level) {
+        Entry<T> entry = this.freeEntries;
+        if (entry == null) {
+            entry = new Entry<>();
+        } else {
+            this.freeEntries = entry.next;
+            entry.next = null;
+        }
+        entry.pos = pos;
+        entry.level = level;
+        return entry;
+    }
+
+    private void freeEntry(Entry<T> entry) {
+        entry.next = this.freeEntries;
+        this.freeEntries = entry;
+    }
+
+    private void freeElement(Element<T> element) {
+        element.value = null;
+        element.next = this.freeElements;
+        this.freeElements = element;
+    }
+
+    private void linkLevel(Entry<T> entry) {
+        int level = entry.level;
+        Entry<T> last = this.lastEntries[level];
+        entry.previous = last;
+        entry.next = null;
+        if (last == null) {
+            this.firstEntries[level] = entry;
+            this.nonEmptyLevels[level / Long.SIZE] |= 1L << level;
+        } else {
+            last.next = entry;
+        }
+        this.lastEntries[level] = entry;
+    }
+
+    private void unlinkLevel(Entry<T> entry) {
+        int level = entry.level;
+        if (entry.previous == null) {
+            this.firstEntries[level] = entry.next;
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if (entry.next == null) {
+            this.lastEntries[level] = entry.previous;
+        } else {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+        if (this.firstEntries[level] == null) {
+            this.nonEmptyLevels[level / Long.SIZE] &= ~(1L << level);
+        }
+    }
+
+    private void linkPosition(Entry<T> entry) {
+        entry.nextOfPosition = this.entriesByPosition.put(entry.pos, entry);
+    }
+
+    private void unlinkPosition(Entry<T> entry) {
+        Entry<T> head = this.entriesByPosition.get(entry.pos);
+        if (head == entry) {
+            if (entry.nextOfPosition == null) {
+                this.entriesByPosition.remove(entry.pos);
+            } else {
+                this.entriesByPosition.put(entry.pos, entry.nextOfPosition);
+            }
+        } else {
+            while (head.nextOfPosition != entry) {
+                head = head.nextOfPosition;
+            }
+            head.nextOfPosition = entry.nextOfPosition;
+        }
+        entry.nextOfPosition = null;
+    }
+
+    @FunctionalInterface
+    public interface ElementConsumer<T> {
+        void accept(long pos, @Nullable T value);
+    }
+
+    private static final class Entry<T> {
+        private long pos;
+        private int level;
+        @Nullable private Element<T> first;
+        @Nullable private Element<T> last;
+        // neighbours in the level, next also links free entries
+        @Nullable private Entry<T> previous;
+        @Nullable private Entry<T> next;
+        @Nullable private Entry<T> nextOfPosition;
+    }
+
+    private static final class Element<T> {
+        @Nullable private T value;
+        @Nullable private Element<T> next;
+    }
+}
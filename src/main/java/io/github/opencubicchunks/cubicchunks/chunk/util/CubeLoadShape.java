@@ -0,0 +1,97 @@
+package io.github.opencubicchunks.cubicchunks.chunk.util;
+
+/**
+ * The shape of the area of cubes around a player that is loaded and sent to it, relative to the cube the player is in.
+ *
+ * <p>Every shape is symmetric and its columns are contiguous, so it is stored as the half height of each column. A box has the full
+ * vertical radius in every column, an ellipsoid contains the cubes whose centers are within the ellipsoid with the horizontal radius on the
+ * x and z axes and the vertical radius on the y axis, extended by half a cube so the cubes at the end of each axis are included.</p>
+ */
+public final class CubeLoadShape {
+
+    public enum Type {
+        BOX,
+        // an ellipsoid with the horizontal radius on all axes
+        SPHERE,
+        ELLIPSOID
+    }
+
+    private final Type type;
+    private final int radius;
+    private final int verticalRadius;
+    // indexed by the absolute x and z offsets, -1 for columns outside of the shape
+    private final int[] halfHeights;
+
+    private CubeLoadShape(Type type, int radius, int verticalRadius, int[] halfHeights) {
+        this.type = type;
+        this.radius = radius;
+        this.verticalRadius = verticalRadius;
+        this.halfHeights = halfHeights;
+    }
+
+    public static CubeLoadShape create(Type type, int radius, int verticalRadius) {
+        if (radius < 0 || verticalRadius < 0) {
+            throw new IllegalArgumentException("Negative radius " + radius + ", " + verticalRadius);
+        }
+        if (type == Type.SPHERE) {
+            verticalRadius = radius;
+        }
+        int size = radius + 1;
+        int[] halfHeights = new int[size * size];
+        for (int dx = 0; dx <= radius; dx++) {
+            for (int dz = 0; dz <= radius; dz++) {
+                int halfHeight;
+                if (type == Type.BOX) {
+                    halfHeight = verticalRadius;
+                } else {
+                    double horizontal = (dx * dx + dz * dz) / ((radius + 0.5) * (radius + 0.5));
+                    halfHeight = horizontal > 1 ? -1 : (int) Math.floor((verticalRadius + 0.5) * Math.sqrt(1 - horizontal));
+                }
+                halfHeights[dx * size + dz] = Math.min(halfHeight, verticalRadius);
+            }
+        }
+        return new CubeLoadShape(type, radius, verticalRadius, halfHeights);
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public boolean isBox() {
+        return this.type == Type.BOX;
+    }
+
+    public int getRadius() {
+        return this.radius;
+    }
+
+    public int getVerticalRadius() {
+        return this.verticalRadius;
+    }
+
+    /**
+     * @return the largest vertical offset in the column, or -1 if the column isn't part of the shape
+     */
+    public int getHalfHeight(int dx, int dz) {
+        dx = Math.abs(dx);
+        dz = Math.abs(dz);
+        if (dx > this.radius || dz > this.radius) {
+            return -1;
+        }
+        return this.halfHeights[dx * (this.radius + 1) + dz];
+    }
+
+    public boolean contains(int dx, int dy, int dz) {
+        return Math.abs(dy) <= getHalfHeight(dx, dz);
+    }
+
+    /**
+     * @return whether the offset is in the shape, next to a cube outside of it
+     */
+    public boolean isOnBoundary(int dx, int dy, int dz) {
+        dx = Math.abs(dx);
+        dy = Math.abs(dy);
+        dz = Math.abs(dz);
+        return contains(dx, dy, dz) && (!contains(dx + 1, dy, dz) || !contains(dx, dy + 1, dz) || !contains(dx, dy, dz + 1));
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.opencubicchunks.cubicchunks.chunk.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A small direct mapped cache of values looked up by cube position, with a separate table for every thread that uses it.
+ *
+ * <p>Entries stay valid until the cache, or all caches with {@link #invalidateAll}, are invalidated. Both are counted by an epoch, so
+ * invalidating is a single increment, and each thread clears its table the next time it uses it. The slot of a cube comes from the lowest
+ * bits of its coordinates, so the cubes right around a position never evict each other. Lookups that return null are cached too, like the
+ * vanilla recent chunk caches do, so asking again for a missing cube is as cheap as for a loaded one until the next invalidation.</p>
+ */
+public class CubeLookupCache<T> {
+
+    private static final AtomicInteger GLOBAL_EPOCH = new AtomicInteger();
+
+    // per axis, so the table has 64 entries
+    private static final int BITS = 2;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int SIZE = 1 << (BITS * 3);
+    // stored for lookups that returned null, an empty slot is null
+    private static final Object NULL = new Object();
+
+    private final Loader<T> loader;
+    private final AtomicInteger epoch = new AtomicInteger();
+    private final ThreadLocal<Table> tables = ThreadLocal.withInitial(Table::new);
+
+    public CubeLookupCache(Loader<T> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Invalidates the entries of every cache, on all threads.
+     */
+    public static void invalidateAll() {
+        GLOBAL_EPOCH.incrementAndGet();
+    }
+
+    /**
+     * Invalidates the entries of this cache, on all threads.
+     */
+    public void invalidate() {
+        this.epoch.incrementAndGet();
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public T get(int cubeX, int cubeY, int cubeZ) {
+        Table table = this.tables.get();
+        // read before loading, so an invalidation during the load clears the loaded value on the next lookup
+        int globalEpoch = GLOBAL_EPOCH.get();
+        int epoch = this.epoch.get();
+        if (table.globalEpoch != globalEpoch || table.epoch != epoch) {
+            Arrays.fill(table.values, null);
+            table.globalEpoch = globalEpoch;
+            table.epoch = epoch;
+        }
+        int slot = (cubeX & MASK) | (cubeY & MASK) << BITS | (cubeZ & MASK) << (BITS * 2);
+        long key = CubePos.asLong(cubeX, cubeY, cubeZ);
+        Object value = table.values[slot];
+        if (value != null && table.keys[slot] == key) {
+            return value == NULL ? null : (T) value;
+        }
+        T loaded = this.loader.load(cubeX, cubeY, cubeZ);
+        table.keys[slot] = key;
+        table.values[slot] = loaded == null ? NULL : loaded;
+        return loaded;
+    }
+
+    @FunctionalInterface
+    public interface Loader<T> {
+        @Nullable
+        T load(int cubeX, int cubeY, int cubeZ);
+    }
+
+    private static final class Table {
+        private final long[] keys = new long[SIZE];
+        private final Object[] values = new Object[SIZE];
+        private int globalEpoch;
+        private int epoch;
+    }
+}
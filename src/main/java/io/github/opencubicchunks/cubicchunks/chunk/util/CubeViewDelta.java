@@ -0,0 +1,76 @@
+package io.github.opencubicchunks.cubicchunks.chunk.util;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Finds the cubes that enter and leave a view area when its center moves. The view area is a {@link CubeLoadShape} around the center.
+ *
+ * <p>The shapes are made of contiguous columns, so the difference between the old and new area is found one column at a time, as the part
+ * of the old vertical range that isn't in the new one. Only the cubes in those ranges are visited, so moving by one cube along x visits
+ * {@code (2r+1)(2v+1)} cubes of a box on each side instead of the whole box. Positions are passed as {@link CubePos#asLong} values.</p>
+ */
+public final class CubeViewDelta {
+
+    private CubeViewDelta() {
+        throw new Error();
+    }
+
+    /**
+     * Calls the consumer for every cube within view of the center.
+     */
+    public static void forEachInView(int x, int y, int z, CubeLoadShape shape, LongConsumer consumer) {
+        int radius = shape.getRadius();
+        for (int dx = -radius; dx <= radius; dx++) {
+            for (int dz = -radius; dz <= radius; dz++) {
+                int halfHeight = shape.getHalfHeight(dx, dz);
+                forEachInColumn(x + dx, z + dz, y - halfHeight, y + halfHeight, consumer);
+            }
+        }
+    }
+
+    /**
+     * Calls {@code leaving} for every cube within view of the old center but not the new one, and {@code entering} for every cube within
+     * view of the new center but not the old one.
+     */
+    public static void forEachChanged(int oldX, int oldY, int oldZ, int newX, int newY, int newZ, CubeLoadShape shape,
+            LongConsumer leaving, LongConsumer entering) {
+        if (oldX == newX && oldY == newY && oldZ == newZ) {
+            return;
+        }
+        forEachDifference(oldX, oldY, oldZ, newX, newY, newZ, shape, leaving);
+        forEachDifference(newX, newY, newZ, oldX, oldY, oldZ, shape, entering);
+    }
+
+    /**
+     * Calls the consumer for every cube within view of {@code a} but not {@code b}.
+     */
+    private static void forEachDifference(int aX, int aY, int aZ, int bX, int bY, int bZ, CubeLoadShape shape, LongConsumer consumer) {
+        int radius = shape.getRadius();
+        for (int x = aX - radius; x <= aX + radius; x++) {
+            for (int z = aZ - radius; z <= aZ + radius; z++) {
+                int halfHeight = shape.getHalfHeight(x - aX, z - aZ);
+                if (halfHeight < 0) {
+                    continue;
+                }
+                int minY = aY - halfHeight;
+                int maxY = aY + halfHeight;
+                int otherHalfHeight = shape.getHalfHeight(x - bX, z - bZ);
+                if (otherHalfHeight < 0) {
+                    forEachInColumn(x, z, minY, maxY, consumer);
+                    continue;
+                }
+                int otherMinY = bY - otherHalfHeight;
+                int otherMaxY = bY + otherHalfHeight;
+                // the parts of the column below and above the other range
+                forEachInColumn(x, z, minY, Math.min(maxY, otherMinY - 1), consumer);
+                forEachInColumn(x, z, Math.max(minY, otherMaxY + 1), maxY, consumer);
+            }
+        }
+    }
+
+    private static void forEachInColumn(int x, int z, int minY, int maxY, LongConsumer consumer) {
+        for (int y = minY; y <= maxY; y++) {
+            consumer.accept(CubePos.asLong(x, y, z));
+        }
+    }
+}
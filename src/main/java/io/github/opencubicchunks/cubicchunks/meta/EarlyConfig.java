@@ -1,5 +1,7 @@
 package io.github.opencubicchunks.cubicchunks.meta;
 
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLoadShape;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -8,7 +10,9 @@ import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.function.Function;
 
 public class EarlyConfig {
 
@@ -19,6 +23,20 @@ public class EarlyConfig {
     private static final String PROPERTY_NAME_CUBE_DIAMETER = "CUBE_DIAMETER";
     private static final int DEFAULT_DIAMETER = 2; //Default
 
+    private static final String PROPERTY_NAME_CUBE_IO_THREADS = "CUBE_IO_THREADS";
+    private static final int DEFAULT_CUBE_IO_THREADS = 2;
+
+    private static final String PROPERTY_NAME_CUBE_GENERATION_THREADS = "CUBE_GENERATION_THREADS";
+    // half of the available processors
+    private static final int DEFAULT_CUBE_GENERATION_THREADS = 0;
+
+    private static final String PROPERTY_NAME_VERTICAL_VIEW_DISTANCE = "VERTICAL_VIEW_DISTANCE";
+    // in cubes, 0 uses the horizontal view distance
+    private static final int DEFAULT_VERTICAL_VIEW_DISTANCE = 0;
+
+    private static final String PROPERTY_NAME_CUBE_LOAD_SHAPE = "CUBE_LOAD_SHAPE";
+    private static final CubeLoadShape.Type DEFAULT_CUBE_LOAD_SHAPE = CubeLoadShape.Type.BOX;
+
     public static int getCubeDiameter() {
         int diameter = EarlyConfig.DEFAULT_DIAMETER;
         try {
@@ -57,6 +75,57 @@ public class EarlyConfig {
         return diameter;
     }
 
+    public static int getCubeIOThreads() {
+        return Math.max(1, getIntProperty(PROPERTY_NAME_CUBE_IO_THREADS, DEFAULT_CUBE_IO_THREADS));
+    }
+
+    public static int getCubeGenerationThreads() {
+        int threads = getIntProperty(PROPERTY_NAME_CUBE_GENERATION_THREADS, DEFAULT_CUBE_GENERATION_THREADS);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors() / 2;
+        }
+        return Math.max(1, threads);
+    }
+
+    public static int getVerticalViewDistance() {
+        return Math.max(0, getIntProperty(PROPERTY_NAME_VERTICAL_VIEW_DISTANCE, DEFAULT_VERTICAL_VIEW_DISTANCE));
+    }
+
+    public static CubeLoadShape.Type getCubeLoadShape() {
+        return getProperty(PROPERTY_NAME_CUBE_LOAD_SHAPE, DEFAULT_CUBE_LOAD_SHAPE, name -> CubeLoadShape.Type.valueOf(name.toUpperCase(Locale.ROOT)));
+    }
+
+    private static int getIntProperty(String propName, int defaultValue) {
+        return getProperty(propName, defaultValue, Integer::parseInt);
+    }
+
+    /**
+     * @param parser throws an IllegalArgumentException for invalid values, the default is stored instead
+     */
+    private static <T> T getProperty(String propName, T defaultValue, Function<String, T> parser) {
+        T value = defaultValue;
+        try {
+            Properties prop = new Properties();
+            if (!Files.exists(Paths.get(FILE_NAME))) {
+                EarlyConfig.createDefaultEarlyConfigFile(FILE_NAME, prop);
+            }
+            try (InputStream inputStream = Files.newInputStream(Paths.get(FILE_NAME))) {
+                prop.load(inputStream);
+            }
+            try {
+                value = parser.apply(EarlyConfig.getPropertyOrSetDefault(prop, propName, String.valueOf(defaultValue)));
+            } catch (IllegalArgumentException e) {
+                prop.setProperty(propName, String.valueOf(defaultValue));
+            }
+            try (OutputStream out = Files.newOutputStream(Paths.get(FILE_NAME))) {
+                prop.store(out, "");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return value;
+    }
+
     private static void createDefaultEarlyConfigFile(String fileName, Properties prop) throws IOException {
         File file = new File(fileName);
 
@@ -0,0 +1,17 @@
+package io.github.opencubicchunks.cubicchunks.mixin.access.common;
+
+import net.minecraft.util.BitArray;
+import net.minecraft.util.palette.IPalette;
+import net.minecraft.util.palette.PalettedContainer;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+@Mixin(PalettedContainer.class)
+public interface PalettedContainerAccess<T> {
+    @Accessor BitArray getStorage();
+    @Accessor IPalette<T> getPalette();
+    @Accessor int getBits();
+
+    @Invoker("setBits") void invokeSetBits(int bitsIn);
+}
@@ -31,6 +31,8 @@ import javax.annotation.Nullable;
 @Mixin(ClientChunkProvider.class)
 public abstract class MixinClientChunkProvider implements IClientCubeProvider {
     private volatile ClientChunkProviderCubeArray cubeArray;
+    // sent by the server in cubes, 0 until it is known
+    private int serverVerticalViewDistance;
 
     @Shadow @Final private static Logger LOGGER;
 
@@ -45,7 +47,8 @@ public abstract class MixinClientChunkProvider implements IClientCubeProvider {
 
     @Inject(method = "<init>", at = @At("RETURN"))
     private void onConstruct(ClientWorld clientWorldIn, int viewDistance, CallbackInfo ci) {
-        this.cubeArray = new ClientChunkProviderCubeArray(adjustCubeViewDistance(viewDistance), cube -> {});
+        int cubeViewDistance = adjustCubeViewDistance(viewDistance);
+        this.cubeArray = new ClientChunkProviderCubeArray(cubeViewDistance, cubeViewDistance, cube -> {});
         this.emptyCube = new EmptyCube(world);
     }
 
@@ -53,6 +56,10 @@ public abstract class MixinClientChunkProvider implements IClientCubeProvider {
         return Math.max(2, Coords.sectionToCubeCeil(viewDistance)) + 3;
     }
 
+    private int adjustCubeVerticalViewDistance(int cubeViewDistance) {
+        return this.serverVerticalViewDistance <= 0 ? cubeViewDistance : this.serverVerticalViewDistance + 3;
+    }
+
     private static boolean isCubeValid(@Nullable BigCube cube, int x, int y, int z) {
         if (cube == null) {
             return false;
@@ -133,14 +140,22 @@ public abstract class MixinClientChunkProvider implements IClientCubeProvider {
         this.cubeArray.centerZ = Coords.sectionToCube(sectionZ);
     }
 
+    @Override public void setVerticalViewDistance(int verticalViewDistance) {
+        this.serverVerticalViewDistance = verticalViewDistance;
+        this.resizeCubeArray(this.cubeArray.viewDistance, adjustCubeVerticalViewDistance(this.cubeArray.viewDistance));
+    }
+
     @Inject(method = "setViewDistance", at = @At("HEAD"))
     private void setViewDistance(int viewDistance, CallbackInfo ci) {
-        int old = this.cubeArray.viewDistance;
         int newDist = adjustCubeViewDistance(viewDistance);
-        if (old == newDist) {
+        this.resizeCubeArray(newDist, adjustCubeVerticalViewDistance(newDist));
+    }
+
+    private void resizeCubeArray(int newDist, int newVerticalDist) {
+        if (this.cubeArray.viewDistance == newDist && this.cubeArray.verticalViewDistance == newVerticalDist) {
             return;
         }
-        ClientChunkProviderCubeArray array = new ClientChunkProviderCubeArray(newDist, cube->{});
+        ClientChunkProviderCubeArray array = new ClientChunkProviderCubeArray(newDist, newVerticalDist, cube->{});
         array.centerX = this.cubeArray.centerX;
         array.centerY = this.cubeArray.centerY;
         array.centerZ = this.cubeArray.centerZ;
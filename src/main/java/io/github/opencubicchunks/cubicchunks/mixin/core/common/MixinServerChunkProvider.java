@@ -1,7 +1,6 @@
 package io.github.opencubicchunks.cubicchunks.mixin.core.common;
 
 import com.mojang.datafixers.util.Either;
-import io.github.opencubicchunks.cubicchunks.CubicChunks;
 import io.github.opencubicchunks.cubicchunks.chunk.IChunkManager;
 import io.github.opencubicchunks.cubicchunks.chunk.IBigCube;
 import io.github.opencubicchunks.cubicchunks.chunk.ICubeHolder;
@@ -9,15 +8,20 @@ import io.github.opencubicchunks.cubicchunks.chunk.cube.BigCube;
 import io.github.opencubicchunks.cubicchunks.chunk.cube.CubeStatus;
 import io.github.opencubicchunks.cubicchunks.chunk.graph.CCTicketType;
 import io.github.opencubicchunks.cubicchunks.chunk.ticket.ITicketManager;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLookupCache;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.mixin.access.common.ChunkManagerAccess;
 import io.github.opencubicchunks.cubicchunks.server.IServerChunkProvider;
 import io.github.opencubicchunks.cubicchunks.utils.Coords;
 import io.github.opencubicchunks.cubicchunks.world.lighting.ICubeLightProvider;
+import io.github.opencubicchunks.cubicchunks.world.storage.CubeIOExecutor;
+import io.github.opencubicchunks.cubicchunks.world.storage.SectionBlobStore;
 import net.minecraft.profiler.IProfiler;
 import net.minecraft.util.Util;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.SectionPos;
 import net.minecraft.world.IBlockReader;
+import net.minecraft.world.LightType;
 import net.minecraft.world.chunk.ChunkStatus;
 import net.minecraft.world.server.ChunkHolder;
 import net.minecraft.world.server.ChunkManager;
@@ -31,10 +35,10 @@ import org.spongepowered.asm.mixin.Overwrite;
 import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.Redirect;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -57,9 +61,9 @@ public abstract class MixinServerChunkProvider implements IServerChunkProvider,
     @Shadow public abstract int getLoadedChunkCount();
 
     @Shadow @Final private static List<ChunkStatus> field_217239_c;
-    private final long[] recentCubePositions = new long[4];
-    private final ChunkStatus[] recentCubeStatuses = new ChunkStatus[4];
-    private final IBigCube[] recentCubes = new IBigCube[4];
+    // replaces the recent cubes, holders are valid for every status and can be cached on any thread
+    private final CubeLookupCache<ChunkHolder> cubeHolderCache = new CubeLookupCache<>((cubeX, cubeY, cubeZ) ->
+            ((IChunkManager) this.chunkManager).getImmutableCubeHolder(CubePos.asLong(cubeX, cubeY, cubeZ)));
 
     @Override
     public <T> void registerTicket(TicketType<T> type, CubePos pos, int distance, T value) {
@@ -79,21 +83,19 @@ public abstract class MixinServerChunkProvider implements IServerChunkProvider,
     @Override
     public IBigCube getCube(int cubeX, int cubeY, int cubeZ, ChunkStatus requiredStatus, boolean load) {
         if (Thread.currentThread() != this.mainThread) {
+            IBigCube cube = this.getCubeIfLoaded(cubeX, cubeY, cubeZ, requiredStatus);
+            if (cube != null) {
+                return cube;
+            }
             return CompletableFuture.supplyAsync(() -> {
                 return this.getCube(cubeX, cubeY, cubeZ, requiredStatus, load);
             }, this.executor).join();
         } else {
             IProfiler iprofiler = this.world.getProfiler();
             iprofiler.func_230035_c_("getCube");
-            long i = CubePos.asLong(cubeX, cubeY, cubeZ);
-
-            for(int j = 0; j < 4; ++j) {
-                if (i == this.recentCubePositions[j] && requiredStatus == this.recentCubeStatuses[j]) {
-                    IBigCube icube = this.recentCubes[j];
-                    if (icube != null || !load) {
-                        return icube;
-                    }
-                }
+            IBigCube cube = this.getCubeIfLoaded(cubeX, cubeY, cubeZ, requiredStatus);
+            if (cube != null) {
+                return cube;
             }
 
             iprofiler.func_230035_c_("getChunkCacheMiss");
@@ -110,45 +112,47 @@ public abstract class MixinServerChunkProvider implements IServerChunkProvider,
                     return null;
                 }
             });
-            this.addRecents(i, icube, requiredStatus);
             return icube;
         }
     }
 
+    @Nullable
+    @Override
+    public IBigCube getCubeIfLoaded(int cubeX, int cubeY, int cubeZ, ChunkStatus requiredStatus) {
+        ChunkHolder chunkholder = this.getImmutableCubeHolder(CubePos.asLong(cubeX, cubeY, cubeZ));
+        return chunkholder == null ? null : ((ICubeHolder) chunkholder).getCubeIfReached(requiredStatus);
+    }
+
+    // func_217232_b
+    @Override
+    public CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> getCubeAsync(int cubeX, int cubeY, int cubeZ,
+            ChunkStatus requiredStatus) {
+        if (Thread.currentThread() == this.mainThread) {
+            return this.getCubeFuture(cubeX, cubeY, cubeZ, requiredStatus, true);
+        }
+        // a holder already loading the cube up to the status doesn't need a ticket from the main thread
+        ChunkHolder chunkholder = this.getImmutableCubeHolder(CubePos.asLong(cubeX, cubeY, cubeZ));
+        if (chunkholder != null) {
+            CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> future =
+                    ((ICubeHolder) chunkholder).getFutureHigherThanCubeStatus(requiredStatus);
+            Either<IBigCube, ChunkHolder.IChunkLoadingError> either = future.getNow(null);
+            // missing and unloaded futures are complete with an error
+            if (either == null || either.left().isPresent()) {
+                return future;
+            }
+        }
+        return CompletableFuture.supplyAsync(() -> this.getCubeFuture(cubeX, cubeY, cubeZ, requiredStatus, true), this.executor)
+                .thenCompose(future -> future);
+    }
+
     @Nullable
     public BigCube getCubeNow(int cubeX, int cubeY, int cubeZ) {
         if (Thread.currentThread() != this.mainThread) {
             return null;
         } else {
             this.world.getProfiler().func_230035_c_("getChunkNow");
-            long posAsLong = CubePos.asLong(cubeX, cubeY, cubeZ);
-
-            for(int j = 0; j < 4; ++j) {
-                if (posAsLong == this.recentCubePositions[j] && this.recentCubeStatuses[j] == ChunkStatus.FULL) {
-                    IBigCube icube = this.recentCubes[j];
-                    return icube instanceof BigCube ? (BigCube)icube : null;
-                }
-            }
-
-            ChunkHolder chunkholder = this.getImmutableCubeHolder(posAsLong);
-            if (chunkholder == null) {
-                return null;
-            } else {
-                Either<IBigCube, ChunkHolder.IChunkLoadingError> either =
-                        ((ICubeHolder)chunkholder).getFutureHigherThanCubeStatus(ChunkStatus.FULL).getNow(null);
-                if (either == null) {
-                    return null;
-                } else {
-                    IBigCube icube1 = either.left().orElse(null);
-                    if (icube1 != null) {
-                        this.addRecents(posAsLong, icube1, ChunkStatus.FULL);
-                        if (icube1 instanceof BigCube) {
-                            return (BigCube)icube1;
-                        }
-                    }
-                    return null;
-                }
-            }
+            IBigCube icube = this.getCubeIfLoaded(cubeX, cubeY, cubeZ, ChunkStatus.FULL);
+            return icube instanceof BigCube ? (BigCube)icube : null;
         }
     }
 
@@ -184,22 +188,10 @@ public abstract class MixinServerChunkProvider implements IServerChunkProvider,
     }
 
     //func_217213_a
+    @Nullable
     private ChunkHolder getImmutableCubeHolder(long cubePosIn)
     {
-        return ((IChunkManager)this.chunkManager).getImmutableCubeHolder(cubePosIn);
-    }
-
-    // func_225315_a
-    private void addRecents(long newPositionIn, IBigCube newCubeIn, ChunkStatus newStatusIn) {
-        for(int i = 3; i > 0; --i) {
-            this.recentCubePositions[i] = this.recentCubePositions[i - 1];
-            this.recentCubeStatuses[i] = this.recentCubeStatuses[i - 1];
-            this.recentCubes[i] = this.recentCubes[i - 1];
-        }
-
-        this.recentCubePositions[0] = newPositionIn;
-        this.recentCubeStatuses[0] = newStatusIn;
-        this.recentCubes[0] = newCubeIn;
+        return this.cubeHolderCache.get(CubePos.extractX(cubePosIn), CubePos.extractY(cubePosIn), CubePos.extractZ(cubePosIn));
     }
 
     @Inject(method = "func_217235_l", at = @At(value = "INVOKE", target = "Lnet/minecraft/world/server/ServerChunkProvider;invalidateCaches()V"))
@@ -221,16 +213,14 @@ public abstract class MixinServerChunkProvider implements IServerChunkProvider,
     }
 
     private void invalidateCubeCaches() {
-        Arrays.fill(this.recentCubePositions, CubicChunks.SECTIONPOS_SENTINEL);
-        Arrays.fill(this.recentCubeStatuses, (Object)null);
-        Arrays.fill(this.recentCubes, (Object)null);
+        CubeLookupCache.invalidateAll();
     }
 
     @Override
     @Nullable
     public IBlockReader getCubeForLight(int sectionX, int sectionY, int sectionZ) {
         long cubePosAsLong = CubePos.of(Coords.sectionToCube(sectionX), Coords.sectionToCube(sectionY), Coords.sectionToCube(sectionZ)).asLong();
-        ChunkHolder chunkholder = ((IChunkManager)this.chunkManager).getImmutableCubeHolder(cubePosAsLong);
+        ChunkHolder chunkholder = this.getImmutableCubeHolder(cubePosAsLong);
         if (chunkholder == null) {
             return null;
         } else {
@@ -264,6 +254,24 @@ public abstract class MixinServerChunkProvider implements IServerChunkProvider,
         }
     }
 
+    // markLightChanged
+    @Redirect(method = "markLightChanged", at = @At(value = "INVOKE",
+            target = "Lnet/minecraft/world/server/ServerChunkProvider$ChunkExecutor;execute(Ljava/lang/Runnable;)V"))
+    private void onMarkLightChanged(ServerChunkProvider.ChunkExecutor executor, Runnable task, LightType type, SectionPos pos) {
+        // light is saved with the cube, so a lit cube has to be saved again when its light changes. Done by the vanilla task, so a light
+        // change still posts a single task to the server thread
+        executor.execute(() -> {
+            task.run();
+            ChunkHolder cubeHolder = this.getImmutableCubeHolder(CubePos.from(pos).asLong());
+            if (cubeHolder != null) {
+                IBigCube cube = ((ICubeHolder) cubeHolder).getCurrentCubeFuture().getNow(null);
+                if (cube != null && cube.hasCubeLight()) {
+                    cube.setDirty(true);
+                }
+            }
+        });
+    }
+
     @Inject(method = "tickChunks",
             at = @At(value = "INVOKE", target = "Lnet/minecraft/world/server/ChunkManager;getLoadedChunksIterable()Ljava/lang/Iterable;"))
     private void tickSections(CallbackInfo ci) {
@@ -286,7 +294,12 @@ public abstract class MixinServerChunkProvider implements IServerChunkProvider,
      */
     @Overwrite
     public String makeString() {
-        return "ServerChunkCache: " + this.getLoadedChunkCount() + " | " + ((IChunkManager) chunkManager).getLoadedCubeCount();
+        CubeIOExecutor cubeIO = ((IChunkManager) chunkManager).getCubeIOExecutor();
+        SectionBlobStore blobStore = ((IChunkManager) chunkManager).getRegionCubeIO().getSectionBlobStore();
+        return "ServerChunkCache: " + this.getLoadedChunkCount() + " | " + ((IChunkManager) chunkManager).getLoadedCubeCount()
+                + " | IO: " + cubeIO.getQueueDepth() + " queued, " + String.format("%.1f", cubeIO.getAverageLatencyMillis()) + "ms"
+                + " | Gen: " + ((IChunkManager) chunkManager).getCubeGenerationScheduler().getWaitingCount() + " waiting"
+                + " | Dedup: " + blobStore.getBlobCount() + " blobs, " + String.format("%.2f", blobStore.getDeduplicationRatio()) + "x";
     }
 
 }
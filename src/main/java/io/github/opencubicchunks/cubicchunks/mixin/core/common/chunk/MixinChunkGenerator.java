@@ -27,9 +27,12 @@ import java.util.Random;
 @Mixin(ChunkGenerator.class)
 public class MixinChunkGenerator implements ICubeGenerator {
 
-    private OctavesNoiseGenerator gen1 = new OctavesNoiseGenerator(new SharedSeedRandom(42), 3, 0);
-    private OctavesNoiseGenerator gen2 = new OctavesNoiseGenerator(new SharedSeedRandom(4242), 3, 0);
-    private OctavesNoiseGenerator gen3 = new OctavesNoiseGenerator(new SharedSeedRandom(424242), 3, 0);
+    // cubes are generated on several threads, each gets its own generators with the same seeds
+    private final ThreadLocal<OctavesNoiseGenerator[]> noiseGenerators = ThreadLocal.withInitial(() -> new OctavesNoiseGenerator[] {
+            new OctavesNoiseGenerator(new SharedSeedRandom(42), 3, 0),
+            new OctavesNoiseGenerator(new SharedSeedRandom(4242), 3, 0),
+            new OctavesNoiseGenerator(new SharedSeedRandom(424242), 3, 0)
+    });
 
     @Inject(method = "generateStructures", at = @At("HEAD"), cancellable = true)
     public void onGenerateStructures(BiomeManager p_227058_1_, IChunk p_227058_2_, ChunkGenerator<?> p_227058_3_, TemplateManager p_227058_4_,
@@ -55,6 +58,10 @@ public class MixinChunkGenerator implements ICubeGenerator {
     public void makeBase(IWorld worldIn, IBigCube cube) {
         // noiseAt = getValue2D(x, z, yDiscontinuityDistance, maxYDiscontinuityFactor)
         // getValue = getValue3D(x, y, z, yDiscontinuityDistance, maxYDiscontinuityFactor, allowYFarlands)
+        OctavesNoiseGenerator[] generators = this.noiseGenerators.get();
+        OctavesNoiseGenerator gen1 = generators[0];
+        OctavesNoiseGenerator gen2 = generators[1];
+        OctavesNoiseGenerator gen3 = generators[2];
         for (int dx = 0; dx < IBigCube.BLOCK_SIZE; dx++) {
             int blockX = cube.getCubePos().minCubeX() + dx;
             for (int dz = 0; dz < IBigCube.BLOCK_SIZE; dz++) {
@@ -89,6 +96,7 @@ public class MixinChunkGenerator implements ICubeGenerator {
         int yEnd = Coords.cubeToMinBlock(mainCubeY);
 
         Random r = new Random(mainCubeX * 678321 + mainCubeZ * 56392 + mainCubeY * 32894345);
+        OctavesNoiseGenerator gen1 = this.noiseGenerators.get()[0];
         int treeCount = Math.abs((int) (gen1.getValue(mainCubeX * 0.00354, 8765, mainCubeZ * 0.00354, 0, 0, false) * 12*50));
         for (int i = 0; i < treeCount; i++) {
             int x = Coords.cubeToMinBlock(mainCubeX) + r.nextInt(IBigCube.BLOCK_SIZE);
@@ -35,9 +35,7 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.Redirect;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReferenceArray;
@@ -133,6 +131,16 @@ public abstract class MixinChunkHolder implements ICubeHolder {
         return either == null ? null : either.left().orElse(null);
     }
 
+    @Nullable
+    @Override
+    public IBigCube getCubeIfReached(ChunkStatus status) {
+        if (!ICubeHolder.getCubeStatusFromLevel(this.chunkLevel).isAtLeast(status)) {
+            return null;
+        }
+        Either<IBigCube, ChunkHolder.IChunkLoadingError> either = this.getCubeFuture(status).getNow(null);
+        return either == null ? null : either.left().orElse(null);
+    }
+
     @Override
     public CompletableFuture<Either<BigCube, ChunkHolder.IChunkLoadingError>> getCubeEntityTickingFuture() {
         return this.entityTickingFuture;
@@ -158,9 +166,6 @@ public abstract class MixinChunkHolder implements ICubeHolder {
     }
 
 
-    private AtomicReferenceArray<ArrayList<BiConsumer<Either<IBigCube, ChunkHolder.IChunkLoadingError>, Throwable>>> listenerLists = new AtomicReferenceArray<>(ChunkStatus.getAll().size());
-
-
     // func_219276_a
     @Redirect(method = "func_219276_a", at = @At(
             value = "INVOKE",
@@ -191,28 +196,14 @@ public abstract class MixinChunkHolder implements ICubeHolder {
         return createChunkFuture(chunkStatus, chunkManager);
     }
 
+    @Override
     public void addCubeStageListener(ChunkStatus status, BiConsumer<Either<IBigCube, ChunkHolder.IChunkLoadingError>, Throwable> consumer, ChunkManager chunkManager) {
         CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> future = createChunkFuture(status, chunkManager);
-
-        if (future.isDone()) {
+        // once the status is reached, skip creating a completion that would only be run right away
+        if (future.isDone() && !future.isCompletedExceptionally()) {
             consumer.accept(future.getNow(null), null);
         } else {
-            List<BiConsumer<Either<IBigCube, ChunkHolder.IChunkLoadingError>, Throwable>> listenerList = this.listenerLists.get(status.ordinal());
-            if (listenerList == null) {
-
-                final ArrayList<BiConsumer<Either<IBigCube, ChunkHolder.IChunkLoadingError>, Throwable>> listeners = new ArrayList<>();
-                future.whenComplete((either, throwable) -> {
-                    for (BiConsumer<Either<IBigCube, ChunkHolder.IChunkLoadingError>, Throwable> listener : listeners) {
-                        listener.accept(either, throwable);
-                    }
-                    listeners.clear();
-                    listeners.trimToSize();
-                });
-                this.listenerLists.set(status.ordinal(), listeners);
-                listenerList = listeners;
-            }
-
-            listenerList.add(consumer);
+            future.whenComplete(consumer);
         }
     }
 
@@ -3,13 +3,12 @@ package io.github.opencubicchunks.cubicchunks.mixin.core.common.chunk;
 import static io.github.opencubicchunks.cubicchunks.utils.Coords.sectionToCube;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
 import com.mojang.datafixers.DataFixer;
 import com.mojang.datafixers.util.Either;
-import io.github.opencubicchunks.cubicchunks.CubicChunks;
 import io.github.opencubicchunks.cubicchunks.chunk.CubeCollectorFuture;
+import io.github.opencubicchunks.cubicchunks.chunk.CubeGenerationScheduler;
 import io.github.opencubicchunks.cubicchunks.chunk.IChunkManager;
 import io.github.opencubicchunks.cubicchunks.chunk.IBigCube;
 import io.github.opencubicchunks.cubicchunks.chunk.ICubeHolder;
@@ -22,18 +21,26 @@ import io.github.opencubicchunks.cubicchunks.chunk.graph.CCTicketType;
 import io.github.opencubicchunks.cubicchunks.chunk.ticket.CubeTaskPriorityQueue;
 import io.github.opencubicchunks.cubicchunks.chunk.ticket.CubeTaskPriorityQueueSorter;
 import io.github.opencubicchunks.cubicchunks.chunk.ticket.ITicketManager;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLoadShape;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLookupCache;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeViewDelta;
 import io.github.opencubicchunks.cubicchunks.chunk.util.Utils;
+import io.github.opencubicchunks.cubicchunks.meta.EarlyConfig;
 import io.github.opencubicchunks.cubicchunks.mixin.access.common.EntityTrackerAccess;
 import io.github.opencubicchunks.cubicchunks.network.PacketCubes;
 import io.github.opencubicchunks.cubicchunks.network.PacketDispatcher;
 import io.github.opencubicchunks.cubicchunks.network.PacketUnloadCube;
 import io.github.opencubicchunks.cubicchunks.network.PacketUpdateCubePosition;
 import io.github.opencubicchunks.cubicchunks.network.PacketUpdateLight;
+import io.github.opencubicchunks.cubicchunks.network.PacketUpdateVerticalViewDistance;
+import io.github.opencubicchunks.cubicchunks.utils.ConcurrentLong2ObjectMap;
 import io.github.opencubicchunks.cubicchunks.utils.Coords;
 import io.github.opencubicchunks.cubicchunks.world.server.IServerWorld;
 import io.github.opencubicchunks.cubicchunks.world.server.IServerWorldLightManager;
+import io.github.opencubicchunks.cubicchunks.world.storage.CubeIOExecutor;
 import io.github.opencubicchunks.cubicchunks.world.storage.CubeSerializer;
+import io.github.opencubicchunks.cubicchunks.world.storage.RegionCubeIO;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
@@ -111,12 +118,13 @@ public abstract class MixinChunkManager implements IChunkManager {
 
     private CubeTaskPriorityQueueSorter cubeTaskPriorityQueueSorter;
 
-    private final Long2ObjectLinkedOpenHashMap<ChunkHolder> loadedCubes = new Long2ObjectLinkedOpenHashMap<>();
-    private volatile Long2ObjectLinkedOpenHashMap<ChunkHolder> immutableLoadedCubes = this.loadedCubes.clone();
+    // written on the main thread only, workers read it directly instead of an immutable copy
+    private final ConcurrentLong2ObjectMap<ChunkHolder> loadedCubes = new ConcurrentLong2ObjectMap<>();
 
     private final LongSet unloadableCubes = new LongOpenHashSet();
     private final LongSet loadedCubePositions = new LongOpenHashSet();
-    private final Long2ObjectLinkedOpenHashMap<ChunkHolder> cubesToUnload = new Long2ObjectLinkedOpenHashMap<>();
+    // the same type as loadedCubes, setCubeLevel is copied from vanilla and all of its maps are redirected to this class
+    private final ConcurrentLong2ObjectMap<ChunkHolder> cubesToUnload = new ConcurrentLong2ObjectMap<>();
 
     // field_219264_r
     private ITaskExecutor<CubeTaskPriorityQueueSorter.FunctionEntry<Runnable>> worldgenExecutor;
@@ -127,12 +135,15 @@ public abstract class MixinChunkManager implements IChunkManager {
 
     private final Queue<Runnable> saveCubeTasks = Queues.newConcurrentLinkedQueue();
 
+    private RegionCubeIO regionCubeIO;
+    private CubeIOExecutor cubeIOExecutor;
+    private CubeGenerationScheduler cubeGenerationScheduler;
+    @Nullable private CubeLoadShape viewShape;
+
     @Shadow @Final private static Logger LOGGER;
 
     @Shadow @Final private ServerWorldLightManager lightManager;
 
-    @Shadow private boolean immutableLoadedChunksDirty;
-
     @Shadow @Final private ChunkManager.ProxyTicketManager ticketManager;
 
     @Shadow @Final private ServerWorld world;
@@ -179,6 +190,19 @@ public abstract class MixinChunkManager implements IChunkManager {
 
         ((IServerWorldLightManager)this.lightManager).postConstructorSetup(this.cubeTaskPriorityQueueSorter,
                 this.cubeTaskPriorityQueueSorter.createExecutor(delegatedtaskexecutor1, false));
+
+        // loads and saves of all dimensions share one pool, so the configured threads bound all cube I/O, and the same for generation
+        this.regionCubeIO = new RegionCubeIO(this.dimensionDirectory.toPath(),
+                CubeIOExecutor.createShared("Cube IO Worker", EarlyConfig.getCubeIOThreads()));
+        this.cubeIOExecutor = CubeIOExecutor.createShared("Cube IO Worker", EarlyConfig.getCubeIOThreads());
+        this.cubeGenerationScheduler = CubeGenerationScheduler.createShared("Cube Generation Worker", EarlyConfig.getCubeGenerationThreads());
+    }
+
+    @Inject(method = "close", at = @At("HEAD"))
+    private void onClose(CallbackInfo ci) throws IOException {
+        this.cubeGenerationScheduler.close();
+        this.cubeIOExecutor.close();
+        this.regionCubeIO.close();
     }
 
     @Inject(method = "tick", at = @At(value = "INVOKE", target = "Lnet/minecraft/world/server/ChunkManager;scheduleUnloads(Ljava/util/function/BooleanSupplier;)V"))
@@ -197,7 +221,7 @@ public abstract class MixinChunkManager implements IChunkManager {
     protected void save(boolean flush, CallbackInfo ci) {
         if (flush) {
             List<ChunkHolder> list =
-                    this.immutableLoadedCubes.values().stream().filter(ChunkHolder::isAccessible).peek(ChunkHolder::updateAccessible).collect(
+                    this.loadedCubes.values().stream().filter(ChunkHolder::isAccessible).peek(ChunkHolder::updateAccessible).collect(
                     Collectors.toList());
             MutableBoolean savedAny = new MutableBoolean();
 
@@ -220,9 +244,14 @@ public abstract class MixinChunkManager implements IChunkManager {
 
             this.scheduleCubeUnloads(() -> true);
             //this.func_227079_i_();
+            try {
+                this.regionCubeIO.flush();
+            } catch (IOException e) {
+                LOGGER.error("Failed to flush cube region files", e);
+            }
             LOGGER.info("ThreadedAnvilChunkStorage ({}): All cubes are saved", this.dimensionDirectory.getName());
         } else {
-            this.immutableLoadedCubes.values().stream().filter(ChunkHolder::isAccessible).forEach((cubeHolder) -> {
+            this.loadedCubes.values().stream().filter(ChunkHolder::isAccessible).forEach((cubeHolder) -> {
                 IBigCube cube = ((ICubeHolder) cubeHolder).getCurrentCubeFuture().getNow(null);
                 if (cube instanceof CubePrimerWrapper || cube instanceof BigCube) {
                     this.cubeSave(cube);
@@ -246,7 +275,6 @@ public abstract class MixinChunkManager implements IChunkManager {
             }
 
             // cube.setLastSaveTime(this.world.getGameTime());
-            cube.setDirty(false);
             CubePos chunkpos = cube.getCubePos();
 
             try {
@@ -263,7 +291,9 @@ public abstract class MixinChunkManager implements IChunkManager {
                 //}
 
                 this.world.getProfiler().func_230035_c_("chunkSave");
-                CubeSerializer.writeCube(world, cube, dimensionDirectory.toPath());
+                CubeSerializer.writeCube(world, cube, this.regionCubeIO);
+                // only after writing, the serializer needs to know which sections changed
+                cube.setDirty(false);
                 return true;
             } catch (Exception exception) {
                 LOGGER.error("Failed to save chunk {},{},{}", chunkpos.getX(), chunkpos.getY(), chunkpos.getZ(), exception);
@@ -276,19 +306,26 @@ public abstract class MixinChunkManager implements IChunkManager {
     private void scheduleCubeUnloads(BooleanSupplier hasMoreTime) {
         LongIterator longiterator = this.unloadableCubes.iterator();
 
+        boolean unloadedAny = false;
         for(int i = 0; longiterator.hasNext() && (hasMoreTime.getAsBoolean() || i < 200 || this.unloadableCubes.size() > 2000); longiterator.remove()) {
             long j = longiterator.nextLong();
             ChunkHolder chunkholder = this.loadedCubes.remove(j);
             if (chunkholder != null) {
                 this.cubesToUnload.put(j, chunkholder);
-                this.immutableLoadedChunksDirty = true;
+                unloadedAny = true;
                 ++i;
                 this.scheduleCubeSave(j, chunkholder);
             }
         }
+        if (unloadedAny) {
+            // otherwise other threads could keep using the cached holders of unloaded cubes until the next ticket update
+            CubeLookupCache.invalidateAll();
+        }
 
+        // save tasks only snapshot the cube and hand it to the save workers, but a large backlog still can't run in a single tick
         Runnable runnable;
-        while((hasMoreTime.getAsBoolean() || this.saveCubeTasks.size() > 2000) && (runnable = this.saveCubeTasks.poll()) != null) {
+        int overBudget = 0;
+        while ((hasMoreTime.getAsBoolean() || (this.saveCubeTasks.size() > 2000 && overBudget++ < 200)) && (runnable = this.saveCubeTasks.poll()) != null) {
             runnable.run();
         }
     }
@@ -341,7 +378,7 @@ public abstract class MixinChunkManager implements IChunkManager {
     @Override
     public ChunkHolder getImmutableCubeHolder(long cubePosIn)
     {
-        return this.immutableLoadedCubes.get(cubePosIn);
+        return this.loadedCubes.get(cubePosIn);
     }
 
     // TODO: remove when cubic chunks versions are done
@@ -387,14 +424,9 @@ public abstract class MixinChunkManager implements IChunkManager {
         }
     }
 
-    @Inject(method = "refreshOffThreadCache", at = @At(value = "INVOKE", target = "Lit/unimi/dsi/fastutil/longs/Long2ObjectLinkedOpenHashMap;clone()Lit/unimi/dsi/fastutil/longs/Long2ObjectLinkedOpenHashMap;"))
-    private void onRefreshCache(CallbackInfoReturnable<Boolean> cir) {
-        this.immutableLoadedCubes = loadedCubes.clone();
-    }
-
     @Override
     public Iterable<ChunkHolder> getLoadedCubeIterable() {
-        return Iterables.unmodifiableIterable(this.immutableLoadedCubes.values());
+        return this.loadedCubes.values();
     }
 
     //func_219244_a
@@ -456,8 +488,9 @@ public abstract class MixinChunkManager implements IChunkManager {
     //chunkGenerate
     private CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> cubeGenerate(ChunkHolder chunkHolderIn, ChunkStatus chunkStatusIn) {
         CubePos cubePos = ((ICubeHolder) chunkHolderIn).getCubePos();
+        int taskRange = CubeStatus.getCubeTaskRange(chunkStatusIn);
         CompletableFuture<Either<List<IBigCube>, ChunkHolder.IChunkLoadingError>> future =
-                this.makeFutureForStatusNeighbors(cubePos, CubeStatus.getCubeTaskRange(chunkStatusIn), (count) -> {
+                this.makeFutureForStatusNeighbors(cubePos, taskRange, (count) -> {
                     return this.getParentStatus(chunkStatusIn, count);
                 });
         this.world.getProfiler().func_230036_c_(() -> {
@@ -485,94 +518,40 @@ public abstract class MixinChunkManager implements IChunkManager {
                 return CompletableFuture.completedFuture(Either.right(p_219211_2_));
             });
         }, (runnable) -> {
-            this.worldgenExecutor.enqueue(CubeTaskPriorityQueueSorter.createMsg(chunkHolderIn, runnable));
+            // the worldgen executor picks the next cube by priority, the scheduler generates cubes that don't share neighbours in parallel
+            this.worldgenExecutor.enqueue(CubeTaskPriorityQueueSorter.createAsyncMsg(chunkHolderIn, () ->
+                    this.cubeGenerationScheduler.submit(cubePos.asLong(), taskRange, runnable)));
         });
     }
 
     // func_219236_a
     private CompletableFuture<Either<List<IBigCube>, ChunkHolder.IChunkLoadingError>> makeFutureForStatusNeighbors(
             CubePos pos, int radius, IntFunction<ChunkStatus> getParentStatus) {
-        List<CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>>> list = Lists.newArrayList();
         int x = pos.getX();
         int y = pos.getY();
         int z = pos.getZ();
+        CubeCollectorFuture collectorFuture = new CubeCollectorFuture(pos, radius);
 
-        int requiredAreaLength = (2*radius + 1);
-        int requiredCubeCount = requiredAreaLength * requiredAreaLength * requiredAreaLength;
-        CubeCollectorFuture collectorFuture = new CubeCollectorFuture(requiredCubeCount);
-
-        // to index: x*d*d + y*d + z
-        // extract x: index/(d*d)
-        // extract y: (index/d) % d
-        // extract z: index % d
-        int cubeIdx = 0;
         for (int dx = -radius; dx <= radius; ++dx) {
             for (int dy = -radius; dy <= radius; ++dy) {
                 for (int dz = -radius; dz <= radius; ++dz) {
-
-                    // determine the required cube's position
-                    int distance = Math.max(Math.max(Math.abs(dz), Math.abs(dx)), Math.abs(dy));
-                    final CubePos cubePos = CubePos.of(x + dx, y + dy, z + dz);
-                    long posLong = cubePos.asLong();
+                    int idx = collectorFuture.index(dx, dy, dz);
 
                     // get the required cube's chunk holder
-                    ICubeHolder chunkholder = (ICubeHolder) this.getLoadedSection(posLong);
+                    ICubeHolder chunkholder = (ICubeHolder) this.getLoadedSection(CubePos.asLong(x + dx, y + dy, z + dz));
                     if (chunkholder == null) {
-                        //noinspection MixinInnerClass
-                        return CompletableFuture.completedFuture(Either.right(new ChunkHolder.IChunkLoadingError() {
-                            public String toString() {
-                                return "Unloaded " + cubePos.toString();
-                            }
-                        }));
+                        return collectorFuture.addUnloaded(idx);
                     }
 
-                    final int idx2 = cubeIdx;
+                    int distance = Math.max(Math.max(Math.abs(dz), Math.abs(dx)), Math.abs(dy));
                     ChunkStatus parentStatus = getParentStatus.apply(distance);
 
-
-
-                    if (CubicChunks.OPTIMIZED_CUBELOAD) {
-                        chunkholder.addCubeStageListener(parentStatus, (either, error) -> {
-                            collectorFuture.add(idx2, either, error);
-                        }, Utils.unsafeCast(this));
-                    } else {
-                        CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> future =
-                                chunkholder.createCubeFuture(parentStatus, Utils.unsafeCast(this));
-                        future.whenComplete((either, error) -> collectorFuture.add(idx2, either, error));
-                    }
-                    ++cubeIdx;
+                    chunkholder.addCubeStageListener(parentStatus, (either, error) -> collectorFuture.add(idx, either, error),
+                            Utils.unsafeCast(this));
                 }
             }
         }
-
-//        CompletableFuture<List<Either<IBigCube, ChunkHolder.IChunkLoadingError>>> futures = Util.gather(list);
-        return collectorFuture.thenApply((cubeEithers) -> {
-            List<IBigCube> returnFutures = Lists.newArrayList();
-            int i = 0;
-
-            for (final Either<IBigCube, ChunkHolder.IChunkLoadingError> either : cubeEithers) {
-                Optional<IBigCube> optional = either.left();
-                if (!optional.isPresent()) {
-                    final int d = radius * 2 + 1;
-                    final int idx = i;
-                    //noinspection MixinInnerClass
-                    return Either.right(new ChunkHolder.IChunkLoadingError() {
-                        public String toString() {
-                            return "Unloaded " + CubePos.of(
-                                    x + idx / (d * d),
-                                    y + (idx / d) % d,
-                                    z + idx % d) + " " + either.right().get()
-                                    .toString();
-                        }
-                    });
-                }
-
-                returnFutures.add(optional.get());
-                ++i;
-            }
-
-            return Either.left(returnFutures);
-        });
+        return collectorFuture;
     }
 
     // func_219209_c
@@ -602,6 +581,10 @@ public abstract class MixinChunkManager implements IChunkManager {
                             prevCube.getCubeSections(), null);
 
                     cube.setCubeStatus(prevCube.getCubeStatus());
+                    // keep the primer's dirty state, so a cube that didn't change since it was loaded isn't saved again
+                    cube.setDirty(prevCube.isDirty());
+                    cube.getDirtySections().clear();
+                    cube.getDirtySections().or(prevCube.getDirtySections());
                     ((ICubeHolder) holder).onCubeWrapperCreated(new CubePrimerWrapper(cube));
                 }
 
@@ -695,14 +678,9 @@ public abstract class MixinChunkManager implements IChunkManager {
 
     //chunkLoad
     private CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> cubeLoad(CubePos cubePos) {
-        return CompletableFuture.supplyAsync(() -> {
+        return this.cubeIOExecutor.<CubeSerializer.LoadedCube>submit(cubePos.asLong(), () -> {
             try {
-                this.world.getProfiler().func_230035_c_("cubeLoad");
-
-                IBigCube icube = CubeSerializer.loadCube(world, cubePos, this.dimensionDirectory.toPath());
-                if(icube != null)
-                    return Either.left(icube);
-
+                return CubeSerializer.loadCube(world, cubePos, this.regionCubeIO);
             } catch (ReportedException reportedexception) {
                 Throwable throwable = reportedexception.getCause();
                 if (!(throwable instanceof IOException)) {
@@ -714,7 +692,12 @@ public abstract class MixinChunkManager implements IChunkManager {
                 LOGGER.error("Couldn't load cube {}", cubePos, exception);
             }
 
-            return Either.left(new CubePrimer(cubePos, null));
+            return null;
+        }).thenApplyAsync((loadedCube) -> {
+            this.world.getProfiler().func_230035_c_("cubeLoad");
+            // the stored light is handed to the light engine here, on the server thread
+            IBigCube icube = loadedCube == null ? new CubePrimer(cubePos, null) : loadedCube.finish(this.world);
+            return Either.<IBigCube, ChunkHolder.IChunkLoadingError>left(icube);
         }, this.mainThread);
     }
 
@@ -722,64 +705,28 @@ public abstract class MixinChunkManager implements IChunkManager {
     @Override
     public CompletableFuture<Either<List<IBigCube>, ChunkHolder.IChunkLoadingError>> createCubeRegionFuture(CubePos pos, int r,
                                                                                                             IntFunction<ChunkStatus> getTargetStatus) {
-        List<CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>>> list = Lists.newArrayList();
         int x = pos.getX();
         int y = pos.getY();
         int z = pos.getZ();
-
+        CubeCollectorFuture collectorFuture = new CubeCollectorFuture(pos, r);
 
         for (int dx = -r; dx <= r; ++dx) {
             for (int dy = -r; dy <= r; ++dy) {
                 for (int dz = -r; dz <= r; ++dz) {
-                    int distance = Math.max(Math.max(Math.abs(dz), Math.abs(dx)), Math.abs(dy));
-                    final CubePos cubePos = CubePos.of(x + dz, y + dy, z + dx);
-                    long posLong = cubePos.asLong();
-                    ChunkHolder chunkholder = this.getLoadedSection(posLong);
+                    int idx = collectorFuture.index(dx, dy, dz);
+                    ChunkHolder chunkholder = this.getLoadedSection(CubePos.asLong(x + dx, y + dy, z + dz));
                     if (chunkholder == null) {
-                        //noinspection MixinInnerClass
-                        return CompletableFuture.completedFuture(Either.right(new ChunkHolder.IChunkLoadingError() {
-                            public String toString() {
-                                return "Unloaded " + cubePos.toString();
-                            }
-                        }));
+                        return collectorFuture.addUnloaded(idx);
                     }
 
+                    int distance = Math.max(Math.max(Math.abs(dz), Math.abs(dx)), Math.abs(dy));
                     ChunkStatus chunkstatus = getTargetStatus.apply(distance);
-                    CompletableFuture<Either<IBigCube, ChunkHolder.IChunkLoadingError>> completablefuture =
-                            ((ICubeHolder) chunkholder).createCubeFuture(chunkstatus,
-                                    (ChunkManager) (Object) this);
-                    list.add(completablefuture);
+                    ((ICubeHolder) chunkholder).addCubeStageListener(chunkstatus, (either, error) -> collectorFuture.add(idx, either, error),
+                            (ChunkManager) (Object) this);
                 }
             }
         }
-
-        CompletableFuture<List<Either<IBigCube, ChunkHolder.IChunkLoadingError>>> completablefuture1 = Util.gather(list);
-        return completablefuture1.thenApply((eitherISectionError) -> {
-            List<IBigCube> list1 = Lists.newArrayList();
-            int k1 = 0;
-
-            for (final Either<IBigCube, ChunkHolder.IChunkLoadingError> either : eitherISectionError) {
-                Optional<IBigCube> optional = either.left();
-                if (!optional.isPresent()) {
-                    final int l1 = k1;
-                    //noinspection MixinInnerClass
-                    return Either.right(new ChunkHolder.IChunkLoadingError() {
-                        public String toString() {
-                            int d = r * 2 + 1;
-                            return "Unloaded " + CubePos.of(
-                                    x + l1 / (d * d),
-                                    y + (l1 / d) % d,
-                                    z + l1 % d) + " " + either.right()
-                                    .get().toString();
-                        }
-                    });
-                }
-                list1.add(optional.get());
-                ++k1;
-            }
-
-            return Either.left(list1);
-        });
+        return collectorFuture;
     }
 
     // func_219220_a
@@ -790,15 +737,9 @@ public abstract class MixinChunkManager implements IChunkManager {
 
     // getTrackingPlayers
     public Stream<ServerPlayerEntity> getCubeTrackingPlayers(CubePos pos, boolean boundaryOnly) {
-        int viewDistanceCubes = Coords.sectionToCubeRenderDistance(this.viewDistance);
-        return this.playerGenerationTracker.getGeneratingPlayers(pos.asLong()).filter((serverPlayerEntity) -> {
-            int i = IChunkManager.getCubeChebyshevDistance(pos, serverPlayerEntity, true);
-            if (i > viewDistanceCubes) {
-                return false;
-            } else {
-                return !boundaryOnly || i == viewDistanceCubes;
-            }
-        });
+        CubeLoadShape viewShape = this.getViewShape();
+        return this.playerGenerationTracker.getGeneratingPlayers(pos.asLong())
+                .filter((serverPlayerEntity) -> IChunkManager.isCubeInView(viewShape, pos, serverPlayerEntity, boundaryOnly));
     }
 
     /**
@@ -815,6 +756,7 @@ public abstract class MixinChunkManager implements IChunkManager {
         if (track) {
             this.playerGenerationTracker.addPlayer(CubePos.of(xFloor, yFloor, zFloor).asChunkPos().asLong(), player, cannotGenerateChunks);
             this.sendPlayerCubePositionPacket(player); //This also sends the vanilla packet, as player#ManagedSectionPos is changed in this method.
+            PacketDispatcher.sendTo(new PacketUpdateVerticalViewDistance(this.getViewShape().getVerticalRadius()), player);
             if (!cannotGenerateChunks) {
                 this.ticketManager.updatePlayerPosition(SectionPos.from(player), player); //Vanilla
                 ((ITicketManager)this.ticketManager).updateCubePlayerPosition(CubePos.from(SectionPos.from(player)), player);
@@ -840,15 +782,8 @@ public abstract class MixinChunkManager implements IChunkManager {
             }
         }
         //CC
-        int viewDistanceCubes = Coords.sectionToCubeRenderDistance(this.viewDistance);
-        for (int ix = xFloor - viewDistanceCubes; ix <= xFloor + viewDistanceCubes; ++ix) {
-            for (int iy = yFloor - viewDistanceCubes; iy <= yFloor + viewDistanceCubes; ++iy) {
-                for (int iz = zFloor - viewDistanceCubes; iz <= zFloor + viewDistanceCubes; ++iz) {
-                    CubePos cubePos = CubePos.of(ix, iy, iz);
-                    this.setCubeLoadedAtClient(player, cubePos, new Object[2], !track, track);
-                }
-            }
-        }
+        CubeViewDelta.forEachInView(xFloor, yFloor, zFloor, this.getViewShape(),
+                cubePos -> this.setCubeLoadedAtClient(player, cubePos, null, !track, track));
     }
 
     //@Inject(method = "updatePlayerPosition", at = @At(value = "INVOKE", target = "Lnet/minecraft/util/math/MathHelper;floor(D)I", ordinal = 0),
@@ -915,8 +850,6 @@ public abstract class MixinChunkManager implements IChunkManager {
                 this.playerGenerationTracker.updatePlayerPosition(managedSectionPosLong, newSectionPosLong, player);
             }
         }
-        int viewDistanceCubes = Coords.sectionToCubeRenderDistance(this.viewDistance);
-
         int newCubeX = Coords.getCubeXForEntity(player);
         int newCubeY = Coords.getCubeYForEntity(player);
         int newCubeZ = Coords.getCubeZForEntity(player);
@@ -925,45 +858,9 @@ public abstract class MixinChunkManager implements IChunkManager {
         int managedY = cubePosManaged.getY();
         int managedZ = cubePosManaged.getZ();
 
-        if (Math.abs(managedX - newCubeX) <= viewDistanceCubes * 2 &&
-                Math.abs(managedY - newCubeY) <= viewDistanceCubes * 2 &&
-                Math.abs(managedZ - newCubeZ) <= viewDistanceCubes * 2) {
-            int minX = Math.min(newCubeX, managedX) - viewDistanceCubes;
-            int minY = Math.min(newCubeY, managedY) - viewDistanceCubes;
-            int minZ = Math.min(newCubeZ, managedZ) - viewDistanceCubes;
-            int maxX = Math.max(newCubeX, managedX) + viewDistanceCubes;
-            int maxY = Math.max(newCubeY, managedY) + viewDistanceCubes;
-            int maxZ = Math.max(newCubeZ, managedZ) + viewDistanceCubes;
-
-            for (int ix = minX; ix <= maxX; ++ix) {
-                for (int iz = minZ; iz <= maxZ; ++iz) {
-                    for (int iy = minY; iy <= maxY; ++iy) {
-                        CubePos cubePos1 = CubePos.of(ix, iy, iz);
-                        boolean loadedBefore = IChunkManager.getCubeDistance(cubePos1, managedX, managedY, managedZ) <= viewDistanceCubes;
-                        boolean loadedNow = IChunkManager.getCubeDistance(cubePos1, newCubeX, newCubeY, newCubeZ) <= viewDistanceCubes;
-                        this.setCubeLoadedAtClient(player, cubePos1, new Object[2], loadedBefore, loadedNow);
-                    }
-                }
-            }
-        } else {
-            for (int ix = managedX - viewDistanceCubes; ix <= managedX + viewDistanceCubes; ++ix) {
-                for (int iz = managedZ - viewDistanceCubes; iz <= managedZ + viewDistanceCubes; ++iz) {
-                    for (int iy = managedY - viewDistanceCubes; iy <= managedY + viewDistanceCubes; ++iy) {
-                        CubePos cubePos2 = CubePos.of(ix, iy, iz);
-                        this.setCubeLoadedAtClient(player, cubePos2, new Object[2], true, false);
-                    }
-                }
-            }
-
-            for (int ix = newCubeX - viewDistanceCubes; ix <= newCubeX + viewDistanceCubes; ++ix) {
-                for (int iz = newCubeZ - viewDistanceCubes; iz <= newCubeZ + viewDistanceCubes; ++iz) {
-                    for (int iy = newCubeY - viewDistanceCubes; iy <= newCubeY + viewDistanceCubes; ++iy) {
-                        CubePos cubePos3 = CubePos.of(ix, iy, iz);
-                        this.setCubeLoadedAtClient(player, cubePos3, new Object[2], false, true);
-                    }
-                }
-            }
-        }
+        CubeViewDelta.forEachChanged(managedX, managedY, managedZ, newCubeX, newCubeY, newCubeZ, this.getViewShape(),
+                cubePos -> this.setCubeLoadedAtClient(player, cubePos, null, true, false),
+                cubePos -> this.setCubeLoadedAtClient(player, cubePos, null, false, true));
 
         int newSectionX = MathHelper.floor(player.getPosX()) >> 4;
         int newSectionZ = MathHelper.floor(player.getPosZ()) >> 4;
@@ -1004,20 +901,24 @@ public abstract class MixinChunkManager implements IChunkManager {
     @Inject(method = "setViewDistance", at = @At("HEAD"))
     protected void setViewDistance(int viewDistance, CallbackInfo ci) {
         int viewDistanceSections = MathHelper.clamp(viewDistance + 1, 3, 33);
-        int newViewDistanceCubes = Coords.sectionToCubeRenderDistance(viewDistanceSections);
-        int viewDistanceCubes = Coords.sectionToCubeRenderDistance(this.viewDistance);
-        if (newViewDistanceCubes != viewDistanceCubes) {
+        CubeLoadShape newViewShape = IChunkManager.createViewShape(viewDistanceSections);
+        CubeLoadShape viewShape = this.getViewShape();
+        if (newViewShape.getVerticalRadius() != viewShape.getVerticalRadius()) {
+            PacketUpdateVerticalViewDistance packet = new PacketUpdateVerticalViewDistance(newViewShape.getVerticalRadius());
+            this.world.getPlayers().forEach(player -> PacketDispatcher.sendTo(packet, player));
+        }
+        if (newViewShape.getRadius() != viewShape.getRadius() || newViewShape.getVerticalRadius() != viewShape.getVerticalRadius()) {
             for(ChunkHolder chunkholder : this.loadedCubes.values()) {
                 CubePos cubePos = ((ICubeHolder)chunkholder).getCubePos();
                 Object[] objects = new Object[2];
                 this.getCubeTrackingPlayers(cubePos, false).forEach((serverPlayerEntity) -> {
-                    int k = IChunkManager.getCubeChebyshevDistance(cubePos, serverPlayerEntity, true);
-                    boolean wasLoaded = k <= viewDistanceCubes;
-                    boolean isLoaded = k <= newViewDistanceCubes;
+                    boolean wasLoaded = IChunkManager.isCubeInView(viewShape, cubePos, serverPlayerEntity, false);
+                    boolean isLoaded = IChunkManager.isCubeInView(newViewShape, cubePos, serverPlayerEntity, false);
                     this.setCubeLoadedAtClient(serverPlayerEntity, cubePos, objects, wasLoaded, isLoaded);
                 });
             }
         }
+        this.viewShape = newViewShape;
 
     }
 
@@ -1031,15 +932,21 @@ public abstract class MixinChunkManager implements IChunkManager {
     }
 
     protected void setCubeLoadedAtClient(ServerPlayerEntity player, CubePos cubePosIn, Object[] packetCache, boolean wasLoaded, boolean load) {
+        this.setCubeLoadedAtClient(player, cubePosIn.asLong(), packetCache, wasLoaded, load);
+    }
+
+    // a null packet cache is only created when the cube is sent, the view updates call this for every cube entering or leaving view
+    private void setCubeLoadedAtClient(ServerPlayerEntity player, long cubePosIn, @Nullable Object[] packetCache, boolean wasLoaded,
+            boolean load) {
         if (player.world == this.world) {
             //TODO: reimplement forge event
             //net.minecraftforge.event.ForgeEventFactory.fireChunkWatch(wasLoaded, load, player, cubePosIn, this.world);
             if (load && !wasLoaded) {
-                ChunkHolder chunkholder = ((IChunkManager)this).getImmutableCubeHolder(cubePosIn.asLong());
+                ChunkHolder chunkholder = ((IChunkManager)this).getImmutableCubeHolder(cubePosIn);
                 if (chunkholder != null) {
                     BigCube cube = ((ICubeHolder)chunkholder).getCubeIfComplete();
                     if (cube != null) {
-                        this.sendCubeData(player, packetCache, cube);
+                        this.sendCubeData(player, packetCache == null ? new Object[2] : packetCache, cube);
                     }
                     //TODO: reimplement debugpacket
                     //DebugPacketSender.sendChuckPos(this.world, cubePosIn);
@@ -1048,7 +955,7 @@ public abstract class MixinChunkManager implements IChunkManager {
             if (!load && wasLoaded) {
                 //Vanilla: //player.sendChunkUnload(chunkPosIn)
                 //I moved to MixinChunkManager to be in the same place as sendCubeLoad
-                this.sendCubeUnload(player, cubePosIn);
+                this.sendCubeUnload(player, CubePos.from(cubePosIn));
             }
         }
     }
@@ -1144,7 +1051,30 @@ public abstract class MixinChunkManager implements IChunkManager {
 
     @Override
     public int getLoadedCubeCount() {
-        return this.immutableLoadedCubes.size();
+        return this.loadedCubes.size();
+    }
+
+    @Override
+    public CubeIOExecutor getCubeIOExecutor() {
+        return this.cubeIOExecutor;
+    }
+
+    @Override
+    public CubeGenerationScheduler getCubeGenerationScheduler() {
+        return this.cubeGenerationScheduler;
+    }
+
+    @Override
+    public RegionCubeIO getRegionCubeIO() {
+        return this.regionCubeIO;
+    }
+
+    @Override
+    public CubeLoadShape getViewShape() {
+        if (this.viewShape == null) {
+            this.viewShape = IChunkManager.createViewShape(this.viewDistance);
+        }
+        return this.viewShape;
     }
 
     // func_219191_c
@@ -4,8 +4,10 @@ import static io.github.opencubicchunks.cubicchunks.utils.Coords.sectionToCube;
 
 import io.github.opencubicchunks.cubicchunks.chunk.IChunkManager;
 import io.github.opencubicchunks.cubicchunks.chunk.ICubeHolder;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLoadShape;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.mixin.access.common.ChunkManagerAccess;
+import io.github.opencubicchunks.cubicchunks.utils.Coords;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.ServerPlayerEntity;
 import net.minecraft.util.math.Vec3d;
@@ -53,7 +55,10 @@ public abstract class MixinEntityTracker {
                             sectionToCube(this.entity.chunkCoordZ));
                     ChunkHolder chunkholder = ((IChunkManager)this$0).getImmutableCubeHolder(cubePos.asLong());
                     if (chunkholder != null && ((ICubeHolder) chunkholder).getCubeIfComplete() != null) {
-                        spawn = IChunkManager.getCubeChebyshevDistance(cubePos, player, false) <= ((ChunkManagerAccess)this$0).getViewDistance();
+                        // the same shape as the cubes sent to the player, around its current position
+                        CubeLoadShape viewShape = ((IChunkManager) this$0).getViewShape();
+                        spawn = viewShape.contains(cubePos.getX() - Coords.getCubeXForEntity(player),
+                                cubePos.getY() - Coords.getCubeYForEntity(player), cubePos.getZ() - Coords.getCubeZForEntity(player));
                     }
                 }
 
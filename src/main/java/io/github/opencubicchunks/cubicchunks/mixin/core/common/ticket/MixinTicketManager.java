@@ -14,7 +14,6 @@ import io.github.opencubicchunks.cubicchunks.chunk.ticket.PlayerCubeTracker;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.mixin.access.common.ChunkHolderAccess;
 import io.github.opencubicchunks.cubicchunks.mixin.access.common.TicketAccess;
-import io.github.opencubicchunks.cubicchunks.utils.Coords;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
@@ -113,7 +112,7 @@ public abstract class MixinTicketManager implements ITicketManager {
     @Inject(method = "setViewDistance", at = @At("HEAD"))
     protected void setViewDistance(int viewDistance, CallbackInfo ci)
     {
-        this.playerCubeTicketTracker.setViewDistance(Coords.sectionToCubeRenderDistance(viewDistance));
+        this.playerCubeTicketTracker.setViewDistance(IChunkManager.createViewShape(viewDistance));
     }
 
     //BEGIN INJECT
@@ -220,7 +219,7 @@ public abstract class MixinTicketManager implements ITicketManager {
         long i = cubePos.asLong();
         this.playersByCubePos.computeIfAbsent(i, (x) -> new ObjectOpenHashSet<>()).add(player);
         this.playerCubeTracker.updateSourceLevel(i, 0, true);
-        this.playerCubeTicketTracker.updateSourceLevel(i, 0, true);
+        this.playerCubeTicketTracker.addPlayer(i, player);
     }
 
     @Override
@@ -231,8 +230,8 @@ public abstract class MixinTicketManager implements ITicketManager {
         if (objectset.isEmpty()) {
             this.playersByCubePos.remove(i);
             this.playerCubeTracker.updateSourceLevel(i, Integer.MAX_VALUE, false);
-            this.playerCubeTicketTracker.updateSourceLevel(i, Integer.MAX_VALUE, false);
         }
+        this.playerCubeTicketTracker.removePlayer(i, player);
     }
 
     /**
@@ -1,8 +1,10 @@
 package io.github.opencubicchunks.cubicchunks.mixin.core.common.world.lighting;
 
 import io.github.opencubicchunks.cubicchunks.chunk.IBigCube;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubeLookupCache;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
 import io.github.opencubicchunks.cubicchunks.mixin.access.common.SectionLightStorageAccess;
+import io.github.opencubicchunks.cubicchunks.utils.Coords;
 import io.github.opencubicchunks.cubicchunks.world.lighting.ICubeLightProvider;
 import io.github.opencubicchunks.cubicchunks.world.lighting.ILightEngine;
 import io.github.opencubicchunks.cubicchunks.world.lighting.ISectionLightStorage;
@@ -21,6 +23,9 @@ import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Overwrite;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 import javax.annotation.Nullable;
 
@@ -33,9 +38,15 @@ public class MixinLightEngine <M extends LightDataMap<M>, S extends SectionLight
 
     @Shadow @Final protected IChunkLightProvider chunkProvider;
 
-    @Shadow @Final private long[] recentPositions;
+    // keyed by cube instead of section like the vanilla recent chunks, so all sections of a cube share an entry
+    private final CubeLookupCache<IBlockReader> cubeReaderCache = new CubeLookupCache<>((cubeX, cubeY, cubeZ) ->
+            ((ICubeLightProvider) this.chunkProvider).getCubeForLight(
+                    Coords.cubeToSection(cubeX, 0), Coords.cubeToSection(cubeY, 0), Coords.cubeToSection(cubeZ, 0)));
 
-    @Shadow @Final private IBlockReader[] recentChunks;
+    @Inject(method = "invalidateCaches", at = @At("RETURN"))
+    private void onInvalidateCaches(CallbackInfo ci) {
+        this.cubeReaderCache.invalidate();
+    }
 
     @Override
     public void retainCubeData(CubePos pos, boolean retain) {
@@ -93,23 +104,6 @@ public class MixinLightEngine <M extends LightDataMap<M>, S extends SectionLight
 
     @Nullable
     private IBlockReader getCubeReader(int sectionX, int sectionY, int sectionZ) {
-        long i = SectionPos.asLong(sectionX, sectionY, sectionZ);
-
-        for(int j = 0; j < 2; ++j) {
-            if (i == this.recentPositions[j]) {
-                return this.recentChunks[j];
-            }
-        }
-
-        IBlockReader iblockreader = ((ICubeLightProvider)this.chunkProvider).getCubeForLight(sectionX, sectionY, sectionZ);
-
-        for(int k = 1; k > 0; --k) {
-            this.recentPositions[k] = this.recentPositions[k - 1];
-            this.recentChunks[k] = this.recentChunks[k - 1];
-        }
-
-        this.recentPositions[0] = i;
-        this.recentChunks[0] = iblockreader;
-        return iblockreader;
+        return this.cubeReaderCache.get(Coords.sectionToCube(sectionX), Coords.sectionToCube(sectionY), Coords.sectionToCube(sectionZ));
     }
 }
@@ -107,7 +107,10 @@ public abstract class MixinServerWorldLightManager extends MixinWorldLightManage
     @Override
     public CompletableFuture<IBigCube> lightCube(IBigCube icube, boolean flagIn) {
         CubePos cubePos = icube.getCubePos();
-        icube.setCubeLight(false);
+        // cubes loaded with their light keep it valid, so they don't have to be saved again
+        if (!flagIn) {
+            icube.setCubeLight(false);
+        }
         this.schedulePhaseTask(cubePos.getX(), cubePos.getY(), cubePos.getZ(), ServerWorldLightManager.Phase.PRE_UPDATE, Util.namedRunnable(() -> {
             for(int i = 0; i < IBigCube.CUBE_SIZE; ++i) {
                 ChunkSection chunksection = icube.getCubeSections()[i];
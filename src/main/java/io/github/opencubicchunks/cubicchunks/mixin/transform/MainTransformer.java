@@ -109,6 +109,9 @@ public class MainTransformer {
         // TODO: create target constructor in ChunkHolder with CubePos
         typeRedirects.put(getObjectType("net/minecraft/util/math/ChunkPos"),
                 getObjectType("io/github/opencubicchunks/cubicchunks/chunk/util/CubePos"));
+        // loadedCubes and cubesToUnload, so workers can read loaded cubes without a copy of the map
+        typeRedirects.put(getObjectType("it/unimi/dsi/fastutil/longs/Long2ObjectLinkedOpenHashMap"),
+                getObjectType("io/github/opencubicchunks/cubicchunks/utils/ConcurrentLong2ObjectMap"));
         // TODO: generate that class at runtime? transform and duplicate?
         typeRedirects.put(getObjectType("net/minecraft/world/chunk/ChunkTaskPriorityQueueSorter"),
                 getObjectType("io/github/opencubicchunks/cubicchunks/chunk/ticket/CubeTaskPriorityQueueSorter"));
@@ -40,6 +40,9 @@ public class PacketDispatcher {
         CHANNEL.registerMessage(9, PacketUpdateLight.class, PacketUpdateLight::encode,
                 PacketUpdateLight::new, mainThreadHandler(PacketUpdateLight.Handler::handle),
                 Optional.of(NetworkDirection.PLAY_TO_CLIENT));
+        CHANNEL.registerMessage(10, PacketUpdateVerticalViewDistance.class, PacketUpdateVerticalViewDistance::encode,
+                PacketUpdateVerticalViewDistance::new, mainThreadHandler(PacketUpdateVerticalViewDistance.Handler::handle),
+                Optional.of(NetworkDirection.PLAY_TO_CLIENT));
         //        CHANNEL.registerMessage(5, PacketCubicWorldInit.class, PacketCubicWorldInit::encode,
         //                PacketCubicWorldInit::new, mainThreadHandler(PacketCubicWorldInit::handle));
     }
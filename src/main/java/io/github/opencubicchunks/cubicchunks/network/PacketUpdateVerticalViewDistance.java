@@ -0,0 +1,32 @@
+package io.github.opencubicchunks.cubicchunks.network;
+
+import io.github.opencubicchunks.cubicchunks.chunk.IClientCubeProvider;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.AbstractChunkProvider;
+
+public class PacketUpdateVerticalViewDistance {
+    // in cubes
+    private final int verticalViewDistance;
+
+    public PacketUpdateVerticalViewDistance(int verticalViewDistanceIn)
+    {
+        this.verticalViewDistance = verticalViewDistanceIn;
+    }
+
+    PacketUpdateVerticalViewDistance(PacketBuffer buf)
+    {
+        this.verticalViewDistance = buf.readVarInt();
+    }
+
+    void encode(PacketBuffer buf) {
+        buf.writeVarInt(this.verticalViewDistance);
+    }
+
+    public static class Handler {
+        public static void handle(PacketUpdateVerticalViewDistance packet, World worldIn) {
+            AbstractChunkProvider chunkProvider = worldIn.getChunkProvider();
+            ((IClientCubeProvider) chunkProvider).setVerticalViewDistance(packet.verticalViewDistance);
+        }
+    }
+}
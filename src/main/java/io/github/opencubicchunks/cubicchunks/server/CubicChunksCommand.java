@@ -0,0 +1,105 @@
+package io.github.opencubicchunks.cubicchunks.server;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.chunk.IChunkManager;
+import io.github.opencubicchunks.cubicchunks.world.storage.CubeBackup;
+import io.github.opencubicchunks.cubicchunks.world.storage.CubeCompression;
+import io.github.opencubicchunks.cubicchunks.world.storage.RegionCubeIO;
+import net.minecraft.command.CommandSource;
+import net.minecraft.command.Commands;
+import net.minecraft.command.ISuggestionProvider;
+import net.minecraft.util.text.StringTextComponent;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nullable;
+
+/**
+ * The {@code /cubicchunks} command.
+ *
+ * <p>{@code /cubicchunks trainDictionary [samples]} trains a compression dictionary from the stored cubes of the dimension the command is
+ * run in, and compresses all cubes saved afterwards with it.</p>
+ *
+ * <p>{@code /cubicchunks backup <checkpoint> [since <previous>]} writes the cubes of the dimension that changed since the checkpoint
+ * {@code previous}, or all cubes, to {@code backups/<checkpoint>.ccbackup} in the dimension directory, and sets the checkpoint
+ * {@code checkpoint} for the next backup.</p>
+ */
+public class CubicChunksCommand {
+
+    private static final int DEFAULT_SAMPLES = 2048;
+
+    public static void register(CommandDispatcher<CommandSource> dispatcher) {
+        dispatcher.register(Commands.literal(CubicChunks.MODID)
+                .requires(source -> source.hasPermissionLevel(4))
+                .then(Commands.literal("trainDictionary")
+                        .executes(context -> trainDictionary(context.getSource(), DEFAULT_SAMPLES))
+                        .then(Commands.argument("samples", IntegerArgumentType.integer(1))
+                                .executes(context -> trainDictionary(context.getSource(), IntegerArgumentType.getInteger(context, "samples")))))
+                .then(Commands.literal("backup")
+                        .then(Commands.argument("checkpoint", StringArgumentType.word())
+                                .executes(context -> backup(context.getSource(), StringArgumentType.getString(context, "checkpoint"), null))
+                                .then(Commands.literal("since")
+                                        .then(Commands.argument("previous", StringArgumentType.word())
+                                                .suggests((context, builder) -> ISuggestionProvider.suggest(
+                                                        getRegionCubeIO(context.getSource()).getBackupCheckpoints(), builder))
+                                                .executes(context -> backup(context.getSource(), StringArgumentType.getString(context, "checkpoint"),
+                                                        StringArgumentType.getString(context, "previous"))))))));
+    }
+
+    private static RegionCubeIO getRegionCubeIO(CommandSource source) {
+        return ((IChunkManager) source.getWorld().getChunkProvider().chunkManager).getRegionCubeIO();
+    }
+
+    private static int trainDictionary(CommandSource source, int maxSamples) {
+        RegionCubeIO regionCubeIO = getRegionCubeIO(source);
+        source.sendFeedback(new StringTextComponent("Training cube compression dictionary from up to " + maxSamples + " cubes..."), true);
+        // reading the samples takes a while, the server keeps running meanwhile
+        CompletableFuture.runAsync(() -> {
+            String message;
+            try {
+                List<byte[]> samples = regionCubeIO.sampleCubeData(maxSamples);
+                if (samples.isEmpty()) {
+                    message = "No stored cubes to train the dictionary from";
+                } else {
+                    byte[] dictionary = CubeCompression.trainDictionary(samples, CubeCompression.MAX_DICTIONARY_SIZE);
+                    int id = regionCubeIO.getCompression().useDictionary(dictionary);
+                    message = "Trained dictionary " + Integer.toHexString(id) + " (" + dictionary.length + " bytes) from " + samples.size()
+                            + " cubes, new cube saves use it";
+                }
+            } catch (Exception e) {
+                CubicChunks.LOGGER.error("Failed to train cube compression dictionary", e);
+                message = "Failed to train the dictionary: " + e;
+            }
+            String result = message;
+            source.getServer().execute(() -> source.sendFeedback(new StringTextComponent(result), true));
+        });
+        return 1;
+    }
+
+    private static int backup(CommandSource source, String checkpoint, @Nullable String sinceCheckpoint) {
+        RegionCubeIO regionCubeIO = getRegionCubeIO(source);
+        Path file = regionCubeIO.getBackupDirectory().resolve(checkpoint + CubeBackup.EXTENSION);
+        source.sendFeedback(new StringTextComponent(sinceCheckpoint == null ? "Backing up all cubes..."
+                : "Backing up cubes changed since " + sinceCheckpoint + "..."), true);
+        // saves continue while the backup is written
+        CompletableFuture.runAsync(() -> {
+            String message;
+            try {
+                long start = System.nanoTime();
+                int cubes = regionCubeIO.exportBackup(file, sinceCheckpoint, checkpoint);
+                message = "Backed up " + cubes + " cubes to " + file + " in " + (System.nanoTime() - start) / 1_000_000 + "ms";
+            } catch (Exception e) {
+                CubicChunks.LOGGER.error("Failed to back up cubes to {}", file, e);
+                message = "Failed to back up cubes: " + e;
+            }
+            String result = message;
+            source.getServer().execute(() -> source.sendFeedback(new StringTextComponent(result), true));
+        });
+        return 1;
+    }
+}
@@ -0,0 +1,247 @@
+package io.github.opencubicchunks.cubicchunks.utils;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * A long keyed open addressing hash map with lock-free reads from any thread and mutation from a single thread.
+ *
+ * <p>Each slot holds an immutable entry, so a reader either sees an entry completely or not at all. Removed entries are replaced by a
+ * tombstone to keep the probe sequences of other keys intact, and the table is rebuilt into a new array when the entries and tombstones
+ * fill it. The new table is published through a volatile field, and readers that still use the old one see the map as it was before the
+ * rebuild.</p>
+ *
+ * <p>The writer sees its own changes right away. Other threads see each change once it's done, and iteration is weakly consistent, like
+ * the concurrent collections in {@code java.util.concurrent}. Null values aren't supported.</p>
+ *
+ * <p>The method signatures match the ones of fastutil's {@code Long2ObjectLinkedOpenHashMap} that the vanilla code copied by
+ * {@code MainTransformer} uses, so the copied code can be redirected to this class.</p>
+ */
+public class ConcurrentLong2ObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final Entry<?> TOMBSTONE = new Entry<>(0, null);
+
+    private volatile AtomicReferenceArray<Entry<V>> table;
+    private volatile int size;
+    // only accessed by the writer
+    private int tombstones;
+
+    public ConcurrentLong2ObjectMap() {
+        this.table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    }
+
+    @Nullable
+    public V get(long key) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            Entry<V> entry = table.get(i);
+            if (entry == null) {
+                return null;
+            }
+            if (entry != TOMBSTONE && entry.key == key) {
+                return entry.value;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * @return the previous value, or null if there was none
+     */
+    @Nullable
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values aren't supported");
+        }
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int mask = table.length() - 1;
+        int free = -1;
+        int i = slot(key, mask);
+        for (Entry<V> entry; (entry = table.get(i)) != null; i = (i + 1) & mask) {
+            if (entry == TOMBSTONE) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (entry.key == key) {
+                table.set(i, new Entry<>(key, value));
+                return entry.value;
+            }
+        }
+        if (free >= 0) {
+            this.tombstones--;
+        } else {
+            free = i;
+        }
+        table.set(free, new Entry<>(key, value));
+        this.size++;
+        if ((this.size + this.tombstones) * 4 >= table.length() * 3) {
+            rebuild();
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value, or null if there was none
+     */
+    @Nullable
+    public V remove(long key) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int i = find(table, key);
+        if (i < 0) {
+            return null;
+        }
+        V value = table.get(i).value;
+        removeAt(table, i);
+        return value;
+    }
+
+    /**
+     * Removes the entry only if the key is mapped to the value.
+     *
+     * @return whether the entry was removed
+     */
+    public boolean remove(long key, Object value) {
+        AtomicReferenceArray<Entry<V>> table = this.table;
+        int i = find(table, key);
+        if (i < 0 || !table.get(i).value.equals(value)) {
+            return false;
+        }
+        removeAt(table, i);
+        return true;
+    }
+
+    public void clear() {
+        this.table = new AtomicReferenceArray<>(MIN_CAPACITY);
+        this.size = 0;
+        this.tombstones = 0;
+    }
+
+    /**
+     * @return an unmodifiable, weakly consistent view of the values
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override public Iterator<V> iterator() {
+                return new ValueIterator<>(ConcurrentLong2ObjectMap.this.table);
+            }
+
+            @Override public int size() {
+                return ConcurrentLong2ObjectMap.this.size;
+            }
+        };
+    }
+
+    private int find(AtomicReferenceArray<Entry<V>> table, long key) {
+        int mask = table.length() - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            Entry<V> entry = table.get(i);
+            if (entry == null) {
+                return -1;
+            }
+            if (entry != TOMBSTONE && entry.key == key) {
+                return i;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void removeAt(AtomicReferenceArray<Entry<V>> table, int i) {
+        table.set(i, (Entry<V>) TOMBSTONE);
+        this.size--;
+        this.tombstones++;
+        // the tombstones make lookups of missing keys slow long before the table is full
+        if (this.tombstones > table.length() / 4) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        AtomicReferenceArray<Entry<V>> oldTable = this.table;
+        int capacity = Math.max(MIN_CAPACITY, HashCommon.nextPowerOfTwo(this.size * 2 + 1));
+        AtomicReferenceArray<Entry<V>> newTable = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldTable.length(); j++) {
+            Entry<V> entry = oldTable.get(j);
+            if (entry == null || entry == TOMBSTONE) {
+                continue;
+            }
+            int i = slot(entry.key, mask);
+            while (newTable.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            // not visible to other threads until the table is published
+            newTable.lazySet(i, entry);
+        }
+        this.tombstones = 0;
+        this.table = newTable;
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) HashCommon.mix(key) & mask;
+    }
+
+    private static final class Entry<V> {
+        private final long key;
+        private final V value;
+
+        private Entry(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class ValueIterator<V> implements Iterator<V> {
+        private final AtomicReferenceArray<Entry<V>> table;
+        private int index;
+        @Nullable private V next;
+
+        private ValueIterator(AtomicReferenceArray<Entry<V>> table) {
+            this.table = table;
+            advance();
+        }
+
+        private void advance() {
+            this.next = null;
+            while (this.index < this.table.length()) {
+                Entry<V> entry = this.table.get(this.index++);
+                if (entry != null && entry != TOMBSTONE) {
+                    this.next = entry.value;
+                    return;
+                }
+            }
+        }
+
+        @Override public boolean hasNext() {
+            return this.next != null;
+        }
+
+        @Override public V next() {
+            V value = this.next;
+            if (value == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return value;
+        }
+    }
+}
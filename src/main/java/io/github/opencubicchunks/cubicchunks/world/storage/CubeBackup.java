@@ -0,0 +1,140 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * The file format of cube backups written by {@link RegionCubeIO#exportBackup}.
+ *
+ * <p>A backup is a gzip stream of a header, one record per cube and an end record with the number of cubes. The header holds the checkpoint
+ * the backup starts from, empty for a backup of all cubes, and the checkpoint it ends at. A cube record holds the position and the
+ * uncompressed cube data with all section blob references resolved, so restoring it doesn't need the blob store of the world it came from.
+ * A cube can occur more than once in a backup, the last record is the newest data.</p>
+ *
+ * <p>Backups are restored in the order they were taken, starting with a backup of all cubes.</p>
+ */
+public class CubeBackup {
+
+    public static final String EXTENSION = ".ccbackup";
+
+    private static final int MAGIC = 0x4343424B; // "CCBK"
+    private static final int VERSION = 1;
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_CUBE = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // far more than any cube needs, so a corrupt length fails before it's allocated
+    private static final int MAX_CUBE_DATA_SIZE = 1 << 24;
+
+    /**
+     * Reads the cube records of a backup.
+     *
+     * @return the number of cube records
+     */
+    static int read(Path file, CubeConsumer consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file)), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " isn't a cube backup");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported cube backup version " + version + " of " + file);
+            }
+            in.readUTF(); // start checkpoint
+            in.readUTF(); // end checkpoint
+            in.readLong(); // creation time
+            int cubes = 0;
+            while (true) {
+                byte type = in.readByte();
+                if (type == RECORD_END) {
+                    int expected = in.readInt();
+                    if (expected != cubes) {
+                        throw new IOException("Cube backup " + file + " should contain " + expected + " cubes, but contains " + cubes);
+                    }
+                    return cubes;
+                }
+                if (type != RECORD_CUBE) {
+                    throw new IOException("Invalid record type " + type + " in cube backup " + file);
+                }
+                CubePos pos = CubePos.of(in.readInt(), in.readInt(), in.readInt());
+                int length = in.readInt();
+                if (length < 0 || length > MAX_CUBE_DATA_SIZE) {
+                    throw new IOException("Invalid length " + length + " of cube " + pos + " in cube backup " + file);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                consumer.accept(pos, data);
+                cubes++;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface CubeConsumer {
+        void accept(CubePos pos, byte[] data) throws IOException;
+    }
+
+    /**
+     * Writes a backup to a temporary file, which replaces the target file when the backup is {@link #finish}ed.
+     */
+    static class Writer implements AutoCloseable {
+        private final Path file;
+        private final Path tempFile;
+        private final DataOutputStream out;
+        private int cubes;
+        private boolean finished;
+
+        Writer(Path file, @Nullable String startCheckpoint, String endCheckpoint) throws IOException {
+            this.file = file;
+            this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(this.tempFile)), BUFFER_SIZE));
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeUTF(startCheckpoint == null ? "" : startCheckpoint);
+            this.out.writeUTF(endCheckpoint);
+            this.out.writeLong(System.currentTimeMillis());
+        }
+
+        void write(CubePos pos, byte[] data) throws IOException {
+            this.out.writeByte(RECORD_CUBE);
+            this.out.writeInt(pos.getX());
+            this.out.writeInt(pos.getY());
+            this.out.writeInt(pos.getZ());
+            this.out.writeInt(data.length);
+            this.out.write(data);
+            this.cubes++;
+        }
+
+        int getCubeCount() {
+            return this.cubes;
+        }
+
+        void finish() throws IOException {
+            this.out.writeByte(RECORD_END);
+            this.out.writeInt(this.cubes);
+            this.out.close();
+            Files.move(this.tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.finished) {
+                this.out.close();
+                Files.deleteIfExists(this.tempFile);
+            }
+        }
+    }
+}
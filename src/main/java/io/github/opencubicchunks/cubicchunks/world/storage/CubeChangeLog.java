@@ -0,0 +1,236 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Records the position of every cube written to the region files, so backups can export only the cubes that changed since a named
+ * checkpoint.
+ *
+ * <p>Positions are numbered in the order they were recorded. A checkpoint is the number of the first position recorded after it, kept in
+ * a properties file next to the log. The log file starts with the number of its first position, followed by one x, y, z triple per
+ * position, and only keeps the positions that some checkpoint or running export still needs.</p>
+ *
+ * <p>Positions are appended without syncing, the owner {@link #sync}s the log before it drops the journal records that would replay the
+ * same writes after a crash.</p>
+ */
+class CubeChangeLog implements AutoCloseable {
+
+    private static final int BASE_SIZE = Long.BYTES;
+    private static final int RECORD_SIZE = Integer.BYTES * 3;
+    // records before the oldest checkpoint to collect before rewriting the log without them
+    private static final long TRIM_THRESHOLD = 1 << 16;
+    private static final String CHECKPOINT_PREFIX = "checkpoint.";
+    private static final int READ_BATCH_SIZE = 4096;
+
+    private final Path path;
+    private final Path checkpointsPath;
+    private FileChannel channel;
+    // number of the first record in the file
+    private long base;
+    private long end;
+    private final Map<String, Long> checkpoints = new TreeMap<>();
+    // start of every export that is running
+    private final List<Long> pins = new ArrayList<>();
+
+    CubeChangeLog(Path path, Path checkpointsPath) throws IOException {
+        this.path = path;
+        this.checkpointsPath = checkpointsPath;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (this.channel.size() < BASE_SIZE) {
+            writeBase(this.channel, 0);
+            this.base = 0;
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(BASE_SIZE);
+            readFully(buffer, 0);
+            this.base = buffer.getLong(0);
+        }
+        // a record the crash cut off
+        long records = (this.channel.size() - BASE_SIZE) / RECORD_SIZE;
+        this.channel.truncate(BASE_SIZE + records * RECORD_SIZE);
+        this.end = this.base + records;
+
+        if (Files.exists(checkpointsPath)) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(checkpointsPath)) {
+                properties.load(in);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith(CHECKPOINT_PREFIX)) {
+                    try {
+                        long position = Long.parseLong(properties.getProperty(key).trim());
+                        // positions lost with the log can't be exported anymore, the checkpoint is unusable
+                        if (position >= this.base && position <= this.end) {
+                            this.checkpoints.put(key.substring(CHECKPOINT_PREFIX.length()), position);
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void record(CubePos pos) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        buffer.putInt(pos.getX()).putInt(pos.getY()).putInt(pos.getZ());
+        buffer.flip();
+        writeFully(this.channel, buffer, BASE_SIZE + (this.end - this.base) * RECORD_SIZE);
+        this.end++;
+    }
+
+    synchronized long getEnd() {
+        return this.end;
+    }
+
+    /**
+     * @throws IOException if there is no such checkpoint
+     */
+    synchronized long getCheckpoint(String name) throws IOException {
+        Long position = this.checkpoints.get(name);
+        if (position == null) {
+            throw new IOException("Unknown backup checkpoint " + name);
+        }
+        return position;
+    }
+
+    synchronized List<String> getCheckpointNames() {
+        return new ArrayList<>(this.checkpoints.keySet());
+    }
+
+    /**
+     * Keeps the positions recorded from now on until {@link #unpin} is called with the returned position.
+     */
+    synchronized long pin() {
+        this.pins.add(this.end);
+        return this.end;
+    }
+
+    synchronized void unpin(long position) throws IOException {
+        this.pins.remove(Long.valueOf(position));
+        trim();
+    }
+
+    /**
+     * Reads the positions in batches and holds the monitor only while reading a batch, so positions can be recorded meanwhile. The records
+     * must be pinned, or the log could be trimmed between two batches.
+     *
+     * @return the distinct positions recorded from {@code from} up to {@code to}, in the order they were first recorded
+     */
+    LongLinkedOpenHashSet read(long from, long to) throws IOException {
+        LongLinkedOpenHashSet positions = new LongLinkedOpenHashSet();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(to - from, READ_BATCH_SIZE)) * RECORD_SIZE);
+        for (long record = from; record < to; ) {
+            int count = (int) Math.min(to - record, READ_BATCH_SIZE);
+            buffer.clear().limit(count * RECORD_SIZE);
+            synchronized (this) {
+                if (from < this.base || to > this.end) {
+                    throw new IOException("Cube changes " + from + " to " + to + " aren't in " + this.path);
+                }
+                readFully(buffer, BASE_SIZE + (record - this.base) * RECORD_SIZE);
+            }
+            buffer.flip();
+            for (int i = 0; i < count; i++) {
+                positions.add(CubePos.asLong(buffer.getInt(), buffer.getInt(), buffer.getInt()));
+            }
+            record += count;
+        }
+        return positions;
+    }
+
+    synchronized void setCheckpoint(String name, long position) throws IOException {
+        // a checkpoint past the synced end of the log would be dropped after a crash
+        this.channel.force(false);
+        this.checkpoints.put(name, position);
+        saveCheckpoints();
+        trim();
+    }
+
+    synchronized void sync() throws IOException {
+        this.channel.force(false);
+        trim();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    private void saveCheckpoints() throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Long> checkpoint : this.checkpoints.entrySet()) {
+            properties.setProperty(CHECKPOINT_PREFIX + checkpoint.getKey(), String.valueOf(checkpoint.getValue()));
+        }
+        Path tempFile = this.checkpointsPath.resolveSibling(this.checkpointsPath.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            properties.store(out, "Cube backup checkpoints: the number of the first change after each checkpoint");
+        }
+        Files.move(tempFile, this.checkpointsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Rewrites the log without the positions no checkpoint or export needs anymore, once there are enough of them.
+     */
+    private void trim() throws IOException {
+        long keepFrom = this.end;
+        for (long position : this.checkpoints.values()) {
+            keepFrom = Math.min(keepFrom, position);
+        }
+        for (long position : this.pins) {
+            keepFrom = Math.min(keepFrom, position);
+        }
+        // dropping all positions is cheap, otherwise the rest of the log is copied
+        if (keepFrom == this.base || (keepFrom < this.end && keepFrom - this.base < TRIM_THRESHOLD)) {
+            return;
+        }
+        Path tempFile = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try (FileChannel temp = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            writeBase(temp, keepFrom);
+            long position = BASE_SIZE + (keepFrom - this.base) * RECORD_SIZE;
+            long size = this.channel.size();
+            while (position < size) {
+                position += this.channel.transferTo(position, size - position, temp);
+            }
+            temp.force(true);
+        }
+        this.channel.close();
+        Files.move(tempFile, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.base = keepFrom;
+    }
+
+    private static void writeBase(FileChannel channel, long base) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BASE_SIZE);
+        buffer.putLong(0, base);
+        writeFully(channel, buffer, 0);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file " + this.path);
+            }
+        }
+    }
+}
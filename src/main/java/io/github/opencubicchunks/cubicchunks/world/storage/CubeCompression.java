@@ -0,0 +1,369 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+/**
+ * Compresses cube data with the codec configured for a dimension, and decompresses data written with any codec.
+ *
+ * <p>The codec is chosen in {@code compression.properties} next to the region files: {@code codec} is one of {@code none}, {@code deflate}
+ * or {@code dictionary}, and {@code level} is the deflate level. The {@code dictionary} codec compresses with a preset dictionary trained
+ * from existing cubes by {@link #trainDictionary}, which gives small cubes the shared context they lack on their own.</p>
+ *
+ * <p>Cubes that weren't loaded or saved for {@code archiveAfterDays} days are archived: compressed again with the slowest deflate level,
+ * under their own codec id so they can be told apart from cubes that are in use. {@code 0} disables archiving.</p>
+ *
+ * <p>Every entry in a region file names the codec it was written with, and the zlib header of dictionary compressed data names the
+ * dictionary by its checksum. Dictionaries are kept in {@code dictionaries} and never deleted, so worlds written with different settings keep
+ * loading.</p>
+ */
+public class CubeCompression {
+
+    // used by cubes saved as one file per cube, only read
+    public static final byte CODEC_GZIP = 1;
+    public static final byte CODEC_DEFLATE = 2;
+    public static final byte CODEC_NONE = 3;
+    public static final byte CODEC_DEFLATE_DICTIONARY = 4;
+    // deflate at the best compression level, with the dictionary if there is one
+    public static final byte CODEC_ARCHIVE = 5;
+
+    // deflate can't refer back further than its window
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final String SETTINGS_FILE = "compression.properties";
+    private static final String DICTIONARY_DIRECTORY = "dictionaries";
+    private static final String DICTIONARY_EXTENSION = ".dict";
+
+    private static final String PROPERTY_CODEC = "codec";
+    private static final String PROPERTY_LEVEL = "level";
+    private static final String PROPERTY_DICTIONARY = "dictionary";
+    private static final String PROPERTY_ARCHIVE_AFTER_DAYS = "archiveAfterDays";
+    private static final int DEFAULT_ARCHIVE_AFTER_DAYS = 30;
+
+    // segments of the sample data that are counted by the dictionary trainer
+    private static final int SEGMENT_SIZE = 64;
+
+    private final Path directory;
+    private final Int2ObjectMap<byte[]> dictionaries = new Int2ObjectOpenHashMap<>();
+    private volatile Settings settings;
+    private int archiveAfterDays;
+
+    private CubeCompression(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the compression settings and dictionaries of the region directory, writing the default settings if there are none.
+     */
+    public static CubeCompression load(Path directory) throws IOException {
+        CubeCompression compression = new CubeCompression(directory);
+        Path dictionaryDirectory = directory.resolve(DICTIONARY_DIRECTORY);
+        if (Files.isDirectory(dictionaryDirectory)) {
+            try (Stream<Path> files = Files.list(dictionaryDirectory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (file.getFileName().toString().endsWith(DICTIONARY_EXTENSION)) {
+                        byte[] dictionary = Files.readAllBytes(file);
+                        compression.dictionaries.put(dictionaryId(dictionary), dictionary);
+                    }
+                }
+            }
+        }
+
+        Properties properties = new Properties();
+        Path settingsFile = directory.resolve(SETTINGS_FILE);
+        if (Files.exists(settingsFile)) {
+            try (InputStream in = Files.newInputStream(settingsFile)) {
+                properties.load(in);
+            }
+        }
+        compression.settings = compression.parseSettings(properties);
+        try {
+            compression.archiveAfterDays = Math.max(0, Integer.parseInt(properties.getProperty(PROPERTY_ARCHIVE_AFTER_DAYS,
+                    String.valueOf(DEFAULT_ARCHIVE_AFTER_DAYS)).trim()));
+        } catch (NumberFormatException e) {
+            compression.archiveAfterDays = DEFAULT_ARCHIVE_AFTER_DAYS;
+        }
+        compression.saveSettings();
+        return compression;
+    }
+
+    private Settings parseSettings(Properties properties) {
+        String codecName = properties.getProperty(PROPERTY_CODEC, "deflate").trim().toLowerCase(Locale.ROOT);
+        int level;
+        try {
+            level = Integer.parseInt(properties.getProperty(PROPERTY_LEVEL, String.valueOf(Deflater.DEFAULT_COMPRESSION)).trim());
+        } catch (NumberFormatException e) {
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            CubicChunks.LOGGER.warn("Invalid cube compression level {}, using the default", level);
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        switch (codecName) {
+            case "none":
+                return new Settings(CODEC_NONE, level, null);
+            case "dictionary": {
+                String id = properties.getProperty(PROPERTY_DICTIONARY, "").trim();
+                byte[] dictionary = null;
+                try {
+                    dictionary = id.isEmpty() ? null : this.dictionaries.get(Integer.parseUnsignedInt(id, 16));
+                } catch (NumberFormatException ignored) {
+                }
+                if (dictionary == null) {
+                    CubicChunks.LOGGER.warn("Cube compression dictionary '{}' not found in {}, using deflate without a dictionary", id,
+                            this.directory.resolve(DICTIONARY_DIRECTORY));
+                    return new Settings(CODEC_DEFLATE, level, null);
+                }
+                return new Settings(CODEC_DEFLATE_DICTIONARY, level, dictionary);
+            }
+            case "deflate":
+                return new Settings(CODEC_DEFLATE, level, null);
+            default:
+                CubicChunks.LOGGER.warn("Unknown cube compression codec '{}', using deflate", codecName);
+                return new Settings(CODEC_DEFLATE, level, null);
+        }
+    }
+
+    private void saveSettings() throws IOException {
+        Settings settings = this.settings;
+        Properties properties = new Properties();
+        properties.setProperty(PROPERTY_CODEC, settings.codec == CODEC_NONE ? "none" : settings.dictionary != null ? "dictionary" : "deflate");
+        properties.setProperty(PROPERTY_LEVEL, String.valueOf(settings.level));
+        if (settings.dictionary != null) {
+            properties.setProperty(PROPERTY_DICTIONARY, Integer.toHexString(dictionaryId(settings.dictionary)));
+        }
+        properties.setProperty(PROPERTY_ARCHIVE_AFTER_DAYS, String.valueOf(this.archiveAfterDays));
+        Files.createDirectories(this.directory);
+        try (OutputStream out = Files.newOutputStream(this.directory.resolve(SETTINGS_FILE))) {
+            properties.store(out, "Cube compression: codec is none, deflate or dictionary, level is the deflate level from 0 to 9 or -1,"
+                    + " archiveAfterDays is how long a cube isn't used before it's archived, 0 to never archive");
+        }
+    }
+
+    /**
+     * Changes the codec and level of all cubes saved from now on. The {@code dictionary} codec keeps the dictionary that is currently
+     * used, or falls back to {@code deflate} if there is none.
+     */
+    public synchronized void configure(String codec, int level) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(PROPERTY_CODEC, codec);
+        properties.setProperty(PROPERTY_LEVEL, String.valueOf(level));
+        if (this.settings.dictionary != null) {
+            properties.setProperty(PROPERTY_DICTIONARY, Integer.toHexString(dictionaryId(this.settings.dictionary)));
+        }
+        this.settings = parseSettings(properties);
+        saveSettings();
+    }
+
+    public byte getCodec() {
+        return this.settings.codec;
+    }
+
+    public int getLevel() {
+        return this.settings.level;
+    }
+
+    /**
+     * @return the number of days a cube isn't loaded or saved before it's archived, or 0 if cubes are never archived
+     */
+    public int getArchiveAfterDays() {
+        return this.archiveAfterDays;
+    }
+
+    /**
+     * Stores the dictionary and compresses all cubes saved from now on with it.
+     *
+     * @return the id of the dictionary
+     */
+    public synchronized int useDictionary(byte[] dictionary) throws IOException {
+        int id = dictionaryId(dictionary);
+        Path dictionaryDirectory = this.directory.resolve(DICTIONARY_DIRECTORY);
+        Files.createDirectories(dictionaryDirectory);
+        Files.write(dictionaryDirectory.resolve(Integer.toHexString(id) + DICTIONARY_EXTENSION), dictionary);
+        synchronized (this.dictionaries) {
+            this.dictionaries.put(id, dictionary);
+        }
+        this.settings = new Settings(CODEC_DEFLATE_DICTIONARY, this.settings.level, dictionary);
+        saveSettings();
+        return id;
+    }
+
+    public CubeRegionFile.Entry compress(byte[] data) {
+        Settings settings = this.settings;
+        if (settings.codec == CODEC_NONE) {
+            return new CubeRegionFile.Entry(CODEC_NONE, data);
+        }
+        return new CubeRegionFile.Entry(settings.codec, deflate(data, settings.level, settings.dictionary));
+    }
+
+    /**
+     * Compresses cube data that isn't expected to be used soon, trading compression time for size.
+     */
+    public CubeRegionFile.Entry compressArchive(byte[] data) {
+        return new CubeRegionFile.Entry(CODEC_ARCHIVE, deflate(data, Deflater.BEST_COMPRESSION, this.settings.dictionary));
+    }
+
+    private static byte[] deflate(byte[] data, int level, @Nullable byte[] dictionary) {
+        Deflater deflater = new Deflater(level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] decompress(CubeRegionFile.Entry entry) throws IOException {
+        switch (entry.getCompression()) {
+            case CODEC_NONE:
+                return entry.getData();
+            case CODEC_GZIP:
+                try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(entry.getData()))) {
+                    return readAll(in, entry.getData().length * 4);
+                }
+            case CODEC_DEFLATE:
+            case CODEC_DEFLATE_DICTIONARY:
+            case CODEC_ARCHIVE:
+                return inflate(entry.getData());
+            default:
+                throw new IOException("Unknown compression type " + entry.getCompression());
+        }
+    }
+
+    private byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(getDictionary(inflater.getAdler()));
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Unexpected end of compressed cube data");
+                    }
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] getDictionary(int id) throws IOException {
+        byte[] dictionary;
+        synchronized (this.dictionaries) {
+            dictionary = this.dictionaries.get(id);
+        }
+        if (dictionary == null) {
+            throw new IOException("Missing cube compression dictionary " + Integer.toHexString(id));
+        }
+        return dictionary;
+    }
+
+    /**
+     * Builds a preset dictionary from the most common segments of the samples. Segments that occur in more samples end up closer to the end
+     * of the dictionary, where deflate can refer to them with shorter distances.
+     *
+     * @param samples uncompressed cube data
+     * @param size the maximum size of the dictionary, at most {@link #MAX_DICTIONARY_SIZE}
+     */
+    public static byte[] trainDictionary(List<byte[]> samples, int size) {
+        size = Math.min(size, MAX_DICTIONARY_SIZE);
+        // counts in how many samples a segment occurs, so a segment repeated within one cube doesn't win on its own
+        Map<ByteBuffer, int[]> segmentCounts = new HashMap<>();
+        for (byte[] sample : samples) {
+            Map<ByteBuffer, Boolean> seen = new HashMap<>();
+            for (int offset = 0; offset + SEGMENT_SIZE <= sample.length; offset += SEGMENT_SIZE) {
+                ByteBuffer segment = ByteBuffer.wrap(sample, offset, SEGMENT_SIZE).slice();
+                if (seen.put(segment, Boolean.TRUE) == null) {
+                    int[] count = segmentCounts.get(segment);
+                    if (count == null) {
+                        segmentCounts.put(segment, new int[] { 1 });
+                    } else {
+                        count[0]++;
+                    }
+                }
+            }
+        }
+        List<Map.Entry<ByteBuffer, int[]>> segments = new ArrayList<>(segmentCounts.entrySet());
+        segments.removeIf(entry -> entry.getValue()[0] < 2);
+        segments.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+
+        int count = Math.min(segments.size(), size / SEGMENT_SIZE);
+        byte[] dictionary = new byte[count * SEGMENT_SIZE];
+        // the most common segment goes last
+        for (int i = 0; i < count; i++) {
+            ByteBuffer segment = segments.get(i).getKey().duplicate();
+            segment.get(dictionary, (count - 1 - i) * SEGMENT_SIZE, SEGMENT_SIZE);
+        }
+        return dictionary;
+    }
+
+    // the id zlib stores in the header of data compressed with the dictionary
+    private static int dictionaryId(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int) adler.getValue();
+    }
+
+    private static byte[] readAll(InputStream in, int expectedSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(expectedSize);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Settings {
+        final byte codec;
+        final int level;
+        @Nullable final byte[] dictionary;
+
+        Settings(byte codec, int level, @Nullable byte[] dictionary) {
+            this.codec = codec;
+            this.level = level;
+            this.dictionary = dictionary;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.chunk.util.Utils;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A fixed size thread pool for reading and decoding cubes off the server thread.
+ *
+ * <p>Requests submitted for a cube position that is already being loaded share the pending future instead of reading the cube again.</p>
+ *
+ * <p>Executors made by {@link #createShared} with the same name run their tasks on one thread pool, so the configured number of I/O threads
+ * isn't multiplied by the number of dimensions. A shared pool with a single thread runs the tasks of all its executors in the order they
+ * were submitted.</p>
+ */
+public class CubeIOExecutor implements AutoCloseable {
+
+    // weight of the newest sample in the moving latency average
+    private static final double LATENCY_SMOOTHING = 0.05;
+
+    private static final Map<String, SharedPool> SHARED_POOLS = new HashMap<>();
+
+    private final ThreadPoolExecutor executor;
+    @Nullable private final String sharedName;
+    private final Long2ObjectMap<CompletableFuture<?>> pendingTasks = new Long2ObjectOpenHashMap<>();
+
+    // tasks submitted by this executor that haven't finished, which a shared executor waits for when it's closed
+    private final Object taskLock = new Object();
+    private int unfinishedTasks;
+    private boolean closed;
+
+    private final Object latencyLock = new Object();
+    private double averageLatencyNanos;
+    private long completedTasks;
+
+    public CubeIOExecutor(String name, int threads) {
+        this(createExecutor(name, threads), null);
+    }
+
+    private CubeIOExecutor(ThreadPoolExecutor executor, @Nullable String sharedName) {
+        this.executor = executor;
+        this.sharedName = sharedName;
+    }
+
+    /**
+     * Creates an executor that runs its tasks on the thread pool shared by all executors created with this name. The pool is created with
+     * the given number of threads if it doesn't exist yet, and shut down when the last of its executors is closed.
+     */
+    public static CubeIOExecutor createShared(String name, int threads) {
+        synchronized (SHARED_POOLS) {
+            SharedPool pool = SHARED_POOLS.computeIfAbsent(name, poolName -> new SharedPool(createExecutor(poolName, threads)));
+            pool.users++;
+            return new CubeIOExecutor(pool.executor, name);
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        // unbounded, the queued tasks are bounded by their callers: one per loading cube, pending cube save or blob write, and rejecting or
+        // blocking instead would either lose them or stall the server thread and break the order the blob writer relies on
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, name + " #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> CubicChunks.LOGGER.error("Uncaught exception in {}", t.getName(), e));
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the task on the I/O pool, or returns the pending future if a task for this position hasn't finished yet.
+     */
+    public <T> CompletableFuture<T> submit(long cubePos, Callable<T> task) {
+        CompletableFuture<T> future;
+        synchronized (this.pendingTasks) {
+            CompletableFuture<?> pending = this.pendingTasks.get(cubePos);
+            if (pending != null) {
+                return Utils.unsafeCast(pending);
+            }
+            future = new CompletableFuture<>();
+            this.pendingTasks.put(cubePos, future);
+        }
+        long submitTime = System.nanoTime();
+        try {
+            run(() -> {
+                T result = null;
+                Throwable error = null;
+                try {
+                    result = task.call();
+                } catch (Throwable t) {
+                    error = t;
+                }
+                synchronized (this.pendingTasks) {
+                    this.pendingTasks.remove(cubePos);
+                }
+                recordLatency(System.nanoTime() - submitTime);
+                if (error == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(error);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this.pendingTasks) {
+                this.pendingTasks.remove(cubePos);
+            }
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs the task on the I/O pool without deduplication.
+     *
+     * @throws RejectedExecutionException if the executor has been closed
+     */
+    public void execute(Runnable task) {
+        long submitTime = System.nanoTime();
+        run(() -> {
+            try {
+                task.run();
+            } finally {
+                recordLatency(System.nanoTime() - submitTime);
+            }
+        });
+    }
+
+    private void run(Runnable task) {
+        synchronized (this.taskLock) {
+            if (this.closed) {
+                throw new RejectedExecutionException("Cube IO executor is closed");
+            }
+            this.unfinishedTasks++;
+        }
+        try {
+            this.executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    onTaskFinished();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onTaskFinished();
+            throw e;
+        }
+    }
+
+    private void onTaskFinished() {
+        synchronized (this.taskLock) {
+            if (--this.unfinishedTasks == 0) {
+                this.taskLock.notifyAll();
+            }
+        }
+    }
+
+    private void recordLatency(long latencyNanos) {
+        synchronized (this.latencyLock) {
+            this.averageLatencyNanos = this.completedTasks == 0 ? latencyNanos :
+                    this.averageLatencyNanos + (latencyNanos - this.averageLatencyNanos) * LATENCY_SMOOTHING;
+            this.completedTasks++;
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for a free worker thread, including tasks of other executors sharing the pool
+     */
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return moving average of the time between submitting a task and its completion, including time spent in the queue
+     */
+    public double getAverageLatencyMillis() {
+        synchronized (this.latencyLock) {
+            return this.averageLatencyNanos / 1_000_000.0;
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the submitted ones to finish.
+     */
+    @Override
+    public void close() {
+        synchronized (this.taskLock) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        try {
+            if (this.sharedName != null) {
+                // the pool keeps running for the other executors
+                if (!awaitTasks(TimeUnit.SECONDS.toNanos(30))) {
+                    CubicChunks.LOGGER.warn("Cube IO tasks didn't finish in time, {} tasks still queued", getQueueDepth());
+                }
+                synchronized (SHARED_POOLS) {
+                    SharedPool pool = SHARED_POOLS.get(this.sharedName);
+                    if (--pool.users == 0) {
+                        SHARED_POOLS.remove(this.sharedName);
+                        pool.executor.shutdown();
+                    }
+                }
+            } else {
+                this.executor.shutdown();
+                if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    CubicChunks.LOGGER.warn("Cube IO tasks didn't finish in time, {} tasks still queued", getQueueDepth());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean awaitTasks(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (this.taskLock) {
+            while (this.unfinishedTasks > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this.taskLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    private static final class SharedPool {
+        final ThreadPoolExecutor executor;
+        int users;
+
+        SharedPool(ThreadPoolExecutor executor) {
+            this.executor = executor;
+        }
+    }
+}
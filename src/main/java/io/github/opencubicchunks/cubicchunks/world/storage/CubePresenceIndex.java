@@ -0,0 +1,215 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static io.github.opencubicchunks.cubicchunks.world.storage.CubeRegionFile.cubeToLocal;
+import static io.github.opencubicchunks.cubicchunks.world.storage.CubeRegionFile.cubeToRegion;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+/**
+ * Remembers which cubes of a dimension are stored, so loading a cube that was never saved doesn't have to touch the file system.
+ *
+ * <p>The index keeps one bitmap per region. The owner {@link #save}s it whenever it checkpoints its journal, so after a crash the saved index
+ * only misses cubes whose journal records are replayed, and replaying adds them again. It's rebuilt by scanning the stored cubes only if it
+ * can't be read.</p>
+ */
+public class CubePresenceIndex {
+
+    private static final int MAGIC = 0x43435049; // "CCPI"
+    private static final int VERSION = 1;
+    private static final int BITMAP_LONGS = CubeRegionFile.ENTRY_COUNT / Long.SIZE;
+
+    private final Path file;
+    private final Long2ObjectMap<long[]> regions = new Long2ObjectOpenHashMap<>();
+    // changed since the last save
+    private boolean dirty;
+
+    private CubePresenceIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Loads the index from the given file, or rebuilds it from the region files and legacy cube files if it can't be loaded.
+     */
+    public static CubePresenceIndex loadOrRebuild(Path file, Path regionDirectory, Path legacyDirectory) {
+        CubePresenceIndex index = new CubePresenceIndex(file);
+        if (Files.exists(file)) {
+            try {
+                index.read();
+                return index;
+            } catch (IOException e) {
+                CubicChunks.LOGGER.warn("Couldn't read cube index {}, rebuilding it", file, e);
+                index.regions.clear();
+            }
+        }
+        index.rebuild(regionDirectory, legacyDirectory);
+        return index;
+    }
+
+    public synchronized boolean contains(CubePos pos) {
+        long[] bitmap = this.regions.get(regionKey(pos));
+        if (bitmap == null) {
+            return false;
+        }
+        int index = regionIndex(pos);
+        return (bitmap[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public synchronized void add(CubePos pos) {
+        long key = regionKey(pos);
+        long[] bitmap = this.regions.get(key);
+        if (bitmap == null) {
+            bitmap = new long[BITMAP_LONGS];
+            this.regions.put(key, bitmap);
+        }
+        int index = regionIndex(pos);
+        if ((bitmap[index >>> 6] & (1L << index)) == 0) {
+            bitmap[index >>> 6] |= 1L << index;
+            this.dirty = true;
+        }
+    }
+
+    public synchronized void remove(CubePos pos) {
+        long[] bitmap = this.regions.get(regionKey(pos));
+        if (bitmap != null) {
+            int index = regionIndex(pos);
+            if ((bitmap[index >>> 6] & (1L << index)) != 0) {
+                bitmap[index >>> 6] &= ~(1L << index);
+                this.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the index to disk and syncs it, if it changed since it was last saved.
+     */
+    public synchronized void save() throws IOException {
+        if (!this.dirty) {
+            return;
+        }
+        Files.createDirectories(this.file.getParent());
+        Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(this.regions.size());
+            for (Long2ObjectMap.Entry<long[]> entry : this.regions.long2ObjectEntrySet()) {
+                out.writeLong(entry.getLongKey());
+                for (long value : entry.getValue()) {
+                    out.writeLong(value);
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.dirty = false;
+    }
+
+    private void read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a cube index or unsupported version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                long[] bitmap = new long[BITMAP_LONGS];
+                for (int j = 0; j < BITMAP_LONGS; j++) {
+                    bitmap[j] = in.readLong();
+                }
+                this.regions.put(key, bitmap);
+            }
+        }
+    }
+
+    private void rebuild(Path regionDirectory, Path legacyDirectory) {
+        long startTime = System.nanoTime();
+        if (Files.isDirectory(regionDirectory)) {
+            try (Stream<Path> files = Files.list(regionDirectory)) {
+                files.filter(path -> path.getFileName().toString().endsWith(CubeRegionFileCache.EXTENSION)).forEach(this::addRegionFile);
+            } catch (IOException e) {
+                CubicChunks.LOGGER.error("Couldn't list region files in {}", regionDirectory, e);
+            }
+        }
+        if (Files.isDirectory(legacyDirectory)) {
+            try (Stream<Path> files = Files.list(legacyDirectory)) {
+                files.forEach(this::addLegacyFile);
+            } catch (IOException e) {
+                CubicChunks.LOGGER.error("Couldn't list legacy cube files in {}", legacyDirectory, e);
+            }
+        }
+        CubicChunks.LOGGER.info("Rebuilt cube index for {} regions in {}ms", this.regions.size(), (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    private void addRegionFile(Path path) {
+        String[] coords = path.getFileName().toString().split("\\.");
+        if (coords.length != 4) {
+            return;
+        }
+        int regionX, regionY, regionZ;
+        try {
+            regionX = Integer.parseInt(coords[0]);
+            regionY = Integer.parseInt(coords[1]);
+            regionZ = Integer.parseInt(coords[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        try (CubeRegionFile regionFile = new CubeRegionFile(path)) {
+            long[] bitmap = new long[BITMAP_LONGS];
+            boolean any = false;
+            for (int i = 0; i < CubeRegionFile.ENTRY_COUNT; i++) {
+                if (regionFile.hasEntry(i)) {
+                    bitmap[i >>> 6] |= 1L << i;
+                    any = true;
+                }
+            }
+            if (any) {
+                this.regions.put(CubePos.asLong(regionX, regionY, regionZ), bitmap);
+                this.dirty = true;
+            }
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Couldn't read region file {}", path, e);
+        }
+    }
+
+    private void addLegacyFile(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.endsWith(".bin")) {
+            return;
+        }
+        String[] coords = name.substring(0, name.length() - 4).split("_");
+        if (coords.length != 3) {
+            return;
+        }
+        try {
+            add(CubePos.of(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]), Integer.parseInt(coords[2])));
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    private static long regionKey(CubePos pos) {
+        return CubePos.asLong(cubeToRegion(pos.getX()), cubeToRegion(pos.getY()), cubeToRegion(pos.getZ()));
+    }
+
+    private static int regionIndex(CubePos pos) {
+        return CubeRegionFile.index(cubeToLocal(pos.getX()), cubeToLocal(pos.getY()), cubeToLocal(pos.getZ()));
+    }
+}
@@ -0,0 +1,582 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A sector-allocated file holding a {@link #REGION_SIZE}x{@link #REGION_SIZE}x{@link #REGION_SIZE} block of cubes.
+ *
+ * <p>The file starts with a header of one offset and one timestamp per cube. An offset entry packs the first sector in the upper 24 bits and
+ * the sector count in the lower 8 bits; {@code 0} means the cube isn't stored. Each stored entry starts with the length of the rest of the
+ * entry, followed by a compression id and the compressed data.</p>
+ *
+ * <p>Entries of only {@link #INLINE_DATA_SIZE} bytes are stored inline: the offset entry is set to {@code -1} and the data takes the place of
+ * the timestamp, so they don't need any sectors.</p>
+ *
+ * <p>Writes are copy-on-write: new data always goes into freshly allocated sectors, and the old sectors are only released after the header
+ * points at the new ones, so an interrupted write never leaves a half-written cube behind.</p>
+ *
+ * <p>{@link #rewrite} and {@link #compactStep} move entries without a record in the save journal, so their old sectors stay reserved until
+ * the header that points away from them is forced to disk by {@link #sync}, {@link #truncate} or {@link #close}. Until then a crash can
+ * leave the header pointing at the old sectors, which still hold the entry.</p>
+ *
+ * <p>Entries are read from read-only memory mappings of the file, so reading a cube is a copy instead of a system call. The file is mapped
+ * in chunks of a megabyte once it's large enough to contain them, so a mapping never has to be replaced when the file grows. Entries past
+ * the last complete chunk, entries that cross the end of a chunk, and files that can't be mapped are read from the channel instead. The
+ * mappings are released right away when the file is truncated or closed, since a mapped file can't be truncated on Windows.</p>
+ *
+ * <p>{@link #compactStep} moves entries from the end of the file into free space closer to the header, after which {@link #truncate} can give
+ * the space at the end back to the file system.</p>
+ */
+public class CubeRegionFile implements AutoCloseable {
+
+    public static final int REGION_SIZE_BITS = 4;
+    public static final int REGION_SIZE = 1 << REGION_SIZE_BITS;
+    public static final int ENTRY_COUNT = REGION_SIZE * REGION_SIZE * REGION_SIZE;
+
+    public static final int SECTOR_SIZE = 512;
+    public static final int INLINE_DATA_SIZE = Integer.BYTES;
+    private static final int INLINE_OFFSET = -1;
+    private static final int MAX_SECTORS_PER_ENTRY = 0xFF;
+    // int length + byte compression id
+    private static final int ENTRY_HEADER_SIZE = 5;
+
+    private static final int OFFSETS_START = 0;
+    private static final int TIMESTAMPS_START = OFFSETS_START + ENTRY_COUNT * Integer.BYTES;
+    private static final int HEADER_SIZE = TIMESTAMPS_START + ENTRY_COUNT * Integer.BYTES;
+    private static final int HEADER_SECTORS = HEADER_SIZE / SECTOR_SIZE;
+
+    private static final int MAPPING_CHUNK_SIZE = 1 << 20;
+    @Nullable private static final Unmapper UNMAPPER = findUnmapper();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int[] offsets = new int[ENTRY_COUNT];
+    private final int[] timestamps = new int[ENTRY_COUNT];
+    private final BitSet usedSectors = new BitSet();
+    // sectors of moved entries, released once the header is forced to disk
+    private final BitSet movedSectors = new BitSet();
+    // null for chunks that aren't mapped yet
+    private final List<MappedByteBuffer> mappedChunks = new ArrayList<>();
+    private boolean mappingDisabled = UNMAPPER == null;
+    // written to since the last sync
+    private volatile boolean dirty;
+    // number of users that acquired the file from a CubeRegionFileCache, guarded by the cache
+    int users;
+
+    public CubeRegionFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.usedSectors.set(0, HEADER_SECTORS);
+
+        long size = this.channel.size();
+        if (size < HEADER_SIZE) {
+            this.channel.write(ByteBuffer.allocate(HEADER_SIZE), 0);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        IntBuffer headerInts = header.asIntBuffer();
+        headerInts.get(this.offsets);
+        headerInts.get(this.timestamps);
+
+        long sectorsInFile = (size + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            int offset = this.offsets[i];
+            if (offset == 0 || offset == INLINE_OFFSET) {
+                continue;
+            }
+            int start = sectorStart(offset);
+            int count = sectorCount(offset);
+            if (start < HEADER_SECTORS || count == 0 || start + count > sectorsInFile) {
+                // points outside the file, most likely a write that never finished
+                this.offsets[i] = 0;
+                continue;
+            }
+            this.usedSectors.set(start, start + count);
+        }
+    }
+
+    public static int index(int localX, int localY, int localZ) {
+        return (localX << (REGION_SIZE_BITS * 2)) | (localY << REGION_SIZE_BITS) | localZ;
+    }
+
+    public static int cubeToRegion(int cube) {
+        return cube >> REGION_SIZE_BITS;
+    }
+
+    public static int cubeToLocal(int cube) {
+        return cube & (REGION_SIZE - 1);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public synchronized boolean hasEntry(int index) {
+        return this.offsets[index] != 0;
+    }
+
+    public synchronized boolean isInline(int index) {
+        return this.offsets[index] == INLINE_OFFSET;
+    }
+
+    /**
+     * @return last write time of the entry, in seconds since epoch, or 0 if not stored or stored inline
+     */
+    public synchronized int getTimestamp(int index) {
+        int offset = this.offsets[index];
+        return offset == 0 || offset == INLINE_OFFSET ? 0 : this.timestamps[index];
+    }
+
+    /**
+     * Sets the timestamp of an entry stored in sectors without rewriting it, to record that it was used.
+     */
+    public synchronized void touch(int index, int timestamp) throws IOException {
+        int offset = this.offsets[index];
+        if (offset != 0 && offset != INLINE_OFFSET) {
+            setHeader(index, offset, timestamp);
+        }
+    }
+
+    /**
+     * @return the compression id of the entry stored in sectors, without reading the rest of the entry, or 0 if there is no such entry
+     */
+    public synchronized byte readCompression(int index) throws IOException {
+        int offset = this.offsets[index];
+        if (offset == 0 || offset == INLINE_OFFSET) {
+            return 0;
+        }
+        long position = (long) sectorStart(offset) * SECTOR_SIZE;
+        ByteBuffer buffer = mappedView(position, ENTRY_HEADER_SIZE);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+            readFully(buffer, position);
+        }
+        return buffer.get(Integer.BYTES);
+    }
+
+    /**
+     * @return the entry stored in sectors, or null if there is no such entry
+     */
+    @Nullable
+    public synchronized Entry read(int index) throws IOException {
+        int offset = this.offsets[index];
+        if (offset == 0 || offset == INLINE_OFFSET) {
+            return null;
+        }
+        int count = sectorCount(offset);
+        long position = (long) sectorStart(offset) * SECTOR_SIZE;
+        ByteBuffer buffer = mappedView(position, count * SECTOR_SIZE);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(count * SECTOR_SIZE);
+            readFully(buffer, position);
+            buffer.flip();
+        }
+
+        int length = buffer.getInt();
+        if (length <= 0 || length + Integer.BYTES > buffer.capacity()) {
+            throw new IOException("Corrupted entry " + index + " in " + this.path + ": invalid length " + length);
+        }
+        byte compression = buffer.get();
+        byte[] data = new byte[length - 1];
+        buffer.get(data);
+        return new Entry(compression, data);
+    }
+
+    /**
+     * @return a view of the mapped file from position to position + length, or null if that part of the file isn't mapped
+     */
+    @Nullable
+    private ByteBuffer mappedView(long position, int length) throws IOException {
+        if (this.mappingDisabled) {
+            return null;
+        }
+        int chunk = (int) (position / MAPPING_CHUNK_SIZE);
+        long chunkStart = (long) chunk * MAPPING_CHUNK_SIZE;
+        if (position + length > chunkStart + MAPPING_CHUNK_SIZE) {
+            return null;
+        }
+        MappedByteBuffer mapped = chunk < this.mappedChunks.size() ? this.mappedChunks.get(chunk) : null;
+        if (mapped == null) {
+            if (this.channel.size() < chunkStart + MAPPING_CHUNK_SIZE) {
+                return null;
+            }
+            try {
+                mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, MAPPING_CHUNK_SIZE);
+            } catch (IOException e) {
+                CubicChunks.LOGGER.warn("Couldn't map region file {}, reading it without mapping", this.path, e);
+                unmap();
+                this.mappingDisabled = true;
+                return null;
+            }
+            while (this.mappedChunks.size() <= chunk) {
+                this.mappedChunks.add(null);
+            }
+            this.mappedChunks.set(chunk, mapped);
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) (position - chunkStart));
+        view.limit((int) (position - chunkStart) + length);
+        return view.slice();
+    }
+
+    /**
+     * Releases all mappings. Views of them must not be used anymore, which is why they never leave a synchronized method.
+     */
+    private void unmap() {
+        for (MappedByteBuffer mapped : this.mappedChunks) {
+            if (mapped != null) {
+                try {
+                    //noinspection ConstantConditions
+                    UNMAPPER.unmap(mapped);
+                } catch (Exception e) {
+                    // released when it's garbage collected
+                    CubicChunks.LOGGER.warn("Couldn't unmap region file {}", this.path, e);
+                }
+            }
+        }
+        this.mappedChunks.clear();
+    }
+
+    public synchronized void write(int index, byte compression, byte[] data, int length) throws IOException {
+        write(index, compression, data, length, (int) (System.currentTimeMillis() / 1000L));
+    }
+
+    /**
+     * Writes an entry with the given timestamp, for rewriting an entry without changing when it was last used.
+     */
+    public synchronized void write(int index, byte compression, byte[] data, int length, int timestamp) throws IOException {
+        ByteBuffer buffer = entryBuffer(index, compression, data, length);
+        int sectors = buffer.capacity() / SECTOR_SIZE;
+        int start = allocate(sectors);
+        writeFully(buffer, (long) start * SECTOR_SIZE);
+
+        int oldOffset = this.offsets[index];
+        setHeader(index, start << 8 | sectors, timestamp);
+        free(oldOffset);
+    }
+
+    /**
+     * Rewrites an entry stored in sectors with the same data in a different form, keeping its timestamp, unless the entry was written or
+     * touched since it had the given timestamp. The new data is written and forced to disk without holding the lock of the file.
+     *
+     * @return false if the entry changed and wasn't rewritten
+     */
+    public boolean rewrite(int index, int timestamp, byte compression, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = entryBuffer(index, compression, data, length);
+        int sectors = buffer.capacity() / SECTOR_SIZE;
+        int offset;
+        int start;
+        synchronized (this) {
+            offset = this.offsets[index];
+            if (getTimestamp(index) != timestamp) {
+                return false;
+            }
+            start = allocate(sectors);
+        }
+        return move(index, offset, timestamp, buffer, start, sectors);
+    }
+
+    private ByteBuffer entryBuffer(int index, byte compression, byte[] data, int length) throws IOException {
+        int sectors = (length + ENTRY_HEADER_SIZE + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        if (sectors > MAX_SECTORS_PER_ENTRY) {
+            throw new IOException("Cube data too large: " + length + " bytes at index " + index + " in " + this.path);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(sectors * SECTOR_SIZE);
+        buffer.putInt(length + 1);
+        buffer.put(compression);
+        buffer.put(data, 0, length);
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Writes the entry into the sectors allocated for it and forces it to disk, then points the header at it if the entry still has the
+     * offset and timestamp it had when they were allocated. Only the header update holds the lock, the allocated sectors aren't used by
+     * anything else.
+     *
+     * @return false if the entry changed meanwhile, and the sectors were freed again
+     */
+    private boolean move(int index, int offset, int timestamp, ByteBuffer buffer, int start, int sectors) throws IOException {
+        boolean moved = false;
+        try {
+            writeFully(buffer, (long) start * SECTOR_SIZE);
+            this.channel.force(false);
+            synchronized (this) {
+                if (this.offsets[index] == offset && this.timestamps[index] == timestamp) {
+                    moved = true;
+                    // without a journal record, the old sectors still have to hold the entry until the header is on disk
+                    this.movedSectors.set(sectorStart(offset), sectorStart(offset) + sectorCount(offset));
+                    setHeader(index, start << 8 | sectors, timestamp);
+                }
+            }
+        } finally {
+            if (!moved) {
+                synchronized (this) {
+                    free(start << 8 | sectors);
+                }
+            }
+        }
+        return moved;
+    }
+
+    public synchronized int readInline(int index) {
+        if (this.offsets[index] != INLINE_OFFSET) {
+            throw new IllegalStateException("Entry " + index + " in " + this.path + " isn't stored inline");
+        }
+        return this.timestamps[index];
+    }
+
+    public synchronized void writeInline(int index, int data) throws IOException {
+        int oldOffset = this.offsets[index];
+        setHeader(index, INLINE_OFFSET, data);
+        free(oldOffset);
+    }
+
+    public synchronized void delete(int index) throws IOException {
+        int oldOffset = this.offsets[index];
+        if (oldOffset == 0) {
+            return;
+        }
+        setHeader(index, 0, 0);
+        free(oldOffset);
+    }
+
+    /**
+     * @return the part of the file's sectors, not counting the header, that isn't used by any entry
+     */
+    public synchronized double getFreeSectorRatio() throws IOException {
+        long sectorsInFile = (this.channel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE - HEADER_SECTORS;
+        if (sectorsInFile <= 0) {
+            return 0;
+        }
+        long usedSectors = this.usedSectors.cardinality() - HEADER_SECTORS;
+        return (double) (sectorsInFile - usedSectors) / sectorsInFile;
+    }
+
+    /**
+     * Moves the entry that is stored last in the file to the first free space before it that is large enough. The entry is copied and the
+     * copy is forced to disk without holding the lock of the file.
+     *
+     * @return true if an entry was moved, false if no entry can be moved closer to the header or the entry changed while it was copied
+     */
+    public boolean compactStep() throws IOException {
+        int last = -1;
+        int lastStart = -1;
+        int offset;
+        int timestamp;
+        int sectors;
+        int start;
+        synchronized (this) {
+            for (int i = 0; i < ENTRY_COUNT; i++) {
+                int entryOffset = this.offsets[i];
+                if (entryOffset != 0 && entryOffset != INLINE_OFFSET && sectorStart(entryOffset) > lastStart) {
+                    last = i;
+                    lastStart = sectorStart(entryOffset);
+                }
+            }
+            if (last < 0) {
+                return false;
+            }
+            offset = this.offsets[last];
+            timestamp = this.timestamps[last];
+            sectors = sectorCount(offset);
+            start = findFree(sectors);
+            if (start >= lastStart) {
+                return false;
+            }
+            this.usedSectors.set(start, start + sectors);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(sectors * SECTOR_SIZE);
+        try {
+            // if the entry is written meanwhile, its old sectors may be reused while they are copied, but then the copy isn't used
+            readFully(buffer, (long) lastStart * SECTOR_SIZE);
+        } catch (IOException e) {
+            synchronized (this) {
+                free(start << 8 | sectors);
+            }
+            throw e;
+        }
+        buffer.flip();
+        return move(last, offset, timestamp, buffer, start, sectors);
+    }
+
+    /**
+     * Cuts off the free sectors at the end of the file, after forcing the header to disk so the sectors of moved entries can be released.
+     *
+     * @return the number of bytes the file got smaller by
+     */
+    public synchronized long truncate() throws IOException {
+        if (!this.movedSectors.isEmpty()) {
+            // the header that points away from them has to be on disk before they are cut off and written again
+            this.channel.force(false);
+            releaseMovedSectors();
+        }
+        long size = this.channel.size();
+        long end = (long) this.usedSectors.length() * SECTOR_SIZE;
+        if (end >= size) {
+            return 0;
+        }
+        unmap();
+        this.channel.truncate(end);
+        return size - end;
+    }
+
+    public synchronized void sync() throws IOException {
+        this.channel.force(true);
+        this.dirty = false;
+        releaseMovedSectors();
+    }
+
+    private void releaseMovedSectors() {
+        this.usedSectors.andNot(this.movedSectors);
+        this.movedSectors.clear();
+    }
+
+    /**
+     * Syncs the file if it was written to, since a file closed by the cache isn't synced with the others anymore, and closes it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        unmap();
+        try {
+            if (this.dirty) {
+                sync();
+            }
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private void setHeader(int index, int offset, int timestamp) throws IOException {
+        this.offsets[index] = offset;
+        this.timestamps[index] = timestamp;
+        // the timestamp may hold inline data, so it's written before the offset that marks it as such
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        buffer.putInt(0, timestamp);
+        writeFully(buffer, TIMESTAMPS_START + index * Integer.BYTES);
+        buffer.clear();
+        buffer.putInt(0, offset);
+        writeFully(buffer, OFFSETS_START + index * Integer.BYTES);
+    }
+
+    private int allocate(int sectors) {
+        int start = findFree(sectors);
+        this.usedSectors.set(start, start + sectors);
+        return start;
+    }
+
+    private int findFree(int sectors) {
+        int start = this.usedSectors.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int nextUsed = this.usedSectors.nextSetBit(start);
+            if (nextUsed < 0 || nextUsed - start >= sectors) {
+                break;
+            }
+            start = this.usedSectors.nextClearBit(nextUsed);
+        }
+        return start;
+    }
+
+    private void free(int offset) {
+        if (offset != 0 && offset != INLINE_OFFSET) {
+            int start = sectorStart(offset);
+            this.usedSectors.clear(start, start + sectorCount(offset));
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file " + this.path + " at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        this.dirty = true;
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static int sectorStart(int offset) {
+        return offset >>> 8;
+    }
+
+    private static int sectorCount(int offset) {
+        return offset & 0xFF;
+    }
+
+    /**
+     * Finds a way to release a mapping without waiting for the garbage collector. There is no public API for that, so this uses
+     * {@code Unsafe.invokeCleaner} on Java 9 and later, and the cleaner of the buffer on Java 8.
+     *
+     * @return null if neither is available, and files aren't mapped at all
+     */
+    @Nullable
+    private static Unmapper findUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null) {
+                    clean.invoke(bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            CubicChunks.LOGGER.warn("Can't unmap files on this JVM, region files are read without mapping them", e);
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Unmapper {
+        void unmap(MappedByteBuffer buffer) throws Exception;
+    }
+
+    public static class Entry {
+        private final byte compression;
+        private final byte[] data;
+
+        public Entry(byte compression, byte[] data) {
+            this.compression = compression;
+            this.data = data;
+        }
+
+        public byte getCompression() {
+            return compression;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps a bounded number of {@link CubeRegionFile}s open, closing the least recently used one when the limit is reached.
+ *
+ * <p>A region file returned by {@link #acquire} stays open until it's passed to {@link #release}, so callers only need the lock of the region
+ * file itself while using it. Region files in use are never closed; if all of them are, the limit is exceeded until they are released.</p>
+ */
+public class CubeRegionFileCache implements AutoCloseable {
+
+    static final String EXTENSION = ".3dr";
+
+    private final Path directory;
+    private final int maxOpenFiles;
+    private final Long2ObjectLinkedOpenHashMap<CubeRegionFile> regionFiles = new Long2ObjectLinkedOpenHashMap<>();
+
+    public CubeRegionFileCache(Path directory, int maxOpenFiles) {
+        this.directory = directory;
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    /**
+     * @return the region file, which must be released after use, or null if it doesn't exist and create is false
+     */
+    @Nullable
+    public synchronized CubeRegionFile acquire(int regionX, int regionY, int regionZ, boolean create) throws IOException {
+        long key = CubePos.asLong(regionX, regionY, regionZ);
+        CubeRegionFile regionFile = this.regionFiles.getAndMoveToFirst(key);
+        if (regionFile == null) {
+            Path path = this.directory.resolve(regionX + "." + regionY + "." + regionZ + EXTENSION);
+            if (!create && !Files.exists(path)) {
+                return null;
+            }
+            if (this.regionFiles.size() >= this.maxOpenFiles) {
+                closeLeastRecentlyUsed();
+            }
+            Files.createDirectories(this.directory);
+            regionFile = new CubeRegionFile(path);
+            this.regionFiles.putAndMoveToFirst(key, regionFile);
+        }
+        regionFile.users++;
+        return regionFile;
+    }
+
+    public synchronized void release(CubeRegionFile regionFile) throws IOException {
+        regionFile.users--;
+        // opened while all others were in use
+        if (regionFile.users == 0 && this.regionFiles.size() > this.maxOpenFiles) {
+            closeLeastRecentlyUsed();
+        }
+    }
+
+    private void closeLeastRecentlyUsed() throws IOException {
+        // iterates from the most recently used file
+        long key = 0;
+        CubeRegionFile unused = null;
+        for (Long2ObjectMap.Entry<CubeRegionFile> entry : this.regionFiles.long2ObjectEntrySet()) {
+            if (entry.getValue().users == 0) {
+                key = entry.getLongKey();
+                unused = entry.getValue();
+            }
+        }
+        if (unused != null) {
+            this.regionFiles.remove(key);
+            unused.close();
+        }
+    }
+
+    public void sync() throws IOException {
+        List<CubeRegionFile> regionFiles;
+        synchronized (this) {
+            regionFiles = new ArrayList<>(this.regionFiles.values());
+            regionFiles.forEach(regionFile -> regionFile.users++);
+        }
+        // each file is synced under its own lock, so the others can be used meanwhile
+        try {
+            for (CubeRegionFile regionFile : regionFiles) {
+                regionFile.sync();
+            }
+        } finally {
+            for (CubeRegionFile regionFile : regionFiles) {
+                release(regionFile);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException exception = null;
+        for (CubeRegionFile regionFile : this.regionFiles.values()) {
+            try {
+                regionFile.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        this.regionFiles.clear();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of cube writes, written before the region files so that a cube save is durable as soon as its record is.
+ *
+ * <p>A record is a magic number, the cube position, a compression id ({@link #INLINE} for data stored inline in the region header), the
+ * length of the data, the data as it's stored in the region file and a CRC32 of everything after the magic number. A record that was cut off
+ * by a crash fails the check, and replaying stops there.</p>
+ *
+ * <p>Records are appended without forcing them to disk. {@link #commit} forces everything appended so far with a single sync, and threads
+ * that ask for a commit while one is running wait for it and then share the next one, so concurrent saves are committed as a group.
+ * {@link #appendAll} writes the records of many saves at once, so they can be committed with a single sync by a single thread.</p>
+ *
+ * <p>The owner {@link #reset}s the journal after syncing the region files, when none of its records are needed anymore.</p>
+ */
+class CubeSaveJournal implements AutoCloseable {
+
+    // compression id of records for data stored inline, compression ids of stored entries start at 1
+    static final byte INLINE = 0;
+    private static final int RECORD_MAGIC = 0x43434A52;
+    // magic, x, y, z, compression, length
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 5 + 1;
+    private static final int MAX_RECORD_DATA = CubeRegionFile.SECTOR_SIZE * 0xFF;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final SectionBlobStore sectionBlobStore;
+
+    private final Object lock = new Object();
+    private long size;
+    private long appendedRecords;
+    private long committedRecords;
+    private boolean committing;
+
+    /**
+     * @param sectionBlobStore synced with every commit, records may reference blobs written just before them
+     */
+    CubeSaveJournal(Path path, SectionBlobStore sectionBlobStore) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.sectionBlobStore = sectionBlobStore;
+        this.size = this.channel.size();
+    }
+
+    /**
+     * Calls the consumer for every complete record in the order they were appended.
+     *
+     * @return the number of records replayed
+     */
+    int replay(RecordConsumer consumer) throws IOException {
+        long fileSize = this.channel.size();
+        long position = 0;
+        int records = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE + Integer.BYTES <= fileSize) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            if (header.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            int x = header.getInt();
+            int y = header.getInt();
+            int z = header.getInt();
+            byte compression = header.get();
+            int length = header.getInt();
+            if (length < 0 || length > MAX_RECORD_DATA || position + RECORD_HEADER_SIZE + length + Integer.BYTES > fileSize) {
+                break;
+            }
+            ByteBuffer data = ByteBuffer.allocate(length + Integer.BYTES);
+            readFully(data, position + RECORD_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), Integer.BYTES, RECORD_HEADER_SIZE - Integer.BYTES);
+            crc.update(data.array(), 0, length);
+            if ((int) crc.getValue() != data.getInt(length)) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(data.array(), 0, bytes, 0, length);
+            consumer.accept(CubePos.of(x, y, z), compression, bytes);
+            position += RECORD_HEADER_SIZE + length + Integer.BYTES;
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Appends a record without forcing it to disk.
+     *
+     * @return the number to pass to {@link #commit} to wait until the record is on disk
+     */
+    long append(CubePos pos, byte compression, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize(length));
+        putRecord(buffer, pos, compression, data, length);
+        return write(buffer, 1);
+    }
+
+    /**
+     * Appends the records of all entries with a single write, without forcing them to disk.
+     *
+     * @return the number to pass to {@link #commit} to wait until all of the records are on disk
+     */
+    long appendAll(List<CubePos> positions, List<CubeRegionFile.Entry> entries) throws IOException {
+        int size = 0;
+        for (CubeRegionFile.Entry entry : entries) {
+            size += recordSize(entry.getData().length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < entries.size(); i++) {
+            CubeRegionFile.Entry entry = entries.get(i);
+            putRecord(buffer, positions.get(i), entry.getCompression(), entry.getData(), entry.getData().length);
+        }
+        return write(buffer, entries.size());
+    }
+
+    private static int recordSize(int length) {
+        return RECORD_HEADER_SIZE + length + Integer.BYTES;
+    }
+
+    private static void putRecord(ByteBuffer buffer, CubePos pos, byte compression, byte[] data, int length) {
+        int start = buffer.position();
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(pos.getX());
+        buffer.putInt(pos.getY());
+        buffer.putInt(pos.getZ());
+        buffer.put(compression);
+        buffer.putInt(length);
+        buffer.put(data, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start + Integer.BYTES, buffer.position() - start - Integer.BYTES);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    private long write(ByteBuffer buffer, int records) throws IOException {
+        buffer.flip();
+        synchronized (this.lock) {
+            long position = this.size;
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer, position + buffer.position());
+            }
+            this.size += buffer.limit();
+            this.appendedRecords += records;
+            return this.appendedRecords;
+        }
+    }
+
+    /**
+     * Blocks until the given record and all records before it are forced to disk.
+     */
+    void commit(long record) throws IOException {
+        while (true) {
+            long target;
+            synchronized (this.lock) {
+                while (this.committing && this.committedRecords < record) {
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while committing cube save journal " + this.path, e);
+                    }
+                }
+                if (this.committedRecords >= record) {
+                    return;
+                }
+                this.committing = true;
+                target = this.appendedRecords;
+            }
+            boolean committed = false;
+            try {
+                this.sectionBlobStore.sync();
+                this.channel.force(false);
+                committed = true;
+            } finally {
+                synchronized (this.lock) {
+                    this.committing = false;
+                    if (committed) {
+                        this.committedRecords = Math.max(this.committedRecords, target);
+                    }
+                    this.lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    long getSize() {
+        synchronized (this.lock) {
+            return this.size;
+        }
+    }
+
+    /**
+     * Drops all records. The caller has to make sure no record is being appended or committed, and that the region files are synced.
+     */
+    void reset() throws IOException {
+        synchronized (this.lock) {
+            this.channel.truncate(0);
+            this.channel.force(true);
+            this.size = 0;
+            this.committedRecords = this.appendedRecords;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file " + this.path);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(CubePos pos, byte compression, byte[] data) throws IOException;
+    }
+}
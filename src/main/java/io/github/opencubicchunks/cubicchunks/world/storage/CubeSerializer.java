@@ -5,57 +5,97 @@ import io.github.opencubicchunks.cubicchunks.chunk.cube.BigCube;
 import io.github.opencubicchunks.cubicchunks.chunk.cube.CubePrimer;
 import io.github.opencubicchunks.cubicchunks.chunk.cube.CubePrimerWrapper;
 import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import io.github.opencubicchunks.cubicchunks.chunk.util.Utils;
+import io.github.opencubicchunks.cubicchunks.mixin.access.common.PalettedContainerAccess;
 import io.github.opencubicchunks.cubicchunks.utils.Coords;
+import io.github.opencubicchunks.cubicchunks.world.lighting.IWorldLightManager;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.BitArray;
+import net.minecraft.util.math.SectionPos;
+import net.minecraft.util.palette.IPalette;
+import net.minecraft.util.palette.PalettedContainer;
 import net.minecraft.util.palette.UpgradeData;
 import net.minecraft.world.EmptyTickList;
+import net.minecraft.world.LightType;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ChunkSection;
 import net.minecraft.world.chunk.ChunkStatus;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.lighting.WorldLightManager;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
 public class CubeSerializer {
 
-    public static IBigCube loadCube(World world, CubePos pos, Path worldDir) throws IOException {
-        Path cubePath = worldDir.resolve("cubes32/" + pos.getX() + "_" + pos.getY() + "_" + pos.getZ() + ".bin");
-        if (!Files.exists(cubePath)) {
+    // the first byte of version 1 is the cube status, so a set high bit marks a versioned format
+    private static final int FORMAT_VERSION_FLAG = 0x80;
+    private static final int FORMAT_VERSION = 5;
+    // version 2 has no section lengths, so single sections can't be replaced
+    private static final int FORMAT_VERSION_UNSIZED_SECTIONS = 2;
+    // version 3 has no flags and no light
+    private static final int FORMAT_VERSION_NO_FLAGS = 3;
+    // version 4 has no section blob references
+    private static final int FORMAT_VERSION_NO_BLOBS = 4;
+
+    // section entries of version 5 start with the data length shifted left by one, or this for a reference to a section blob
+    private static final int SECTION_BLOB_REFERENCE = 1;
+
+    // a cube made of a single block state, stored in CubeRegionFile.INLINE_DATA_SIZE bytes
+    private static final int FORMAT_UNIFORM = 0x7F;
+    private static final int UNIFORM_STATUS_BITS = 4;
+    private static final int UNIFORM_LIGHT_BITS = 2;
+    private static final int UNIFORM_STATE_BITS = 24 - UNIFORM_STATUS_BITS - UNIFORM_LIGHT_BITS;
+    private static final int UNIFORM_LIGHT_NONE = 0;
+    private static final int UNIFORM_LIGHT_MISSING = 1;
+    private static final int UNIFORM_LIGHT_DARK = 2;
+    private static final int UNIFORM_LIGHT_SKY = 3;
+
+    private static final int FLAG_HAS_LIGHT = 1;
+
+    private static final int LIGHT_MISSING = 0;
+    private static final int LIGHT_UNIFORM = 1;
+    private static final int LIGHT_FULL = 2;
+    private static final int LIGHT_DATA_SIZE = 2048;
+
+    private static final byte[] EMPTY_SECTION_DATA = new byte[0];
+
+    // the registry palette stores global ids directly, without a palette
+    private static final int MAX_PALETTE_BITS = 8;
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+
+    /**
+     * Reads the cube off the server thread. Its stored light is handed to the light engine by {@link LoadedCube#finish}, on the server thread.
+     */
+    @Nullable
+    public static LoadedCube loadCube(World world, CubePos pos, RegionCubeIO regionCubeIO) throws IOException {
+        DataInputStream data = regionCubeIO.loadCubeData(pos);
+        if (data == null) {
             return null;
         }
-        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(cubePath))))) {
-            ChunkStatus status = ChunkStatus.getAll().get(in.readUnsignedByte());
-            ChunkSection[] sections = new ChunkSection[IBigCube.CUBE_SIZE];
-
-            for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
-                boolean isEmpty = in.readBoolean();
-                if (!isEmpty) {
-                    ChunkSection chunkSection = new ChunkSection(pos.minCubeY() + Coords.indexToY(i));
-                    sections[i] = chunkSection;
-
-                    for (int y = 0; y < 16; y++) {
-                        for (int z = 0; z < 16; z++) {
-                            for (int x = 0; x < 16; x++) {
-                                BlockState state = Block.BLOCK_STATE_IDS.getByValue(in.readInt());
-                                if (state != null) {
-                                    chunkSection.setBlockState(x, y, z, state);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        try (DataInputStream in = data) {
+            CubeDataLoader loader = new CubeDataLoader(pos);
+            int version = readCubeData(in, regionCubeIO.getSectionBlobStore(), loader);
+            ChunkStatus status = loader.status;
+            ChunkSection[] sections = loader.sections;
+            NibbleArray[] blockLight = loader.blockLight;
+            NibbleArray[] skyLight = loader.skyLight;
 
             IBigCube cube;
             if (status.getType() == ChunkStatus.Type.PROTOCHUNK) {
@@ -74,80 +114,782 @@ public class CubeSerializer {
 //            for (CompoundNBT tileEntityNTB : tileEntityNTBs) {
 //                cube.addCubeTileEntity(tileEntityNTB);
 //            }
-            return cube;
+            if (blockLight != null) {
+                cube.setCubeLight(true);
+            }
+            // cubes without section lengths stay dirty, so the first save converts the whole cube
+            if (version >= FORMAT_VERSION_NO_FLAGS) {
+                cube.setDirty(false);
+            }
+            return new LoadedCube(cube, blockLight, skyLight);
+        }
+    }
+
+    /**
+     * Saves the cube's dirty sections. If only some sections are dirty, the stored data of the other sections is kept as is, unless the cube
+     * isn't stored yet.
+     */
+    public static void writeCube(World world, IBigCube cube, RegionCubeIO regionCubeIO) throws IOException {
+        ChunkSection[] sections = cube.getCubeSections();
+        BitSet dirtySections = cube.getDirtySections();
+        int status = cube.getCubeStatus().ordinal();
+        CubePos pos = cube.getCubePos();
+        SectionBlobStore blobStore = regionCubeIO.getSectionBlobStore();
+
+        // every save is an update of the stored data, so the section blob references it replaces can be released
+        byte[] uniformData = writeUniform(world, cube);
+        if (uniformData != null) {
+            regionCubeIO.updateCubeDataAsync(pos, storedData -> {
+                releaseBlobReferences(storedData, blobStore);
+                return uniformData;
+            });
+            return;
+        }
+
+        // null entries are kept from the stored data, a cube that isn't stored yet is written in full
+        boolean allSections = dirtySections.cardinality() >= sections.length || !regionCubeIO.hasCubeData(pos);
+        byte[][] sectionData = new byte[sections.length][];
+        for (int i = 0; i < sections.length; i++) {
+            if (allSections || dirtySections.get(i)) {
+                sectionData[i] = serializeSection(sections[i]);
+            }
         }
+
+        // light isn't tracked per section, so it's written again with every save
+        byte[] lightData = cube.hasCubeLight() ? serializeLight(world, pos) : null;
+        regionCubeIO.updateCubeDataAsync(pos, storedData -> {
+            if (storedData == null && !allSections) {
+                // the stored data was lost, e.g. by a failed save, so the next save has to write every section
+                MinecraftServer server = world.getServer();
+                if (server != null) {
+                    server.execute(() -> {
+                        cube.getDirtySections().set(0, sections.length);
+                        cube.setDirty(true);
+                    });
+                }
+                throw new IOException("Can't update sections of cube " + pos + ", it isn't stored");
+            }
+            return writeData(status, sectionData, lightData, storedData, blobStore);
+        });
     }
 
+    /**
+     * @return the uniform record of the cube, or null if it isn't made of a single block state or its light can't be stored that way
+     */
     @Nullable
-    public static IBigCube loadCubeOld(World world, CubePos pos, Path worldDir) throws IOException {
-        Path cubePath = worldDir.resolve("cubes32/" + pos.getX() + "_" + pos.getY() + "_" + pos.getZ() + ".bin");
-        if (!Files.exists(cubePath)) {
+    private static byte[] writeUniform(World world, IBigCube cube) {
+        int status = cube.getCubeStatus().ordinal();
+        if (status >= 1 << UNIFORM_STATUS_BITS) {
             return null;
         }
-        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(cubePath))))) {
-            ChunkStatus status = ChunkStatus.getAll().get(in.readUnsignedByte());
-            ChunkSection[] sections = new ChunkSection[IBigCube.CUBE_SIZE];
+        BlockState state = null;
+        for (ChunkSection section : cube.getCubeSections()) {
+            BlockState sectionState = section == Chunk.EMPTY_SECTION || section.isEmpty() ? Blocks.AIR.getDefaultState() : uniformState(section);
+            if (sectionState == null || (state != null && state != sectionState)) {
+                return null;
+            }
+            state = sectionState;
+        }
+        int stateId = Block.BLOCK_STATE_IDS.get(state);
+        if (stateId < 0 || stateId >= 1 << UNIFORM_STATE_BITS) {
+            return null;
+        }
+        int lightMode = cube.hasCubeLight() ? uniformLightMode(world, cube.getCubePos()) : UNIFORM_LIGHT_NONE;
+        if (lightMode < 0) {
+            return null;
+        }
+        int payload = status << (UNIFORM_STATE_BITS + UNIFORM_LIGHT_BITS) | lightMode << UNIFORM_STATE_BITS | stateId;
+        return new byte[] { (byte) (FORMAT_VERSION_FLAG | FORMAT_UNIFORM), (byte) (payload >>> 16), (byte) (payload >>> 8), (byte) payload };
+    }
+
+    /**
+     * @return the block state of every block in the section, or null if it has different block states
+     */
+    @Nullable
+    private static BlockState uniformState(ChunkSection section) {
+        PalettedContainer<BlockState> container = section.getData();
+        PalettedContainerAccess<BlockState> access = Utils.unsafeCast(container);
+        container.lock();
+        try {
+            int bits = access.getBits();
+            if (Long.SIZE % bits != 0) {
+                return null;
+            }
+            long[] data = access.getStorage().getBackingLongArray();
+            int id = (int) (data[0] & ((1L << bits) - 1));
+            long expected = repeatId(id, bits);
+            for (long value : data) {
+                if (value != expected) {
+                    return null;
+                }
+            }
+            return bits > MAX_PALETTE_BITS ? Block.BLOCK_STATE_IDS.getByValue(id) : access.getPalette().get(id);
+        } finally {
+            container.unlock();
+        }
+    }
+
+    /**
+     * @return the uniform light mode of the cube, or -1 if its light is not one of them
+     */
+    private static int uniformLightMode(World world, CubePos pos) {
+        WorldLightManager lightManager = world.getChunkProvider().getLightManager();
+        int mode = -1;
+        for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+            SectionPos sectionPos = Coords.sectionPosByIndex(pos, i);
+            NibbleArray blockLight = lightManager.getLightEngine(LightType.BLOCK).getData(sectionPos);
+            NibbleArray skyLight = lightManager.getLightEngine(LightType.SKY).getData(sectionPos);
+            int sectionMode;
+            if (blockLight == null && skyLight == null) {
+                sectionMode = UNIFORM_LIGHT_MISSING;
+            } else if (blockLight != null && skyLight != null && uniformLevel(blockLight) == 0) {
+                int skyLevel = uniformLevel(skyLight);
+                sectionMode = skyLevel == 0 ? UNIFORM_LIGHT_DARK : skyLevel == 15 ? UNIFORM_LIGHT_SKY : -1;
+            } else {
+                sectionMode = -1;
+            }
+            if (sectionMode < 0 || (mode >= 0 && mode != sectionMode)) {
+                return -1;
+            }
+            mode = sectionMode;
+        }
+        return mode;
+    }
+
+    private static ChunkSection[] uniformSections(CubePos pos, BlockState state) {
+        ChunkSection[] sections = new ChunkSection[IBigCube.CUBE_SIZE];
+        if (state.isAir()) {
+            return sections;
+        }
+        for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+            ChunkSection section = new ChunkSection(pos.minCubeY() + Coords.indexToY(i));
+            PalettedContainerAccess<BlockState> access = Utils.unsafeCast(section.getData());
+            int id = access.getPalette().idFor(state);
+            int bits = access.getBits();
+            if (Long.SIZE % bits == 0) {
+                Arrays.fill(access.getStorage().getBackingLongArray(), repeatId(id, bits));
+            } else {
+                for (int j = 0; j < SECTION_VOLUME; j++) {
+                    section.setBlockState(j & 15, j >> 8, (j >> 4) & 15, state, false);
+                }
+            }
+            section.recalculateRefCounts();
+            sections[i] = section;
+        }
+        return sections;
+    }
+
+    /**
+     * Writes a section of a single block state the same way {@link #writeSection} would.
+     */
+    private static byte[] uniformSectionData(int stateId) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(data)) {
+            int bits = 4;
+            out.writeByte(bits);
+            writeVarInt(out, 1);
+            writeVarInt(out, stateId);
+            int longs = SECTION_VOLUME * bits / Long.SIZE;
+            writeVarInt(out, longs);
+            for (int i = 0; i < longs; i++) {
+                out.writeLong(0L);
+            }
+        }
+        return data.toByteArray();
+    }
+
+    // the value of a storage long with every entry set to id
+    private static long repeatId(int id, int bits) {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += bits) {
+            value |= (long) id << shift;
+        }
+        return value;
+    }
+
+    private static NibbleArray uniformLight(int level) {
+        byte[] data = new byte[LIGHT_DATA_SIZE];
+        Arrays.fill(data, (byte) (level | level << 4));
+        return new NibbleArray(data);
+    }
+
+    // the light level of the whole array, or -1 if it isn't the same everywhere
+    private static int uniformLevel(NibbleArray light) {
+        byte[] data = light.getData();
+        if ((data[0] & 0xF) != ((data[0] >> 4) & 0xF)) {
+            return -1;
+        }
+        for (byte value : data) {
+            if (value != data[0]) {
+                return -1;
+            }
+        }
+        return data[0] & 0xF;
+    }
 
+    private static byte[] serializeLight(World world, CubePos pos) throws IOException {
+        WorldLightManager lightManager = world.getChunkProvider().getLightManager();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(data)) {
             for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
-                boolean isEmpty = in.readBoolean();
-                if (!isEmpty) {
-                    ChunkSection chunkSection = new ChunkSection(pos.minCubeY() + Coords.indexToY(i));
-                    sections[i] = chunkSection;
-
-                    for (int y = 0; y < 16; y++) {
-                        for (int z = 0; z < 16; z++) {
-                            for (int x = 0; x < 16; x++) {
-                                BlockState state = Block.BLOCK_STATE_IDS.getByValue(in.readInt());
-                                if (state != null) {
-                                    chunkSection.setBlockState(x, y, z, state);
-                                }
-                            }
-                        }
+                SectionPos sectionPos = Coords.sectionPosByIndex(pos, i);
+                writeLight(out, lightManager.getLightEngine(LightType.BLOCK).getData(sectionPos));
+                writeLight(out, lightManager.getLightEngine(LightType.SKY).getData(sectionPos));
+            }
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Writes the light array, storing a single value if all of it has the same light level.
+     */
+    private static void writeLight(DataOutput out, @Nullable NibbleArray light) throws IOException {
+        if (light == null) {
+            out.writeByte(LIGHT_MISSING);
+            return;
+        }
+        int level = uniformLevel(light);
+        if (level >= 0) {
+            out.writeByte(LIGHT_UNIFORM);
+            out.writeByte(level);
+        } else {
+            out.writeByte(LIGHT_FULL);
+            out.write(light.getData());
+        }
+    }
+
+    @Nullable
+    private static NibbleArray readLight(DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case LIGHT_MISSING:
+                return null;
+            case LIGHT_UNIFORM:
+                return uniformLight(in.readUnsignedByte());
+            case LIGHT_FULL: {
+                byte[] data = new byte[LIGHT_DATA_SIZE];
+                in.readFully(data);
+                return new NibbleArray(data);
+            }
+            default:
+                throw new IOException("Unknown light data type " + type);
+        }
+    }
+
+    /**
+     * Hands the stored light of the cube to the light engine, so it doesn't have to be calculated again.
+     */
+    private static void seedLight(World world, CubePos pos, NibbleArray[] blockLight, NibbleArray[] skyLight) {
+        WorldLightManager lightManager = world.getChunkProvider().getLightManager();
+        // released again once the cube is lit
+        ((IWorldLightManager) lightManager).retainData(pos, true);
+        for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+            SectionPos sectionPos = Coords.sectionPosByIndex(pos, i);
+            if (blockLight[i] != null) {
+                lightManager.setData(LightType.BLOCK, sectionPos, blockLight[i]);
+            }
+            if (skyLight[i] != null) {
+                lightManager.setData(LightType.SKY, sectionPos, skyLight[i]);
+            }
+        }
+    }
+
+    private static byte[] serializeSection(@Nullable ChunkSection section) throws IOException {
+        if (section == Chunk.EMPTY_SECTION || section.isEmpty()) {
+            return EMPTY_SECTION_DATA;
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(data)) {
+            writeSection(out, section);
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Writes the cube header followed by each section entry and the light data, if any. Sections without new data are copied from the stored
+     * data, and sections that are stored as a blob are written as a reference to it.
+     */
+    private static byte[] writeData(int status, byte[][] sectionData, @Nullable byte[] lightData, @Nullable byte[] storedData,
+            SectionBlobStore blobStore) throws IOException {
+        if (storedData != null && storedData[0] == (byte) (FORMAT_VERSION_FLAG | FORMAT_UNIFORM)) {
+            // the sections of a uniform cube aren't stored, so they are written out here
+            int stateId = (storedData[1] & 0xFF) << 16 | (storedData[2] & 0xFF) << 8 | (storedData[3] & 0xFF);
+            stateId &= (1 << UNIFORM_STATE_BITS) - 1;
+            BlockState state = Block.BLOCK_STATE_IDS.getByValue(stateId);
+            byte[] uniformSection = state == null || state.isAir() ? EMPTY_SECTION_DATA : uniformSectionData(stateId);
+            byte[][] newSectionData = sectionData.clone();
+            for (int i = 0; i < newSectionData.length; i++) {
+                if (newSectionData[i] == null) {
+                    newSectionData[i] = uniformSection;
+                }
+            }
+            return writeData(status, newSectionData, lightData, null, blobStore);
+        }
+        DataInputStream stored = null;
+        int storedVersion = 0;
+        if (storedData != null) {
+            int header = storedData[0] & 0xFF;
+            storedVersion = (header & FORMAT_VERSION_FLAG) == 0 ? 1 : header & ~FORMAT_VERSION_FLAG;
+            if (storedVersion >= FORMAT_VERSION_NO_FLAGS && storedVersion <= FORMAT_VERSION) {
+                stored = new DataInputStream(new ByteArrayInputStream(storedData));
+                stored.skipBytes(storedVersion >= FORMAT_VERSION_NO_BLOBS ? 3 : 2); // header, status and flags
+            } else if (Arrays.asList(sectionData).contains(null)) {
+                throw new IOException("Can't update sections of cube data with header " + header);
+            }
+        }
+
+        List<byte[]> releasedReferences = new ArrayList<>();
+        // released again if the cube data can't be written, nothing references them then
+        List<byte[]> acquiredReferences = new ArrayList<>();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        boolean written = false;
+        try (DataOutputStream out = new DataOutputStream(data)) {
+            out.writeByte(FORMAT_VERSION_FLAG | FORMAT_VERSION);
+            out.writeByte(status);
+            out.writeByte(lightData != null ? FLAG_HAS_LIGHT : 0);
+
+            for (byte[] section : sectionData) {
+                byte[] storedSection = null;
+                byte[] storedReference = null;
+                if (stored != null) {
+                    int entry = readVarInt(stored);
+                    if (storedVersion >= FORMAT_VERSION && entry == SECTION_BLOB_REFERENCE) {
+                        storedReference = new byte[SectionBlobStore.HASH_SIZE];
+                        stored.readFully(storedReference);
+                        releasedReferences.add(storedReference);
+                    } else {
+                        storedSection = new byte[storedVersion >= FORMAT_VERSION ? entry >>> 1 : entry];
+                        stored.readFully(storedSection);
                     }
                 }
+                if (section == null && storedReference != null) {
+                    blobStore.acquireExisting(storedReference);
+                    acquiredReferences.add(storedReference);
+                    writeBlobReference(out, storedReference);
+                    continue;
+                }
+                if (section == null) {
+                    section = storedSection;
+                } else if (section.length != 0) {
+                    byte[] hash = SectionBlobStore.hash(section);
+                    if (blobStore.acquire(hash, section)) {
+                        acquiredReferences.add(hash);
+                        writeBlobReference(out, hash);
+                        continue;
+                    }
+                }
+                writeVarInt(out, section.length << 1);
+                out.write(section);
+            }
+            // the stored light is replaced as a whole
+            if (lightData != null) {
+                out.write(lightData);
             }
+            written = true;
+        } finally {
+            for (byte[] reference : written ? releasedReferences : acquiredReferences) {
+                blobStore.release(reference);
+            }
+        }
+        return data.toByteArray();
+    }
 
-            IBigCube cube;
-            if (status.getType() == ChunkStatus.Type.PROTOCHUNK) {
-                cube = new CubePrimer(pos, sections);
-                cube.setCubeStatus(status);
+    private static void writeBlobReference(DataOutput out, byte[] hash) throws IOException {
+        writeVarInt(out, SECTION_BLOB_REFERENCE);
+        out.write(hash);
+    }
 
-                if (cube.getCubeStatus().isAtLeast(ChunkStatus.FEATURES)) {
-                    ((CubePrimer)cube).setLightManager(world.getChunkProvider().getLightManager());
+    /**
+     * Releases the section blob references of cube data that is about to be replaced.
+     */
+    private static void releaseBlobReferences(@Nullable byte[] storedData, SectionBlobStore blobStore) throws IOException {
+        if (storedData == null || (storedData[0] & 0xFF) != (FORMAT_VERSION_FLAG | FORMAT_VERSION)) {
+            return;
+        }
+        DataInputStream stored = new DataInputStream(new ByteArrayInputStream(storedData));
+        stored.skipBytes(3); // header, status and flags
+        for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+            int entry = readVarInt(stored);
+            if (entry == SECTION_BLOB_REFERENCE) {
+                byte[] reference = new byte[SectionBlobStore.HASH_SIZE];
+                stored.readFully(reference);
+                blobStore.release(reference);
+            } else {
+                stored.skipBytes(entry >>> 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the given cube data to replace the stored data with, releasing the section blob references of the stored data.
+     */
+    public static byte[] replaceCubeData(@Nullable byte[] storedData, byte[] data, SectionBlobStore blobStore) throws IOException {
+        releaseBlobReferences(storedData, blobStore);
+        return data;
+    }
+
+    /**
+     * Returns the cube data with every section blob reference replaced by the section it refers to, so it can be read without the blob store
+     * it was written with.
+     */
+    public static byte[] inlineBlobReferences(byte[] data, SectionBlobStore blobStore) throws IOException {
+        if ((data[0] & 0xFF) != (FORMAT_VERSION_FLAG | FORMAT_VERSION)) {
+            return data;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream inlined = new ByteArrayOutputStream(data.length);
+        try (DataOutputStream out = new DataOutputStream(inlined)) {
+            out.write(data, 0, 3); // header, status and flags
+            skipFully(in, 3);
+            for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+                int entry = readVarInt(in);
+                byte[] section;
+                if (entry == SECTION_BLOB_REFERENCE) {
+                    byte[] hash = new byte[SectionBlobStore.HASH_SIZE];
+                    in.readFully(hash);
+                    section = blobStore.read(hash);
+                } else {
+                    section = new byte[entry >>> 1];
+                    in.readFully(section);
                 }
+                writeVarInt(out, section.length << 1);
+                out.write(section);
+            }
+            // light data
+            byte[] rest = new byte[in.available()];
+            in.readFully(rest);
+            out.write(rest);
+        }
+        return inlined.toByteArray();
+    }
 
+    /**
+     * Writes the section's palette as a local to global block state id table, followed by the packed palette indices exactly as they are
+     * stored in the section's {@link BitArray}.
+     */
+    private static void writeSection(DataOutput out, ChunkSection section) throws IOException {
+        PalettedContainer<BlockState> container = section.getData();
+        PalettedContainerAccess<BlockState> access = Utils.unsafeCast(container);
+        container.lock();
+        try {
+            int bits = access.getBits();
+            out.writeByte(bits);
+            if (bits > MAX_PALETTE_BITS) {
+                writeVarInt(out, 0);
             } else {
+                IPalette<BlockState> palette = access.getPalette();
+                int paletteSize = 0;
+                while (paletteSize < (1 << bits) && palette.get(paletteSize) != null) {
+                    paletteSize++;
+                }
+                writeVarInt(out, paletteSize);
+                for (int i = 0; i < paletteSize; i++) {
+                    writeVarInt(out, Block.BLOCK_STATE_IDS.get(palette.get(i)));
+                }
+            }
+            long[] data = access.getStorage().getBackingLongArray();
+            writeVarInt(out, data.length);
+            for (long value : data) {
+                out.writeLong(value);
+            }
+        } finally {
+            container.unlock();
+        }
+    }
 
-                BigCube cubeIn = new BigCube(world, pos, null, UpgradeData.EMPTY, EmptyTickList.get(), EmptyTickList.get(), 0L, sections, null);
-                cubeIn.setCubeStatus(status);
-                cube = new CubePrimerWrapper(cubeIn);
+    /**
+     * Decodes a cube record and hands its parts to the visitor, for both {@link #loadCube} and {@link #verifyCubeData}. Section blob references
+     * are resolved, so the visitor gets the data of every non-empty section.
+     *
+     * @return the format version of the record
+     */
+    private static int readCubeData(DataInputStream in, SectionBlobStore blobStore, CubeDataVisitor visitor) throws IOException {
+        int header = in.readUnsignedByte();
+        int version = (header & FORMAT_VERSION_FLAG) == 0 ? 1 : header & ~FORMAT_VERSION_FLAG;
+        if (version == FORMAT_UNIFORM) {
+            visitor.uniform(in.readUnsignedByte() << 16 | in.readUnsignedShort());
+            return version;
+        }
+        if (version == 1) {
+            visitor.status(header);
+            for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+                boolean isEmpty = in.readBoolean();
+                if (!isEmpty) {
+                    visitor.section(i, in, version);
+                }
+            }
+            return version;
+        }
+        if (version < FORMAT_VERSION_UNSIZED_SECTIONS || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported cube format version " + version);
+        }
+        visitor.status(in.readUnsignedByte());
+        int flags = version >= FORMAT_VERSION_NO_BLOBS ? in.readUnsignedByte() : 0;
+        for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+            if (version < FORMAT_VERSION_NO_FLAGS) {
+                if (in.readBoolean()) {
+                    visitor.section(i, in, version);
+                }
+                continue;
             }
-            return cube;
+            int entry = readVarInt(in);
+            byte[] section;
+            if (version >= FORMAT_VERSION && entry == SECTION_BLOB_REFERENCE) {
+                byte[] hash = new byte[SectionBlobStore.HASH_SIZE];
+                in.readFully(hash);
+                section = blobStore.read(hash);
+            } else if (entry != 0) {
+                section = new byte[version >= FORMAT_VERSION ? entry >>> 1 : entry];
+                in.readFully(section);
+            } else {
+                continue;
+            }
+            DataInputStream sectionIn = new DataInputStream(new ByteArrayInputStream(section));
+            visitor.section(i, sectionIn, version);
+            checkFullyRead(sectionIn, "section");
         }
+        if ((flags & FLAG_HAS_LIGHT) != 0) {
+            for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+                NibbleArray blockLight = readLight(in);
+                visitor.light(i, blockLight, readLight(in));
+            }
+        }
+        return version;
     }
 
-    public static void writeCube(World world, IBigCube cube, Path worldDir) throws IOException {
-        CubePos pos = cube.getCubePos();
-        Path cubePath = worldDir.resolve("cubes32/" + pos.getX() + "_" + pos.getY() + "_" + pos.getZ() + ".bin");
-        if (!Files.exists(cubePath.getParent())) {
-            Files.createDirectories(cubePath.getParent());
-        }
-        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(cubePath))))) {
-            out.writeByte(cube.getCubeStatus().ordinal());
-
-            for (ChunkSection s : cube.getCubeSections()) {
-                boolean exists = s != Chunk.EMPTY_SECTION && !s.isEmpty();
-                out.writeBoolean(!exists);
-                if (exists) {
-                    for (int y = 0; y < 16; y++) {
-                        for (int z = 0; z < 16; z++) {
-                            for (int x = 0; x < 16; x++) {
-                                out.writeInt(Block.BLOCK_STATE_IDS.get(s.getBlockState(x, y, z)));
-                            }
-                        }
+    /**
+     * Checks that the data is a complete cube record the way {@link #loadCube} reads it, without creating the cube. Block state ids aren't
+     * resolved, so this works without the game's registries.
+     *
+     * @throws IOException if the data isn't a valid cube record
+     */
+    public static void verifyCubeData(byte[] data, SectionBlobStore blobStore) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        readCubeData(in, blobStore, new CubeDataVisitor() {
+            @Override public void uniform(int payload) {
+            }
+
+            @Override public void status(int status) {
+            }
+
+            @Override public void section(int index, DataInputStream sectionIn, int version) throws IOException {
+                if (version == 1) {
+                    skipFully(sectionIn, SECTION_VOLUME * Integer.BYTES);
+                } else {
+                    verifySection(sectionIn);
+                }
+            }
+
+            @Override public void light(int index, @Nullable NibbleArray blockLight, @Nullable NibbleArray skyLight) {
+            }
+        });
+        checkFullyRead(in, "cube");
+    }
+
+    private static void verifySection(DataInput in) throws IOException {
+        int bits = in.readUnsignedByte();
+        if (bits == 0 || bits > Long.SIZE) {
+            throw new IOException("Invalid section bits " + bits);
+        }
+        int paletteSize = readVarInt(in);
+        if (paletteSize > (1 << Math.min(bits, MAX_PALETTE_BITS))) {
+            throw new IOException("Palette of " + paletteSize + " entries doesn't fit " + bits + " bits");
+        }
+        for (int i = 0; i < paletteSize; i++) {
+            readVarInt(in);
+        }
+        int longs = readVarInt(in);
+        if (longs != (SECTION_VOLUME * bits + Long.SIZE - 1) / Long.SIZE) {
+            throw new IOException("Invalid section data length " + longs + " for " + bits + " bits");
+        }
+        skipFully(in, longs * Long.BYTES);
+    }
+
+    private static void skipFully(DataInput in, int length) throws IOException {
+        if (in.skipBytes(length) != length) {
+            throw new EOFException();
+        }
+    }
+
+    private static void checkFullyRead(DataInputStream in, String what) throws IOException {
+        if (in.available() != 0) {
+            throw new IOException(in.available() + " unexpected bytes after " + what + " data");
+        }
+    }
+
+    private static ChunkSection readSection(DataInput in, int sectionY) throws IOException {
+        int bits = in.readUnsignedByte();
+        int paletteSize = readVarInt(in);
+        BlockState[] palette = new BlockState[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            BlockState state = Block.BLOCK_STATE_IDS.getByValue(readVarInt(in));
+            palette[i] = state == null ? Blocks.AIR.getDefaultState() : state;
+        }
+        long[] data = new long[readVarInt(in)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = in.readLong();
+        }
+
+        ChunkSection section = new ChunkSection(sectionY);
+        PalettedContainer<BlockState> container = section.getData();
+        PalettedContainerAccess<BlockState> access = Utils.unsafeCast(container);
+        access.invokeSetBits(bits);
+
+        // if the new palette assigns the same ids, the packed data can be used as is
+        boolean sameIds = access.getBits() == bits;
+        IPalette<BlockState> targetPalette = access.getPalette();
+        for (int i = 0; sameIds && i < paletteSize; i++) {
+            sameIds = targetPalette.idFor(palette[i]) == i;
+        }
+        long[] target = access.getStorage().getBackingLongArray();
+        if (sameIds && target.length == data.length) {
+            System.arraycopy(data, 0, target, 0, data.length);
+        } else {
+            BitArray source = new BitArray(bits, SECTION_VOLUME, data);
+            for (int i = 0; i < SECTION_VOLUME; i++) {
+                int id = source.getAt(i);
+                BlockState state;
+                if (paletteSize == 0) {
+                    state = Block.BLOCK_STATE_IDS.getByValue(id);
+                } else {
+                    state = id < paletteSize ? palette[id] : null;
+                }
+                if (state != null) {
+                    section.setBlockState(i & 15, i >> 8, (i >> 4) & 15, state, false);
+                }
+            }
+        }
+        section.recalculateRefCounts();
+        return section;
+    }
+
+    private static ChunkSection readSectionV1(DataInput in, int sectionY) throws IOException {
+        ChunkSection chunkSection = new ChunkSection(sectionY);
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    BlockState state = Block.BLOCK_STATE_IDS.getByValue(in.readInt());
+                    if (state != null) {
+                        chunkSection.setBlockState(x, y, z, state);
+                    }
+                }
+            }
+        }
+        return chunkSection;
+    }
+
+    private static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift >= 35) {
+                throw new IOException("VarInt too big");
+            }
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * A cube read by {@link #loadCube}, with the stored light that hasn't been handed to the light engine yet.
+     */
+    public static class LoadedCube {
+        private final IBigCube cube;
+        @Nullable private final NibbleArray[] blockLight;
+        @Nullable private final NibbleArray[] skyLight;
+
+        private LoadedCube(IBigCube cube, @Nullable NibbleArray[] blockLight, @Nullable NibbleArray[] skyLight) {
+            this.cube = cube;
+            this.blockLight = blockLight;
+            this.skyLight = skyLight;
+        }
+
+        /**
+         * Hands the stored light to the light engine. Must be called on the server thread, like vanilla does when it reads a chunk.
+         */
+        public IBigCube finish(World world) {
+            if (this.blockLight != null) {
+                seedLight(world, this.cube.getCubePos(), this.blockLight, this.skyLight);
+            }
+            return this.cube;
+        }
+    }
+
+    private interface CubeDataVisitor {
+        /**
+         * Called instead of all other methods for a uniform record.
+         */
+        void uniform(int payload) throws IOException;
+
+        void status(int status) throws IOException;
+
+        /**
+         * @param in the data of a non-empty section, in the format of the given record version
+         */
+        void section(int index, DataInputStream in, int version) throws IOException;
+
+        void light(int index, @Nullable NibbleArray blockLight, @Nullable NibbleArray skyLight);
+    }
+
+    /**
+     * Creates the sections and light of the cube as they are decoded.
+     */
+    private static class CubeDataLoader implements CubeDataVisitor {
+        private final CubePos pos;
+        private ChunkStatus status;
+        private ChunkSection[] sections = new ChunkSection[IBigCube.CUBE_SIZE];
+        @Nullable private NibbleArray[] blockLight;
+        @Nullable private NibbleArray[] skyLight;
+
+        CubeDataLoader(CubePos pos) {
+            this.pos = pos;
+        }
+
+        @Override public void uniform(int payload) {
+            this.status = ChunkStatus.getAll().get(payload >>> (UNIFORM_STATE_BITS + UNIFORM_LIGHT_BITS));
+            BlockState state = Block.BLOCK_STATE_IDS.getByValue(payload & ((1 << UNIFORM_STATE_BITS) - 1));
+            this.sections = uniformSections(this.pos, state == null ? Blocks.AIR.getDefaultState() : state);
+
+            int lightMode = (payload >>> UNIFORM_STATE_BITS) & ((1 << UNIFORM_LIGHT_BITS) - 1);
+            if (lightMode != UNIFORM_LIGHT_NONE) {
+                this.blockLight = new NibbleArray[IBigCube.CUBE_SIZE];
+                this.skyLight = new NibbleArray[IBigCube.CUBE_SIZE];
+                if (lightMode != UNIFORM_LIGHT_MISSING) {
+                    for (int i = 0; i < IBigCube.CUBE_SIZE; i++) {
+                        this.blockLight[i] = new NibbleArray();
+                        this.skyLight[i] = uniformLight(lightMode == UNIFORM_LIGHT_SKY ? 15 : 0);
                     }
                 }
             }
         }
+
+        @Override public void status(int status) {
+            this.status = ChunkStatus.getAll().get(status);
+        }
+
+        @Override public void section(int index, DataInputStream in, int version) throws IOException {
+            int sectionY = this.pos.minCubeY() + Coords.indexToY(index);
+            this.sections[index] = version == 1 ? readSectionV1(in, sectionY) : readSection(in, sectionY);
+        }
+
+        @Override public void light(int index, @Nullable NibbleArray blockLight, @Nullable NibbleArray skyLight) {
+            if (this.blockLight == null) {
+                this.blockLight = new NibbleArray[IBigCube.CUBE_SIZE];
+                this.skyLight = new NibbleArray[IBigCube.CUBE_SIZE];
+            }
+            this.blockLight[index] = blockLight;
+            this.skyLight[index] = skyLight;
+        }
     }
 }
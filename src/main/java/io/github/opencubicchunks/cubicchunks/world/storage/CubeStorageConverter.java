@@ -0,0 +1,341 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static io.github.opencubicchunks.cubicchunks.world.storage.CubeRegionFile.cubeToLocal;
+import static io.github.opencubicchunks.cubicchunks.world.storage.CubeRegionFile.cubeToRegion;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Converts the cube storage of a dimension while the server isn't running.
+ *
+ * <p>Cubes still stored as one file per cube in {@code cubes32} are moved into the region files first. Then every region file is rewritten
+ * into a new file with the configured compression codec, which also packs its entries without the gaps left by copy-on-write, and replaces
+ * the original. Each cube is checked with {@link CubeSerializer#verifyCubeData} and read back from the new file before the original is
+ * replaced. Cubes that fail the check are copied unchanged and reported.</p>
+ *
+ * <p>Region files are converted in parallel, and only as many as there are threads are held open at once, so memory use doesn't depend on
+ * the size of the world. Converted region files are recorded in {@code convert.progress}, so an interrupted conversion continues where it
+ * stopped when it's started again with the same options.</p>
+ *
+ * <pre>
+ * CubeStorageConverter &lt;dimension directory&gt; [--codec none|deflate|dictionary] [--level -1..9] [--train samples] [--threads n]
+ * </pre>
+ */
+public class CubeStorageConverter {
+
+    private static final String REGION_DIRECTORY = "region3d";
+    private static final String LEGACY_DIRECTORY = "cubes32";
+    private static final String PROGRESS_FILE = "convert.progress";
+    private static final String TEMP_EXTENSION = ".tmp";
+    // legacy cubes moved into region files between syncs, before their files are deleted
+    private static final int LEGACY_BATCH_SIZE = 4096;
+
+    private final Path regionDirectory;
+    private final Path legacyDirectory;
+    private final int threads;
+
+    private final AtomicLong convertedCubes = new AtomicLong();
+    private final AtomicLong invalidCubes = new AtomicLong();
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    public CubeStorageConverter(Path dimensionDirectory, int threads) {
+        this.regionDirectory = dimensionDirectory.resolve(REGION_DIRECTORY);
+        this.legacyDirectory = dimensionDirectory.resolve(LEGACY_DIRECTORY);
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: CubeStorageConverter <dimension directory> [--codec none|deflate|dictionary] [--level -1..9] "
+                    + "[--train samples] [--threads n]");
+            System.exit(1);
+        }
+        Path dimensionDirectory = Paths.get(args[0]);
+        String codec = null;
+        int level = Deflater.DEFAULT_COMPRESSION;
+        int trainSamples = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--codec":
+                    codec = args[i + 1];
+                    break;
+                case "--level":
+                    level = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--train":
+                    trainSamples = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threads":
+                    threads = Math.max(1, Integer.parseInt(args[i + 1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        CubeStorageConverter converter = new CubeStorageConverter(dimensionDirectory, threads);
+        RegionCubeIO.replayJournal(dimensionDirectory);
+        // the server rebuilds the index of stored cubes from the converted files
+        Files.deleteIfExists(converter.regionDirectory.resolve(RegionCubeIO.INDEX_FILE));
+        converter.migrateLegacyCubes();
+        if (trainSamples > 0) {
+            converter.trainDictionary(trainSamples);
+        }
+        CubeCompression compression = CubeCompression.load(converter.regionDirectory);
+        if (codec != null) {
+            compression.configure(codec, level);
+        }
+        converter.convertRegions(compression);
+    }
+
+    /**
+     * Moves all cubes stored as one file per cube into the region files, keeping their gzip compression. The region pass compresses them
+     * again with the configured codec.
+     */
+    public void migrateLegacyCubes() throws IOException, InterruptedException {
+        if (!Files.isDirectory(this.legacyDirectory)) {
+            return;
+        }
+        Files.createDirectories(this.regionDirectory);
+        List<Path> migrated = new ArrayList<>();
+        AtomicLong count = new AtomicLong();
+        try (CubeRegionFileCache regionCache = new CubeRegionFileCache(this.regionDirectory, this.threads * 4);
+             DirectoryStream<Path> files = Files.newDirectoryStream(this.legacyDirectory, "*.bin")) {
+            runParallel(files, file -> {
+                String name = file.getFileName().toString();
+                String[] coords = name.substring(0, name.length() - ".bin".length()).split("_");
+                if (coords.length != 3) {
+                    return;
+                }
+                int x, y, z;
+                try {
+                    x = Integer.parseInt(coords[0]);
+                    y = Integer.parseInt(coords[1]);
+                    z = Integer.parseInt(coords[2]);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                byte[] data = Files.readAllBytes(file);
+                int index = CubeRegionFile.index(cubeToLocal(x), cubeToLocal(y), cubeToLocal(z));
+                CubeRegionFile regionFile = regionCache.acquire(cubeToRegion(x), cubeToRegion(y), cubeToRegion(z), true);
+                try {
+                    //noinspection ConstantConditions
+                    synchronized (regionFile) {
+                        // a cube that is in a region file too was moved before and saved again, the legacy file is outdated
+                        if (!regionFile.hasEntry(index)) {
+                            regionFile.write(index, CubeCompression.CODEC_GZIP, data, data.length);
+                        }
+                    }
+                } finally {
+                    regionCache.release(regionFile);
+                }
+                synchronized (migrated) {
+                    migrated.add(file);
+                    // the legacy files are only deleted once their data is synced
+                    if (migrated.size() >= LEGACY_BATCH_SIZE) {
+                        deleteMigrated(regionCache, migrated);
+                    }
+                }
+                count.incrementAndGet();
+            });
+            synchronized (migrated) {
+                deleteMigrated(regionCache, migrated);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.legacyDirectory)) {
+            if (!files.iterator().hasNext()) {
+                Files.delete(this.legacyDirectory);
+            }
+        }
+        System.out.println("Moved " + count.get() + " cubes from " + this.legacyDirectory + " into region files");
+    }
+
+    private static void deleteMigrated(CubeRegionFileCache regionCache, List<Path> migrated) throws IOException {
+        regionCache.sync();
+        for (Path file : migrated) {
+            Files.delete(file);
+        }
+        migrated.clear();
+    }
+
+    public void trainDictionary(int samples) throws IOException {
+        try (RegionCubeIO regionCubeIO = new RegionCubeIO(this.regionDirectory.getParent(), 1)) {
+            List<byte[]> sampleData = regionCubeIO.sampleCubeData(samples);
+            if (sampleData.isEmpty()) {
+                System.out.println("No stored cubes to train a dictionary from");
+                return;
+            }
+            byte[] dictionary = CubeCompression.trainDictionary(sampleData, CubeCompression.MAX_DICTIONARY_SIZE);
+            int id = regionCubeIO.getCompression().useDictionary(dictionary);
+            System.out.println("Trained dictionary " + Integer.toHexString(id) + " from " + sampleData.size() + " cubes");
+        }
+    }
+
+    /**
+     * Rewrites every region file with the given compression, skipping region files a previous run with the same options already converted.
+     */
+    public void convertRegions(CubeCompression compression) throws IOException, InterruptedException {
+        if (!Files.isDirectory(this.regionDirectory)) {
+            System.out.println("No region files in " + this.regionDirectory);
+            return;
+        }
+        Path progressFile = this.regionDirectory.resolve(PROGRESS_FILE);
+        String options = "codec=" + compression.getCodec() + " level=" + compression.getLevel();
+        Set<String> done = Collections.synchronizedSet(new HashSet<>());
+        if (Files.exists(progressFile)) {
+            List<String> lines = Files.readAllLines(progressFile, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(options)) {
+                done.addAll(lines.subList(1, lines.size()));
+                System.out.println("Continuing conversion, " + done.size() + " region files are already converted");
+            }
+        }
+        if (done.isEmpty()) {
+            Files.write(progressFile, Arrays.asList(options), StandardCharsets.UTF_8);
+        }
+
+        long startTime = System.nanoTime();
+        try (SectionBlobStore blobStore = new SectionBlobStore(this.regionDirectory.resolve(RegionCubeIO.SECTION_BLOB_FILE));
+             BufferedWriter progress = Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+             DirectoryStream<Path> files = Files.newDirectoryStream(this.regionDirectory, "*" + CubeRegionFileCache.EXTENSION)) {
+            runParallel(files, file -> {
+                String name = file.getFileName().toString();
+                // replacing a file while listing the directory may list it again
+                if (!done.add(name)) {
+                    return;
+                }
+                convertRegion(file, compression, blobStore);
+                synchronized (progress) {
+                    progress.write(name);
+                    progress.newLine();
+                    progress.flush();
+                }
+            });
+        }
+        Files.delete(progressFile);
+        System.out.printf("Converted %d cubes in %ds, %d invalid cubes copied unchanged, %d -> %d bytes%n", this.convertedCubes.get(),
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime), this.invalidCubes.get(), this.bytesBefore.get(),
+                this.bytesAfter.get());
+    }
+
+    private void convertRegion(Path file, CubeCompression compression, SectionBlobStore blobStore) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + TEMP_EXTENSION);
+        Files.deleteIfExists(tempFile);
+        this.bytesBefore.addAndGet(Files.size(file));
+        try (CubeRegionFile source = new CubeRegionFile(file); CubeRegionFile target = new CubeRegionFile(tempFile)) {
+            for (int i = 0; i < CubeRegionFile.ENTRY_COUNT; i++) {
+                if (source.isInline(i)) {
+                    int data = source.readInline(i);
+                    if (!isValid(ByteBuffer.allocate(CubeRegionFile.INLINE_DATA_SIZE).putInt(data).array(), blobStore, file, i)) {
+                        this.invalidCubes.incrementAndGet();
+                    }
+                    target.writeInline(i, data);
+                    this.convertedCubes.incrementAndGet();
+                    continue;
+                }
+                CubeRegionFile.Entry entry = source.read(i);
+                if (entry == null) {
+                    continue;
+                }
+                // keeps when the cube was last used, for archiving
+                int timestamp = source.getTimestamp(i);
+                byte[] data;
+                try {
+                    data = compression.decompress(entry);
+                } catch (IOException e) {
+                    data = null;
+                }
+                if (data == null || !isValid(data, blobStore, file, i)) {
+                    this.invalidCubes.incrementAndGet();
+                    target.write(i, entry.getCompression(), entry.getData(), entry.getData().length, timestamp);
+                    continue;
+                }
+                CubeRegionFile.Entry converted = entry.getCompression() == CubeCompression.CODEC_ARCHIVE
+                        ? compression.compressArchive(data) : compression.compress(data);
+                target.write(i, converted.getCompression(), converted.getData(), converted.getData().length, timestamp);
+                CubeRegionFile.Entry written = target.read(i);
+                if (written == null || !Arrays.equals(data, compression.decompress(written))) {
+                    throw new IOException("Cube " + i + " of " + file + " didn't read back the same after converting it");
+                }
+                this.convertedCubes.incrementAndGet();
+            }
+            target.sync();
+        }
+        this.bytesAfter.addAndGet(Files.size(tempFile));
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isValid(byte[] data, SectionBlobStore blobStore, Path file, int index) {
+        try {
+            CubeSerializer.verifyCubeData(data, blobStore);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Invalid cube " + index + " in " + file + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Runs the task for every file on a fork/join pool, with at most one file per thread in flight.
+     */
+    private void runParallel(Iterable<Path> files, FileTask task) throws IOException, InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        Semaphore inFlight = new Semaphore(this.threads);
+        List<IOException> errors = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                inFlight.acquire();
+                synchronized (errors) {
+                    if (!errors.isEmpty()) {
+                        break;
+                    }
+                }
+                pool.execute(() -> {
+                    try {
+                        task.run(file);
+                    } catch (IOException | RuntimeException e) {
+                        synchronized (errors) {
+                            errors.add(e instanceof IOException ? (IOException) e : new IOException("Failed to convert " + file, e));
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        if (!errors.isEmpty()) {
+            IOException error = errors.get(0);
+            errors.subList(1, errors.size()).forEach(error::addSuppressed);
+            throw error;
+        }
+    }
+
+    @FunctionalInterface
+    private interface FileTask {
+        void run(Path file) throws IOException;
+    }
+}
@@ -0,0 +1,159 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the cube storage of a dimension small in the background, on a single low priority thread.
+ *
+ * <p>Every pass goes over all region files of the dimension. Cubes that weren't saved or loaded for
+ * {@link CubeCompression#getArchiveAfterDays} days are recompressed with {@link CubeCompression#CODEC_ARCHIVE}, and region files that are
+ * more than {@link #COMPACT_FREE_RATIO} free space are compacted and truncated.</p>
+ *
+ * <p>The work is done one cube at a time with a pause after each one, and waits while cube saves are pending, so it doesn't compete with
+ * the server for the disk or the region file lock.</p>
+ */
+class CubeStorageMaintenance implements AutoCloseable {
+
+    private static final long FIRST_PASS_DELAY_MILLIS = 5 * 60 * 1000L;
+    private static final long PASS_INTERVAL_MILLIS = 60 * 60 * 1000L;
+    private static final long STEP_PAUSE_MILLIS = 10;
+    private static final long BUSY_PAUSE_MILLIS = 1000;
+    private static final double COMPACT_FREE_RATIO = 0.25;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final RegionCubeIO regionCubeIO;
+    private final Thread thread;
+    private final Object lock = new Object();
+    private boolean stopped;
+
+    private int archivedCubes;
+    private int movedCubes;
+    private long reclaimedBytes;
+
+    CubeStorageMaintenance(RegionCubeIO regionCubeIO) {
+        this.regionCubeIO = regionCubeIO;
+        this.thread = new Thread(this::run, "Cube Storage Maintenance");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+        this.thread.setUncaughtExceptionHandler((t, e) -> CubicChunks.LOGGER.error("Uncaught exception in {}", t.getName(), e));
+        this.thread.start();
+    }
+
+    private void run() {
+        if (!pause(FIRST_PASS_DELAY_MILLIS)) {
+            return;
+        }
+        do {
+            runPass();
+        } while (pause(PASS_INTERVAL_MILLIS));
+    }
+
+    private void runPass() {
+        List<int[]> regions;
+        try {
+            regions = this.regionCubeIO.listRegions();
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Couldn't list cube region files for maintenance", e);
+            return;
+        }
+        this.archivedCubes = 0;
+        this.movedCubes = 0;
+        this.reclaimedBytes = 0;
+        int archiveAfterDays = this.regionCubeIO.getCompression().getArchiveAfterDays();
+        int cutoffTimestamp = (int) (System.currentTimeMillis() / 1000L) - archiveAfterDays * SECONDS_PER_DAY;
+        for (int[] region : regions) {
+            try {
+                if (!maintainRegion(region, archiveAfterDays > 0, cutoffTimestamp)) {
+                    break;
+                }
+            } catch (IOException e) {
+                CubicChunks.LOGGER.error("Cube storage maintenance failed for region {}", Arrays.toString(region), e);
+            }
+        }
+        if (this.archivedCubes > 0 || this.movedCubes > 0) {
+            CubicChunks.LOGGER.info("Cube storage maintenance: archived {} cubes, moved {} cubes, freed {} KB", this.archivedCubes,
+                    this.movedCubes, this.reclaimedBytes / 1024);
+        }
+    }
+
+    /**
+     * @return false if maintenance was stopped
+     */
+    private boolean maintainRegion(int[] region, boolean archive, int cutoffTimestamp) throws IOException {
+        if (archive) {
+            for (int i = 0; i < CubeRegionFile.ENTRY_COUNT; i++) {
+                if (this.regionCubeIO.archiveColdCube(region, i, cutoffTimestamp)) {
+                    this.archivedCubes++;
+                    if (!throttle()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        if (this.regionCubeIO.getFreeSectorRatio(region) > COMPACT_FREE_RATIO) {
+            while (this.regionCubeIO.compactStep(region)) {
+                this.movedCubes++;
+                if (!throttle()) {
+                    return false;
+                }
+            }
+            this.reclaimedBytes += this.regionCubeIO.truncateRegion(region);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until no cube saves are pending, and a little longer.
+     *
+     * @return false if maintenance was stopped meanwhile
+     */
+    private boolean throttle() {
+        while (this.regionCubeIO.getPendingSaveCount() > 0) {
+            if (!pause(BUSY_PAUSE_MILLIS)) {
+                return false;
+            }
+        }
+        return pause(STEP_PAUSE_MILLIS);
+    }
+
+    /**
+     * @return false if maintenance was stopped
+     */
+    private boolean pause(long millis) {
+        // not interrupting the thread, that would close the file channel it's using
+        long end = System.currentTimeMillis() + millis;
+        synchronized (this.lock) {
+            long remaining = millis;
+            while (!this.stopped && remaining > 0) {
+                try {
+                    this.lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = end - System.currentTimeMillis();
+            }
+            return !this.stopped;
+        }
+    }
+
+    /**
+     * Stops maintenance, waiting for the current step to finish.
+     */
+    @Override
+    public void close() {
+        synchronized (this.lock) {
+            this.stopped = true;
+            this.lock.notifyAll();
+        }
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
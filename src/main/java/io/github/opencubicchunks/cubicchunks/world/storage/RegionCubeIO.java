@@ -0,0 +1,855 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static io.github.opencubicchunks.cubicchunks.world.storage.CubeRegionFile.cubeToLocal;
+import static io.github.opencubicchunks.cubicchunks.world.storage.CubeRegionFile.cubeToRegion;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Stores cube data of a single dimension in {@link CubeRegionFile}s.
+ *
+ * <p>Cubes saved by older versions as one gzip file per cube in {@code cubes32} are moved into the region files the first time they are
+ * loaded. The old file is deleted once the region file is synced.</p>
+ *
+ * <p>Saves are write-behind: {@link #updateCubeDataAsync} only records a change to the stored data of a cube, and worker threads apply it,
+ * compress the result and write it. This lets callers rewrite only part of a cube, and release what the stored data referenced. Saving a
+ * cube again before its pending write started adds the change to the pending save, and loads see pending data before it reaches the disk.
+ * A save that can't be written stays pending and is retried.</p>
+ *
+ * <p>Every write is appended to a {@link CubeSaveJournal} and committed before it goes to the region file, so region files only need to be
+ * synced when the journal is checkpointed: when it grows too large, and on {@link #flush}. A save worker takes all saves queued so far and
+ * commits their records with a single sync. Records left in the journal by a crash are written to the region files again on startup.</p>
+ *
+ * <p>A {@link CubeChangeLog} records the position of every written cube, which lets {@link #exportBackup} write only the cubes that changed
+ * since a named checkpoint.</p>
+ *
+ * <p>A {@link CubePresenceIndex} answers whether a cube is stored, so loading cubes that were never saved doesn't touch the file system.</p>
+ *
+ * <p>Sections that occur in more than one cube can be stored once in the {@link SectionBlobStore} of the dimension. Blobs that aren't
+ * referenced anymore are freed by {@link #flush}, after the cube data that referenced them is synced to disk.</p>
+ *
+ * <p>The timestamp of a region file entry records when the cube was last saved or loaded, at a resolution of a day for loads.
+ * {@link CubeStorageMaintenance} archives cubes that weren't used for a long time and compacts region files in the background. An archived
+ * cube is rewritten with the normal codec the first time it's loaded again.</p>
+ */
+public class RegionCubeIO implements AutoCloseable {
+
+    private static final String REGION_DIRECTORY = "region3d";
+    private static final String LEGACY_DIRECTORY = "cubes32";
+    static final String INDEX_FILE = "cubes.idx";
+    static final String SECTION_BLOB_FILE = "sections.blobs";
+    static final String JOURNAL_FILE = "saves.journal";
+    private static final String CHANGE_LOG_FILE = "changes.log";
+    private static final String CHECKPOINTS_FILE = "backup.checkpoints";
+    private static final String BACKUP_DIRECTORY = "backups";
+    private static final int MAX_OPEN_REGION_FILES = 256;
+    // deferred section blob releases to collect before the save workers sync and commit them on their own
+    private static final int RELEASE_COMMIT_THRESHOLD = 4096;
+    // journal size at which the save workers sync the region files and start a new journal
+    private static final long JOURNAL_CHECKPOINT_SIZE = 64L * 1024 * 1024;
+    // passes over the cubes changed during a backup before the rest is exported while saves wait
+    private static final int MAX_BACKUP_PASSES = 8;
+    private static final int BACKUP_FINAL_PASS_CHANGES = 1024;
+    // how old the timestamp of an entry has to be before loading the cube updates it
+    private static final int ACCESS_UPDATE_INTERVAL_SECONDS = 24 * 60 * 60;
+    // pending saves a save worker journals with one write and one sync
+    private static final int MAX_SAVE_BATCH = 256;
+
+    private final Path regionDirectory;
+    private final Path legacyDirectory;
+    private final boolean hasLegacyCubes;
+    private final CubeRegionFileCache regionCache;
+    private final CubePresenceIndex presenceIndex;
+    private final SectionBlobStore sectionBlobStore;
+    private final CubeCompression compression;
+    private final CubeSaveJournal journal;
+    private final CubeChangeLog changeLog;
+    // held for reading from appending a journal record until the region file is written, and for writing by checkpoints
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final CubeStorageMaintenance maintenance;
+
+    private final CubeIOExecutor saveExecutor;
+    private final Long2ObjectMap<PendingSave> pendingSaves = new Long2ObjectOpenHashMap<>();
+    // pending saves that no save worker is writing yet, in the order they were queued
+    private final LongLinkedOpenHashSet queuedSaves = new LongLinkedOpenHashSet();
+    private long coalescedSaves;
+    // legacy files of cubes moved into a region file, deleted by the next checkpoint once the region file is synced
+    private final List<Path> migratedLegacyFiles = new ArrayList<>();
+
+    public RegionCubeIO(Path worldDir, int saveThreads) {
+        this(worldDir, new CubeIOExecutor("Cube Save Worker", saveThreads));
+    }
+
+    /**
+     * @param saveExecutor runs the save workers, closed with this
+     */
+    public RegionCubeIO(Path worldDir, CubeIOExecutor saveExecutor) {
+        this.saveExecutor = saveExecutor;
+        Path regionDirectory = worldDir.resolve(REGION_DIRECTORY);
+        this.regionDirectory = regionDirectory;
+        this.regionCache = new CubeRegionFileCache(regionDirectory, MAX_OPEN_REGION_FILES);
+        this.legacyDirectory = worldDir.resolve(LEGACY_DIRECTORY);
+        this.hasLegacyCubes = checkLegacyDirectory(this.legacyDirectory);
+        this.presenceIndex = CubePresenceIndex.loadOrRebuild(regionDirectory.resolve(INDEX_FILE), regionDirectory, this.legacyDirectory);
+        try {
+            Files.createDirectories(regionDirectory);
+            this.sectionBlobStore = new SectionBlobStore(regionDirectory.resolve(SECTION_BLOB_FILE));
+            this.compression = CubeCompression.load(regionDirectory);
+            this.journal = new CubeSaveJournal(regionDirectory.resolve(JOURNAL_FILE), this.sectionBlobStore);
+            this.changeLog = new CubeChangeLog(regionDirectory.resolve(CHANGE_LOG_FILE), regionDirectory.resolve(CHECKPOINTS_FILE));
+            replayJournal(regionDirectory, this.journal, this.regionCache, this.changeLog, this.presenceIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't open cube storage in " + regionDirectory, e);
+        }
+        this.maintenance = new CubeStorageMaintenance(this);
+    }
+
+    /**
+     * Writes the saves left in the journal of a dimension by a server that didn't shut down cleanly into its region files, without opening
+     * the rest of the cube storage. Tools that work on the region files directly have to call this first.
+     */
+    public static void replayJournal(Path worldDir) throws IOException {
+        Path regionDirectory = worldDir.resolve(REGION_DIRECTORY);
+        if (!Files.exists(regionDirectory.resolve(JOURNAL_FILE))) {
+            return;
+        }
+        CubePresenceIndex presenceIndex = CubePresenceIndex.loadOrRebuild(regionDirectory.resolve(INDEX_FILE), regionDirectory,
+                worldDir.resolve(LEGACY_DIRECTORY));
+        try (SectionBlobStore sectionBlobStore = new SectionBlobStore(regionDirectory.resolve(SECTION_BLOB_FILE));
+             CubeSaveJournal journal = new CubeSaveJournal(regionDirectory.resolve(JOURNAL_FILE), sectionBlobStore);
+             CubeChangeLog changeLog = new CubeChangeLog(regionDirectory.resolve(CHANGE_LOG_FILE), regionDirectory.resolve(CHECKPOINTS_FILE));
+             CubeRegionFileCache regionCache = new CubeRegionFileCache(regionDirectory, MAX_OPEN_REGION_FILES)) {
+            replayJournal(regionDirectory, journal, regionCache, changeLog, presenceIndex);
+        }
+    }
+
+    private static void replayJournal(Path regionDirectory, CubeSaveJournal journal, CubeRegionFileCache regionCache, CubeChangeLog changeLog,
+            CubePresenceIndex presenceIndex) throws IOException {
+        int replayed = journal.replay((pos, compression, data) -> {
+            writeEntry(regionCache, pos, compression, data);
+            changeLog.record(pos);
+            presenceIndex.add(pos);
+        });
+        if (replayed > 0) {
+            regionCache.sync();
+            changeLog.sync();
+            presenceIndex.save();
+            CubicChunks.LOGGER.info("Replayed {} cube saves from {}", replayed, regionDirectory.resolve(JOURNAL_FILE));
+        }
+        journal.reset();
+    }
+
+    private static boolean checkLegacyDirectory(Path legacyDirectory) {
+        if (!Files.isDirectory(legacyDirectory)) {
+            return false;
+        }
+        try (Stream<Path> files = Files.list(legacyDirectory)) {
+            if (files.findAny().isPresent()) {
+                return true;
+            }
+            Files.delete(legacyDirectory);
+            return false;
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Couldn't check legacy cube directory {}", legacyDirectory, e);
+            return true;
+        }
+    }
+
+    /**
+     * @return a stream of the uncompressed cube data, or null if the cube isn't stored
+     */
+    @Nullable
+    public DataInputStream loadCubeData(CubePos pos) throws IOException {
+        PendingSave pending;
+        synchronized (this.pendingSaves) {
+            pending = this.pendingSaves.get(pos.asLong());
+        }
+        byte[] data = pending != null ? resolvePending(pos, pending) : readStoredData(pos, true);
+        if (data == null) {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * @param access whether the cube is loaded for use, which keeps it from being archived and brings it back if it was
+     */
+    @Nullable
+    private byte[] readStoredData(CubePos pos, boolean access) throws IOException {
+        if (!this.presenceIndex.contains(pos)) {
+            return null;
+        }
+        // a stored cube that isn't in a region file is a legacy cube, which is moved into one
+        CubeRegionFile regionFile = acquireRegionFile(pos, this.hasLegacyCubes);
+        if (regionFile == null) {
+            return null;
+        }
+        CubeRegionFile.Entry entry;
+        try {
+            int index = regionIndex(pos);
+            synchronized (regionFile) {
+                if (regionFile.isInline(index)) {
+                    return ByteBuffer.allocate(CubeRegionFile.INLINE_DATA_SIZE).putInt(regionFile.readInline(index)).array();
+                }
+                entry = regionFile.read(index);
+                if (entry == null && this.hasLegacyCubes) {
+                    entry = migrateLegacyCube(regionFile, pos);
+                }
+                if (access && entry != null) {
+                    int now = (int) (System.currentTimeMillis() / 1000L);
+                    if (now - regionFile.getTimestamp(index) > ACCESS_UPDATE_INTERVAL_SECONDS) {
+                        regionFile.touch(index, now);
+                    }
+                }
+            }
+        } finally {
+            this.regionCache.release(regionFile);
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (access && entry.getCompression() == CubeCompression.CODEC_ARCHIVE) {
+            // applied to the newest data of the cube, so it can't overwrite a save queued meanwhile
+            updateCubeDataAsync(pos, stored -> stored);
+        }
+        return this.compression.decompress(entry);
+    }
+
+    /**
+     * Compresses the given uncompressed cube data with the configured codec and stores it, replacing any previously stored data. Data of exactly
+     * {@link CubeRegionFile#INLINE_DATA_SIZE} bytes is stored uncompressed in the region file header.
+     *
+     * <p>The journal records of all cubes are appended with one write and committed with one sync before any region file is written.</p>
+     */
+    private void saveCubeData(List<CubePos> positions, List<byte[]> data) throws IOException {
+        List<CubeRegionFile.Entry> entries = new ArrayList<>(data.size());
+        for (byte[] cubeData : data) {
+            entries.add(cubeData.length == CubeRegionFile.INLINE_DATA_SIZE
+                    ? new CubeRegionFile.Entry(CubeSaveJournal.INLINE, cubeData) : this.compression.compress(cubeData));
+        }
+        this.checkpointLock.readLock().lock();
+        try {
+            this.journal.commit(this.journal.appendAll(positions, entries));
+            for (int i = 0; i < positions.size(); i++) {
+                CubePos pos = positions.get(i);
+                writeEntry(this.regionCache, pos, entries.get(i).getCompression(), entries.get(i).getData());
+                this.changeLog.record(pos);
+                // before a checkpoint can save the index and drop the journal record
+                this.presenceIndex.add(pos);
+            }
+        } finally {
+            this.checkpointLock.readLock().unlock();
+        }
+    }
+
+    private static void writeEntry(CubeRegionFileCache regionCache, CubePos pos, byte compression, byte[] data) throws IOException {
+        CubeRegionFile regionFile = regionCache.acquire(cubeToRegion(pos.getX()), cubeToRegion(pos.getY()), cubeToRegion(pos.getZ()), true);
+        try {
+            //noinspection ConstantConditions
+            if (compression == CubeSaveJournal.INLINE) {
+                regionFile.writeInline(regionIndex(pos), ByteBuffer.wrap(data).getInt());
+            } else {
+                regionFile.write(regionIndex(pos), compression, data, data.length);
+            }
+        } finally {
+            regionCache.release(regionFile);
+        }
+    }
+
+    /**
+     * @return whether the cube is stored or a save of it is pending
+     */
+    public boolean hasCubeData(CubePos pos) {
+        synchronized (this.pendingSaves) {
+            if (this.pendingSaves.containsKey(pos.asLong())) {
+                return true;
+            }
+        }
+        // the pending save is removed after its data is written
+        return this.presenceIndex.contains(pos);
+    }
+
+    /**
+     * Queues a change of the stored cube data to be applied and written by a save worker. The update is applied to the newest data of the
+     * cube, including data of saves that are still pending.
+     */
+    public void updateCubeDataAsync(CubePos pos, CubeDataUpdate update) {
+        long key = pos.asLong();
+        synchronized (this.pendingSaves) {
+            PendingSave pending = this.pendingSaves.get(key);
+            if (pending != null) {
+                CubeDataUpdate previous = pending.update;
+                pending.update = previous == null ? update : stored -> update.apply(previous.apply(stored));
+                pending.rewrite = pending.writing;
+                this.coalescedSaves++;
+                return;
+            }
+            this.pendingSaves.put(key, new PendingSave(update));
+            this.queuedSaves.add(key);
+        }
+        // one task per queued save, but a worker takes all queued saves it finds, so most of the tasks have nothing left to do
+        try {
+            this.saveExecutor.execute(this::writeQueuedSaves);
+        } catch (RejectedExecutionException e) {
+            // already shut down, don't lose the data
+            writeQueuedSaves();
+        }
+    }
+
+    /**
+     * Applies the pending update, if any, and returns the data the pending save will write.
+     *
+     * <p>The update is applied without holding the monitor of the pending saves, so queueing saves doesn't wait for it, and only by one thread
+     * at a time, since updates acquire and release section blobs. Updates queued meanwhile are applied to the result later.</p>
+     */
+    @Nullable
+    private byte[] resolvePending(CubePos pos, PendingSave pending) throws IOException {
+        while (true) {
+            CubeDataUpdate update;
+            byte[] data;
+            synchronized (this.pendingSaves) {
+                while (pending.resolving) {
+                    try {
+                        this.pendingSaves.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the pending save of cube " + pos, e);
+                    }
+                }
+                if (pending.update == null) {
+                    return pending.data;
+                }
+                update = pending.update;
+                data = pending.data;
+                pending.update = null;
+                pending.resolving = true;
+            }
+            byte[] updated;
+            try {
+                // nothing is written for this cube until the pending save has data, so the stored data can't change while reading it
+                updated = update.apply(data == null ? readStoredData(pos, false) : data);
+            } catch (Throwable t) {
+                synchronized (this.pendingSaves) {
+                    CubeDataUpdate queued = pending.update;
+                    pending.update = queued == null ? update : stored -> queued.apply(update.apply(stored));
+                    pending.resolving = false;
+                    this.pendingSaves.notifyAll();
+                }
+                throw t;
+            }
+            synchronized (this.pendingSaves) {
+                pending.data = updated;
+                pending.resolving = false;
+                this.pendingSaves.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return false if a batch couldn't be written, its saves are queued again and written by the next worker or {@link #flush}
+     */
+    private boolean writeQueuedSaves() {
+        int committableReleases = 0;
+        boolean written = true;
+        List<PendingSave> batch = new ArrayList<>();
+        List<CubePos> positions = new ArrayList<>();
+        while (true) {
+            batch.clear();
+            positions.clear();
+            synchronized (this.pendingSaves) {
+                while (!this.queuedSaves.isEmpty() && batch.size() < MAX_SAVE_BATCH) {
+                    long key = this.queuedSaves.removeFirstLong();
+                    PendingSave pending = this.pendingSaves.get(key);
+                    pending.writing = true;
+                    pending.rewrite = false;
+                    batch.add(pending);
+                    positions.add(CubePos.from(key));
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            try {
+                writeBatch(positions, batch);
+            } catch (Throwable t) {
+                CubicChunks.LOGGER.error("Failed to save {} cubes", batch.size(), t);
+                written = false;
+            }
+            synchronized (this.pendingSaves) {
+                for (int i = 0; i < batch.size(); i++) {
+                    long key = positions.get(i).asLong();
+                    PendingSave pending = batch.get(i);
+                    // saved again while this write was running, the newer data has to be written too. The applied updates already took
+                    // references to new section blobs and released the old ones, so a failed save has to be written with its data, not dropped
+                    if (pending.rewrite || !written) {
+                        pending.writing = false;
+                        this.queuedSaves.add(key);
+                    } else {
+                        this.pendingSaves.remove(key);
+                    }
+                }
+                this.pendingSaves.notifyAll();
+                // every save that released a section blob so far is written now
+                if (this.pendingSaves.isEmpty()) {
+                    committableReleases = this.sectionBlobStore.getPendingReleaseCount();
+                }
+            }
+            if (!written) {
+                // retrying right away would most likely fail the same way
+                break;
+            }
+        }
+        try {
+            if (committableReleases >= RELEASE_COMMIT_THRESHOLD) {
+                checkpoint();
+                this.sectionBlobStore.commitReleases(committableReleases);
+            } else if (this.journal.getSize() >= JOURNAL_CHECKPOINT_SIZE) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Failed to sync cube region files", e);
+        }
+        return written;
+    }
+
+    /**
+     * Writes the data of the given saves. A save whose update fails is logged and skipped, if writing the data fails all of them have to be
+     * written again.
+     */
+    private void writeBatch(List<CubePos> positions, List<PendingSave> batch) throws IOException {
+        List<CubePos> resolvedPositions = new ArrayList<>(batch.size());
+        List<byte[]> resolvedData = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            CubePos pos = positions.get(i);
+            try {
+                byte[] data = resolvePending(pos, batch.get(i));
+                if (data != null) {
+                    resolvedPositions.add(pos);
+                    resolvedData.add(data);
+                }
+            } catch (Throwable t) {
+                CubicChunks.LOGGER.error("Failed to save cube {}", pos, t);
+            }
+        }
+        if (!resolvedPositions.isEmpty()) {
+            saveCubeData(resolvedPositions, resolvedData);
+        }
+    }
+
+    /**
+     * Syncs the region files, after which the records in the journal aren't needed anymore, and starts a new journal.
+     */
+    private void checkpoint() throws IOException {
+        this.checkpointLock.writeLock().lock();
+        try {
+            List<Path> migratedLegacyFiles;
+            // taken before syncing, so only files of cubes that were written before the sync are deleted
+            synchronized (this.migratedLegacyFiles) {
+                migratedLegacyFiles = new ArrayList<>(this.migratedLegacyFiles);
+                this.migratedLegacyFiles.clear();
+            }
+            this.sectionBlobStore.sync();
+            this.regionCache.sync();
+            this.changeLog.sync();
+            for (Path legacyFile : migratedLegacyFiles) {
+                try {
+                    Files.deleteIfExists(legacyFile);
+                } catch (IOException e) {
+                    // the cube is read from the region file first, so the legacy file is only left behind
+                    CubicChunks.LOGGER.error("Couldn't delete legacy cube file {}", legacyFile, e);
+                }
+            }
+            this.presenceIndex.save();
+            this.journal.reset();
+        } finally {
+            this.checkpointLock.writeLock().unlock();
+        }
+    }
+
+    public int getPendingSaveCount() {
+        synchronized (this.pendingSaves) {
+            return this.pendingSaves.size();
+        }
+    }
+
+    /**
+     * @return number of saves that were added to a save that was still pending
+     */
+    public long getCoalescedSaveCount() {
+        synchronized (this.pendingSaves) {
+            return this.coalescedSaves;
+        }
+    }
+
+    public SectionBlobStore getSectionBlobStore() {
+        return this.sectionBlobStore;
+    }
+
+    public CubeCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * Reads the uncompressed data of up to {@code maxSamples} stored cubes, spread over all region files, for training a compression
+     * dictionary. Cubes stored inline and cubes that weren't moved out of their legacy files yet are skipped.
+     */
+    public List<byte[]> sampleCubeData(int maxSamples) throws IOException {
+        List<int[]> regions = listRegions();
+        List<byte[]> samples = new ArrayList<>();
+        int perRegion = regions.isEmpty() ? 0 : Math.max(1, maxSamples / regions.size());
+        for (int[] region : regions) {
+            CubeRegionFile regionFile = acquireRegionFile(region);
+            if (regionFile == null) {
+                continue;
+            }
+            try {
+                for (int i = 0, taken = 0; i < CubeRegionFile.ENTRY_COUNT && taken < perRegion && samples.size() < maxSamples; i++) {
+                    CubeRegionFile.Entry entry = regionFile.read(i);
+                    if (entry != null) {
+                        samples.add(this.compression.decompress(entry));
+                        taken++;
+                    }
+                }
+            } finally {
+                this.regionCache.release(regionFile);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * @return the coordinates of all region files of the dimension
+     */
+    List<int[]> listRegions() throws IOException {
+        List<int[]> regions = new ArrayList<>();
+        if (Files.isDirectory(this.regionDirectory)) {
+            try (Stream<Path> files = Files.list(this.regionDirectory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String[] coords = file.getFileName().toString().split("\\.");
+                    if (coords.length == 4 && file.getFileName().toString().endsWith(CubeRegionFileCache.EXTENSION)) {
+                        try {
+                            regions.add(new int[] { Integer.parseInt(coords[0]), Integer.parseInt(coords[1]), Integer.parseInt(coords[2]) });
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                }
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Recompresses the cube at the given index of a region file with the archive codec, if it wasn't saved or loaded since
+     * {@code cutoffTimestamp}. The entry keeps its timestamp. Only the lookups and the header update hold the region file lock.
+     *
+     * @return true if the cube was archived
+     */
+    boolean archiveColdCube(int[] region, int index, int cutoffTimestamp) throws IOException {
+        CubeRegionFile regionFile = acquireRegionFile(region);
+        if (regionFile == null) {
+            return false;
+        }
+        try {
+            CubeRegionFile.Entry entry;
+            int timestamp;
+            synchronized (regionFile) {
+                timestamp = regionFile.getTimestamp(index);
+                // entries that aren't stored or are stored inline have no timestamp
+                if (timestamp == 0 || timestamp > cutoffTimestamp || regionFile.readCompression(index) == CubeCompression.CODEC_ARCHIVE) {
+                    return false;
+                }
+                entry = regionFile.read(index);
+            }
+            if (entry == null) {
+                return false;
+            }
+            CubeRegionFile.Entry archived = this.compression.compressArchive(this.compression.decompress(entry));
+            // not if it was saved or loaded while it was compressed
+            return regionFile.rewrite(index, timestamp, archived.getCompression(), archived.getData(), archived.getData().length);
+        } finally {
+            this.regionCache.release(regionFile);
+        }
+    }
+
+    /**
+     * @return the part of the region file that isn't used by any cube
+     */
+    double getFreeSectorRatio(int[] region) throws IOException {
+        CubeRegionFile regionFile = acquireRegionFile(region);
+        if (regionFile == null) {
+            return 0;
+        }
+        try {
+            return regionFile.getFreeSectorRatio();
+        } finally {
+            this.regionCache.release(regionFile);
+        }
+    }
+
+    /**
+     * @return true if a cube was moved closer to the start of the region file
+     * @see CubeRegionFile#compactStep
+     */
+    boolean compactStep(int[] region) throws IOException {
+        CubeRegionFile regionFile = acquireRegionFile(region);
+        if (regionFile == null) {
+            return false;
+        }
+        try {
+            return regionFile.compactStep();
+        } finally {
+            this.regionCache.release(regionFile);
+        }
+    }
+
+    /**
+     * @return the number of bytes the region file got smaller by
+     * @see CubeRegionFile#truncate
+     */
+    long truncateRegion(int[] region) throws IOException {
+        CubeRegionFile regionFile = acquireRegionFile(region);
+        if (regionFile == null) {
+            return 0;
+        }
+        try {
+            return regionFile.truncate();
+        } finally {
+            this.regionCache.release(regionFile);
+        }
+    }
+
+    public Path getBackupDirectory() {
+        return this.regionDirectory.getParent().resolve(BACKUP_DIRECTORY);
+    }
+
+    public List<String> getBackupCheckpoints() {
+        return this.changeLog.getCheckpointNames();
+    }
+
+    /**
+     * Writes the stored cubes that changed since the given checkpoint, or all stored cubes, to a {@link CubeBackup} file, and sets the
+     * checkpoint {@code checkpoint} to the state the backup ends at. Cubes not moved out of the legacy directory yet aren't included in a
+     * backup of all cubes.
+     *
+     * <p>Saves continue while the backup is written. Cubes saved meanwhile are exported again, in passes, until few enough are left to export
+     * them while saves wait, so the backup ends at a single point in time. If saves keep changing more cubes than that, the backup fails
+     * instead of stalling them.</p>
+     *
+     * @return the number of cube records written
+     */
+    public int exportBackup(Path file, @Nullable String sinceCheckpoint, String checkpoint) throws IOException {
+        long pinned = this.changeLog.pin();
+        try (CubeBackup.Writer writer = new CubeBackup.Writer(file, sinceCheckpoint, checkpoint)) {
+            if (sinceCheckpoint == null) {
+                exportStoredCubes(writer);
+            } else {
+                exportCubes(this.changeLog.read(this.changeLog.getCheckpoint(sinceCheckpoint), pinned), writer);
+            }
+            long from = pinned;
+            for (int pass = 0; pass < MAX_BACKUP_PASSES && this.changeLog.getEnd() - from > BACKUP_FINAL_PASS_CHANGES; pass++) {
+                long to = this.changeLog.getEnd();
+                exportCubes(this.changeLog.read(from, to), writer);
+                from = to;
+            }
+            this.checkpointLock.writeLock().lock();
+            try {
+                long to = this.changeLog.getEnd();
+                if (to - from > BACKUP_FINAL_PASS_CHANGES) {
+                    throw new IOException("Cubes are saved faster than backup " + file + " can export them, "
+                            + (to - from) + " changes are left");
+                }
+                exportCubes(this.changeLog.read(from, to), writer);
+                writer.finish();
+                this.changeLog.setCheckpoint(checkpoint, to);
+            } finally {
+                this.checkpointLock.writeLock().unlock();
+            }
+            return writer.getCubeCount();
+        } finally {
+            this.changeLog.unpin(pinned);
+        }
+    }
+
+    /**
+     * Exports the stored cubes one region file at a time, so only the positions of a single region are kept in memory.
+     */
+    private void exportStoredCubes(CubeBackup.Writer writer) throws IOException {
+        LongLinkedOpenHashSet positions = new LongLinkedOpenHashSet();
+        for (int[] region : listRegions()) {
+            positions.clear();
+            CubeRegionFile regionFile = acquireRegionFile(region);
+            if (regionFile == null) {
+                continue;
+            }
+            try {
+                for (int i = 0; i < CubeRegionFile.ENTRY_COUNT; i++) {
+                    if (regionFile.hasEntry(i)) {
+                        int localX = i >>> (CubeRegionFile.REGION_SIZE_BITS * 2);
+                        int localY = (i >>> CubeRegionFile.REGION_SIZE_BITS) & (CubeRegionFile.REGION_SIZE - 1);
+                        int localZ = i & (CubeRegionFile.REGION_SIZE - 1);
+                        positions.add(CubePos.asLong((region[0] << CubeRegionFile.REGION_SIZE_BITS) + localX,
+                                (region[1] << CubeRegionFile.REGION_SIZE_BITS) + localY, (region[2] << CubeRegionFile.REGION_SIZE_BITS) + localZ));
+                    }
+                }
+            } finally {
+                this.regionCache.release(regionFile);
+            }
+            exportCubes(positions, writer);
+        }
+    }
+
+    private void exportCubes(LongLinkedOpenHashSet positions, CubeBackup.Writer writer) throws IOException {
+        for (LongIterator iterator = positions.iterator(); iterator.hasNext(); ) {
+            CubePos pos = CubePos.from(iterator.nextLong());
+            byte[] data;
+            // keeps the blobs the stored data references from being freed until they are read
+            this.checkpointLock.readLock().lock();
+            try {
+                byte[] stored = readStoredData(pos, false);
+                data = stored == null ? null : CubeSerializer.inlineBlobReferences(stored, this.sectionBlobStore);
+            } finally {
+                this.checkpointLock.readLock().unlock();
+            }
+            if (data != null) {
+                writer.write(pos, data);
+            }
+        }
+    }
+
+    /**
+     * Queues every cube of a {@link CubeBackup} file to be saved, replacing the stored data.
+     *
+     * @return the number of cube records read
+     */
+    public int restoreBackup(Path file) throws IOException {
+        return CubeBackup.read(file, (pos, data) -> updateCubeDataAsync(pos,
+                stored -> CubeSerializer.replaceCubeData(stored, data, this.sectionBlobStore)));
+    }
+
+    /**
+     * Blocks until all pending saves are written, then checkpoints the journal and frees section blobs that aren't referenced anymore.
+     *
+     * @throws IOException if pending saves can't be written, they stay queued
+     */
+    public void flush() throws IOException {
+        int committableReleases;
+        while (true) {
+            // saves that failed before are only retried when another save is queued, or here
+            if (!writeQueuedSaves()) {
+                throw new IOException("Couldn't write pending cube saves to " + this.regionDirectory);
+            }
+            synchronized (this.pendingSaves) {
+                // the rest is being written by save workers, or queued again because it failed
+                while (!this.pendingSaves.isEmpty() && this.queuedSaves.isEmpty()) {
+                    try {
+                        this.pendingSaves.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for pending cube saves", e);
+                    }
+                }
+                if (this.pendingSaves.isEmpty()) {
+                    committableReleases = this.sectionBlobStore.getPendingReleaseCount();
+                    break;
+                }
+            }
+        }
+        checkpoint();
+        this.sectionBlobStore.commitReleases(committableReleases);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.maintenance.close();
+        try {
+            flush();
+        } finally {
+            this.saveExecutor.close();
+            this.regionCache.close();
+            this.journal.close();
+            this.changeLog.close();
+            this.sectionBlobStore.close();
+        }
+    }
+
+    @Nullable
+    private CubeRegionFile.Entry migrateLegacyCube(CubeRegionFile regionFile, CubePos pos) throws IOException {
+        Path legacyPath = this.legacyDirectory.resolve(pos.getX() + "_" + pos.getY() + "_" + pos.getZ() + ".bin");
+        if (!Files.exists(legacyPath)) {
+            return null;
+        }
+        // legacy files are a single gzip stream, which can be stored as is
+        byte[] data = Files.readAllBytes(legacyPath);
+        regionFile.write(regionIndex(pos), CubeCompression.CODEC_GZIP, data, data.length);
+        // backups of all cubes only cover the region files
+        this.changeLog.record(pos);
+        // the entry isn't synced yet, a crash before the next checkpoint moves the cube again
+        synchronized (this.migratedLegacyFiles) {
+            this.migratedLegacyFiles.add(legacyPath);
+        }
+        return new CubeRegionFile.Entry(CubeCompression.CODEC_GZIP, data);
+    }
+
+    /**
+     * @return the region file of the cube, which must be released after use
+     */
+    @Nullable
+    private CubeRegionFile acquireRegionFile(CubePos pos, boolean create) throws IOException {
+        return this.regionCache.acquire(cubeToRegion(pos.getX()), cubeToRegion(pos.getY()), cubeToRegion(pos.getZ()), create);
+    }
+
+    @Nullable
+    private CubeRegionFile acquireRegionFile(int[] region) throws IOException {
+        return this.regionCache.acquire(region[0], region[1], region[2], false);
+    }
+
+    private static int regionIndex(CubePos pos) {
+        return CubeRegionFile.index(cubeToLocal(pos.getX()), cubeToLocal(pos.getY()), cubeToLocal(pos.getZ()));
+    }
+
+    /**
+     * A change to the uncompressed data of a stored cube.
+     */
+    @FunctionalInterface
+    public interface CubeDataUpdate {
+        /**
+         * @param storedData the current uncompressed cube data, or null if the cube isn't stored
+         * @return the new uncompressed cube data
+         */
+        byte[] apply(@Nullable byte[] storedData) throws IOException;
+    }
+
+    private static class PendingSave {
+        // the data to write once the update is applied, or null if the update has to be applied to the stored data
+        @Nullable private byte[] data;
+        @Nullable private CubeDataUpdate update;
+        private boolean resolving;
+        private boolean writing;
+        private boolean rewrite;
+
+        PendingSave(CubeDataUpdate update) {
+            this.update = update;
+        }
+    }
+}
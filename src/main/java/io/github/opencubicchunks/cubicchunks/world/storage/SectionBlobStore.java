@@ -0,0 +1,382 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import io.github.opencubicchunks.cubicchunks.CubicChunks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Stores serialized sections that occur in more than one cube once, addressed by the hash of their data.
+ *
+ * <p>Each blob is stored in whole sectors, starting with a header of a magic value, its reference count, the length of its compressed data and
+ * its hash. There is no separate index: the file is scanned for blob headers when it's opened, and a free sector has no magic value.</p>
+ *
+ * <p>A payload is only stored here the second time it's seen, so sections that exist once stay in their cube. Releasing a reference is
+ * deferred until {@link #commitReleases}, which must only be called after the cube data that doesn't reference the blob anymore is synced to
+ * disk. A crash can then leak a blob, but never free one that is still referenced.</p>
+ */
+public class SectionBlobStore implements AutoCloseable {
+
+    public static final int HASH_SIZE = 20;
+
+    private static final int MAGIC = 0x43434253; // "CCBS"
+    private static final int SECTOR_SIZE = 512;
+    // magic, reference count, length, hash
+    private static final int BLOB_HEADER_SIZE = Integer.BYTES * 3 + HASH_SIZE;
+    private static final int REF_COUNT_OFFSET = Integer.BYTES;
+
+    // payloads seen once, which are stored as a blob when they are seen again
+    private static final int MAX_CANDIDATES = 8192;
+    private static final int MAX_CACHED_PAYLOADS = 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final BitSet usedSectors = new BitSet();
+    private final Map<ByteBuffer, Blob> blobs = new HashMap<>();
+    private final Map<ByteBuffer, Boolean> candidates = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    private final List<ByteBuffer> pendingReleases = new ArrayList<>();
+    private final LinkedHashMap<ByteBuffer, byte[]> payloadCache = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+            return size() > MAX_CACHED_PAYLOADS;
+        }
+    };
+    // one thread for the stores of all dimensions, it runs the writes of each store in order
+    private final CubeIOExecutor writer = CubeIOExecutor.createShared("Section Blob Writer", 1);
+    // the first write that failed, after which the file doesn't match the blobs in memory anymore
+    @Nullable private volatile IOException writeFailure;
+
+    private long totalReferences;
+
+    public SectionBlobStore(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        scan();
+    }
+
+    private void scan() throws IOException {
+        long sectors = this.channel.size() / SECTOR_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(BLOB_HEADER_SIZE);
+        for (int sector = 0; sector < sectors; ) {
+            header.clear();
+            this.channel.read(header, (long) sector * SECTOR_SIZE);
+            header.flip();
+            if (header.remaining() < BLOB_HEADER_SIZE || header.getInt() != MAGIC) {
+                sector++;
+                continue;
+            }
+            int refCount = header.getInt();
+            int length = header.getInt();
+            byte[] hash = new byte[HASH_SIZE];
+            header.get(hash);
+            int count = sectorCount(length);
+            if (length <= 0 || refCount <= 0 || sector + count > sectors) {
+                sector++;
+                continue;
+            }
+            this.usedSectors.set(sector, sector + count);
+            this.blobs.put(ByteBuffer.wrap(hash), new Blob(sector, length, refCount, null));
+            this.totalReferences += refCount;
+            sector += count;
+        }
+    }
+
+    public static byte[] hash(byte[] payload) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(payload);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Adds a reference to the blob of the given payload, storing it if it's been seen before.
+     *
+     * @return true if the payload is referenced from the blob store, false if it should stay in the cube
+     */
+    public synchronized boolean acquire(byte[] hash, byte[] payload) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        Blob blob = this.blobs.get(key);
+        if (blob == null) {
+            if (this.candidates.remove(key) == null) {
+                this.candidates.put(key, Boolean.TRUE);
+                return false;
+            }
+            blob = createBlob(key, payload);
+        } else {
+            blob.refCount++;
+            writeRefCount(blob);
+        }
+        this.totalReferences++;
+        return true;
+    }
+
+    /**
+     * Adds a reference to an existing blob, for cube data that keeps a reference it already had.
+     */
+    public synchronized void acquireExisting(byte[] hash) throws IOException {
+        Blob blob = this.blobs.get(ByteBuffer.wrap(hash));
+        if (blob == null) {
+            throw new IOException("Missing section blob " + toHex(hash));
+        }
+        blob.refCount++;
+        writeRefCount(blob);
+        this.totalReferences++;
+    }
+
+    /**
+     * Releases a reference once {@link #commitReleases} is called.
+     */
+    public synchronized void release(byte[] hash) {
+        this.pendingReleases.add(ByteBuffer.wrap(hash));
+    }
+
+    public synchronized int getPendingReleaseCount() {
+        return this.pendingReleases.size();
+    }
+
+    /**
+     * Applies all deferred releases and frees blobs that aren't referenced anymore. The cube data that doesn't reference them must already be
+     * synced to disk.
+     */
+    public synchronized void commitReleases() {
+        commitReleases(this.pendingReleases.size());
+    }
+
+    /**
+     * Applies the oldest deferred releases, for when only the cube data written before them is known to be synced.
+     */
+    public synchronized void commitReleases(int count) {
+        List<ByteBuffer> released = this.pendingReleases.subList(0, Math.min(count, this.pendingReleases.size()));
+        for (ByteBuffer key : released) {
+            Blob blob = this.blobs.get(key);
+            if (blob == null) {
+                continue;
+            }
+            blob.refCount--;
+            this.totalReferences--;
+            if (blob.refCount > 0) {
+                writeRefCount(blob);
+            } else {
+                this.blobs.remove(key);
+                this.payloadCache.remove(key);
+                int start = blob.sector;
+                int sectors = sectorCount(blob.length);
+                this.writer.execute(() -> {
+                    freeSectors(start, sectors);
+                    writeInt(start, 0, 0); // clear the magic value
+                });
+            }
+        }
+        released.clear();
+    }
+
+    public byte[] read(byte[] hash) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        Blob blob;
+        synchronized (this) {
+            byte[] cached = this.payloadCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            blob = this.blobs.get(key);
+            if (blob == null) {
+                throw new IOException("Missing section blob " + toHex(hash));
+            }
+            if (blob.pendingData != null) {
+                return blob.pendingData;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(blob.length);
+        long position = (long) blob.sector * SECTOR_SIZE + BLOB_HEADER_SIZE;
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file " + this.path);
+            }
+        }
+        byte[] payload = inflate(buffer.array());
+        synchronized (this) {
+            this.payloadCache.put(key, payload);
+        }
+        return payload;
+    }
+
+    /**
+     * @return average number of references per stored blob
+     */
+    public synchronized double getDeduplicationRatio() {
+        return this.blobs.isEmpty() ? 1 : (double) this.totalReferences / this.blobs.size();
+    }
+
+    public synchronized int getBlobCount() {
+        return this.blobs.size();
+    }
+
+    /**
+     * Waits for all queued blob writes and forces them to disk.
+     *
+     * @throws IOException if any blob write failed since the store was opened, so cube data referencing the blob isn't committed
+     */
+    public void sync() throws IOException {
+        // the writer has a single thread, so this runs after everything queued before it
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        this.writer.execute(() -> barrier.complete(null));
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for section blob writes", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        IOException failure = this.writeFailure;
+        if (failure != null) {
+            throw new IOException("Couldn't write section blobs to " + this.path, failure);
+        }
+        this.channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+        this.channel.close();
+    }
+
+    private Blob createBlob(ByteBuffer key, byte[] payload) throws IOException {
+        byte[] compressed = deflate(payload);
+        int count = sectorCount(compressed.length);
+        int start = this.usedSectors.nextClearBit(0);
+        while (true) {
+            int nextUsed = this.usedSectors.nextSetBit(start);
+            if (nextUsed < 0 || nextUsed - start >= count) {
+                break;
+            }
+            start = this.usedSectors.nextClearBit(nextUsed);
+        }
+        this.usedSectors.set(start, start + count);
+
+        Blob blob = new Blob(start, compressed.length, 1, payload);
+        this.blobs.put(key, blob);
+        ByteBuffer buffer = ByteBuffer.allocate(count * SECTOR_SIZE);
+        buffer.putInt(MAGIC).putInt(1).putInt(compressed.length).put(key.array()).put(compressed);
+        buffer.rewind();
+        int sector = start;
+        this.writer.execute(() -> {
+            try {
+                writeFully(buffer, (long) sector * SECTOR_SIZE);
+            } catch (IOException e) {
+                CubicChunks.LOGGER.error("Failed to write section blob to {}", this.path, e);
+                onWriteFailed(e);
+                // still readable from memory
+                return;
+            }
+            synchronized (this) {
+                blob.pendingData = null;
+            }
+        });
+        return blob;
+    }
+
+    private void writeRefCount(Blob blob) {
+        int sector = blob.sector;
+        int refCount = blob.refCount;
+        this.writer.execute(() -> writeInt(sector, REF_COUNT_OFFSET, refCount));
+    }
+
+    private void writeInt(int sector, int offset, int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        buffer.putInt(0, value);
+        try {
+            writeFully(buffer, (long) sector * SECTOR_SIZE + offset);
+        } catch (IOException e) {
+            CubicChunks.LOGGER.error("Failed to update section blob in {}", this.path, e);
+            onWriteFailed(e);
+        }
+    }
+
+    // only called from the writer thread
+    private void onWriteFailed(IOException e) {
+        if (this.writeFailure == null) {
+            this.writeFailure = e;
+        }
+    }
+
+    private synchronized void freeSectors(int start, int count) {
+        this.usedSectors.clear(start, start + count);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static int sectorCount(int length) {
+        return (length + BLOB_HEADER_SIZE + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 8);
+        try (InputStream in = new InflaterInputStream(new java.io.ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static class Blob {
+        final int sector;
+        final int length;
+        int refCount;
+        // the payload until it is written to the file
+        @Nullable byte[] pendingData;
+
+        Blob(int sector, int length, int refCount, @Nullable byte[] pendingData) {
+            this.sector = sector;
+            this.length = length;
+            this.refCount = refCount;
+            this.pendingData = pendingData;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.opencubicchunks.cubicchunks.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.mojang.datafixers.util.Either;
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import net.minecraft.world.server.ChunkHolder;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+public class CubeCollectorFutureTest {
+
+    @Test
+    public void testCollectsInIndexOrder() {
+        CubeCollectorFuture future = new CubeCollectorFuture(CubePos.of(5, -3, 7), 1);
+        assertEquals(13, future.index(0, 0, 0));
+        assertEquals(0, future.index(-1, -1, -1));
+        assertEquals(26, future.index(1, 1, 1));
+
+        IBigCube[] cubes = new IBigCube[27];
+        // completed out of order, like the neighbour futures
+        for (int i = 26; i >= 0; i--) {
+            cubes[i] = cube();
+            assertFalse(future.isDone());
+            future.add(i, Either.left(cubes[i]), null);
+        }
+        assertTrue(future.isDone());
+        List<IBigCube> list = future.join().left().get();
+        assertEquals(27, list.size());
+        for (int i = 0; i < 27; i++) {
+            assertSame(cubes[i], list.get(i));
+        }
+    }
+
+    @Test
+    public void testFailsOnFirstError() {
+        CubeCollectorFuture future = new CubeCollectorFuture(CubePos.of(5, -3, 7), 1);
+        future.add(0, Either.left(cube()), null);
+        future.add(future.index(1, 0, -1), Either.right(new ChunkHolder.IChunkLoadingError() {
+            @Override public String toString() {
+                return "test error";
+            }
+        }), null);
+        assertTrue(future.isDone());
+        ChunkHolder.IChunkLoadingError error = future.join().right().get();
+        assertEquals("Unloaded " + CubePos.of(6, -3, 6) + " test error", error.toString());
+
+        // later neighbours don't change the result
+        future.add(1, Either.left(cube()), null);
+        assertSame(error, future.join().right().get());
+    }
+
+    private static IBigCube cube() {
+        return (IBigCube) Proxy.newProxyInstance(IBigCube.class.getClassLoader(), new Class<?>[] { IBigCube.class }, (proxy, method, args) -> {
+            throw new UnsupportedOperationException();
+        });
+    }
+}
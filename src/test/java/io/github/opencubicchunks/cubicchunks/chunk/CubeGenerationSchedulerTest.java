@@ -0,0 +1,118 @@
+package io.github.opencubicchunks.cubicchunks.chunk;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CubeGenerationSchedulerTest {
+
+    @Test
+    public void testOverlappingTasksDontRunConcurrently() throws Exception {
+        int tasks = 2000;
+        ConcurrentHashMap<Long, Boolean> lockedCubes = new ConcurrentHashMap<>();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(tasks);
+        Random random = new Random(42);
+
+        try (CubeGenerationScheduler scheduler = new CubeGenerationScheduler("Test Worker", 4)) {
+            for (int i = 0; i < tasks; i++) {
+                int x = random.nextInt(12);
+                int y = random.nextInt(4);
+                int z = random.nextInt(12);
+                int range = random.nextInt(2);
+                scheduler.submit(CubePos.asLong(x, y, z), range, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    List<Long> locked = new ArrayList<>();
+                    for (int dx = -range; dx <= range; dx++) {
+                        for (int dy = -range; dy <= range; dy++) {
+                            for (int dz = -range; dz <= range; dz++) {
+                                long pos = CubePos.asLong(x + dx, y + dy, z + dz);
+                                if (lockedCubes.putIfAbsent(pos, true) != null) {
+                                    overlapped.set(true);
+                                } else {
+                                    locked.add(pos);
+                                }
+                            }
+                        }
+                    }
+                    try {
+                        Thread.sleep(0, 100_000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    locked.forEach(lockedCubes::remove);
+                    running.decrementAndGet();
+                    done.countDown();
+                }).get(10, TimeUnit.SECONDS);
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        }
+        assertFalse(overlapped.get());
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    @Test
+    public void testBacklogIsLimited() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try (CubeGenerationScheduler scheduler = new CubeGenerationScheduler("Test Worker", 1)) {
+            List<CompletableFuture<Void>> accepted = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                accepted.add(scheduler.submit(CubePos.asLong(i * 10, 0, 0), 0, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+            // one task running, four waiting
+            for (int i = 0; i < 5; i++) {
+                assertTrue(accepted.get(i).isDone());
+            }
+            assertFalse(accepted.get(5).isDone());
+            release.countDown();
+            CompletableFuture.allOf(accepted.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSharedPool() throws Exception {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        CubeGenerationScheduler first = CubeGenerationScheduler.createShared("Shared Test Worker", 2);
+        CubeGenerationScheduler second = CubeGenerationScheduler.createShared("Shared Test Worker", 8);
+        CountDownLatch done = new CountDownLatch(40);
+        for (int i = 0; i < 20; i++) {
+            // the same positions in both, they don't lock each other
+            for (CubeGenerationScheduler scheduler : new CubeGenerationScheduler[] { first, second }) {
+                scheduler.submit(CubePos.asLong(i * 10, 0, 0), 0, () -> {
+                    threads.add(Thread.currentThread().getName());
+                    done.countDown();
+                }).get(10, TimeUnit.SECONDS);
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        first.close();
+        // still running for the second scheduler
+        CountDownLatch afterClose = new CountDownLatch(1);
+        second.submit(0, 0, afterClose::countDown);
+        assertTrue(afterClose.await(10, TimeUnit.SECONDS));
+        second.close();
+        // the size of the pool is set by the first scheduler
+        assertTrue(threads.size() <= 2);
+    }
+}
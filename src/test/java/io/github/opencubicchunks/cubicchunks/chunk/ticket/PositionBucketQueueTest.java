@@ -0,0 +1,144 @@
+package io.github.opencubicchunks.cubicchunks.chunk.ticket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+public class PositionBucketQueueTest {
+
+    private static final int LEVELS = 70;
+
+    @Test
+    public void testOrder() {
+        PositionBucketQueue<String> queue = new PositionBucketQueue<>(LEVELS);
+        queue.add(1, 5, "a");
+        queue.add(2, 5, "b");
+        queue.add(1, 5, "c");
+        queue.add(3, 2, "d");
+        queue.add(1, 66, null);
+        assertEquals(2, queue.getFirstLevel());
+
+        List<String> polled = new ArrayList<>();
+        assertTrue(queue.poll((pos, value) -> polled.add(pos + ":" + value)));
+        assertTrue(queue.poll((pos, value) -> polled.add(pos + ":" + value)));
+        assertEquals(Arrays.asList("3:d", "1:a", "1:c"), polled);
+
+        queue.move(66, 1, 5);
+        queue.clear(2, true);
+        polled.clear();
+        assertTrue(queue.poll((pos, value) -> polled.add(pos + ":" + value)));
+        assertEquals(Arrays.asList("1:null"), polled);
+        assertEquals(LEVELS, queue.getFirstLevel());
+        assertFalse(queue.poll((pos, value) -> polled.add(pos + ":" + value)));
+    }
+
+    @Test
+    public void testMatchesReference() {
+        Random random = new Random(42);
+        PositionBucketQueue<Integer> queue = new PositionBucketQueue<>(LEVELS);
+        ReferenceQueue reference = new ReferenceQueue();
+        int nextValue = 0;
+        for (int i = 0; i < 200000; i++) {
+            long pos = random.nextInt(40);
+            int level = random.nextInt(LEVELS);
+            int operation = random.nextInt(10);
+            if (operation < 4) {
+                Integer value = random.nextInt(4) == 0 ? null : nextValue++;
+                queue.add(pos, level, value);
+                reference.add(pos, level, value);
+            } else if (operation < 6) {
+                // moves mostly between nearby levels, like ticket level changes
+                int from = random.nextBoolean() ? level : Math.max(0, level - random.nextInt(3));
+                queue.move(from, pos, level);
+                reference.move(from, pos, level);
+            } else if (operation < 7) {
+                boolean all = random.nextBoolean();
+                queue.clear(pos, all);
+                reference.clear(pos, all);
+            } else {
+                List<Object> polled = new ArrayList<>();
+                boolean result = queue.poll((p, value) -> {
+                    polled.add(p);
+                    polled.add(value);
+                });
+                assertEquals(reference.poll(), result ? polled : null);
+            }
+            assertEquals(reference.getFirstLevel(), queue.getFirstLevel());
+        }
+    }
+
+    /**
+     * The map of lists per level the cube task queue used before.
+     */
+    private static class ReferenceQueue {
+        private final List<Map<Long, List<Integer>>> levels = new ArrayList<>();
+
+        ReferenceQueue() {
+            for (int i = 0; i < LEVELS; i++) {
+                this.levels.add(new LinkedHashMap<>());
+            }
+        }
+
+        void add(long pos, int level, Integer value) {
+            this.levels.get(level).computeIfAbsent(pos, p -> new ArrayList<>()).add(value);
+        }
+
+        void move(int from, long pos, int to) {
+            List<Integer> values = this.levels.get(from).remove(pos);
+            if (values != null && !values.isEmpty()) {
+                this.levels.get(to).computeIfAbsent(pos, p -> new ArrayList<>()).addAll(values);
+            }
+        }
+
+        void clear(long pos, boolean all) {
+            for (Map<Long, List<Integer>> level : this.levels) {
+                List<Integer> values = level.get(pos);
+                if (values != null) {
+                    if (all) {
+                        values.clear();
+                    } else {
+                        values.removeIf(Objects::isNull);
+                    }
+                    if (values.isEmpty()) {
+                        level.remove(pos);
+                    }
+                }
+            }
+        }
+
+        int getFirstLevel() {
+            int level = 0;
+            while (level < LEVELS && this.levels.get(level).isEmpty()) {
+                level++;
+            }
+            return level;
+        }
+
+        List<Object> poll() {
+            int level = getFirstLevel();
+            if (level >= LEVELS) {
+                return null;
+            }
+            Iterator<Map.Entry<Long, List<Integer>>> iterator = this.levels.get(level).entrySet().iterator();
+            Map.Entry<Long, List<Integer>> first = iterator.next();
+            iterator.remove();
+            List<Object> polled = new ArrayList<>();
+            for (Integer value : first.getValue()) {
+                polled.add(first.getKey());
+                polled.add(value);
+            }
+            return polled;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.github.opencubicchunks.cubicchunks.chunk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CubeLoadShapeTest {
+
+    @Test
+    public void testBox() {
+        CubeLoadShape shape = CubeLoadShape.create(CubeLoadShape.Type.BOX, 3, 1);
+        assertEquals(7 * 3 * 7, count(shape));
+        assertTrue(shape.contains(3, -1, -3));
+        assertFalse(shape.contains(3, 2, 0));
+        assertFalse(shape.contains(4, 0, 0));
+        assertTrue(shape.isOnBoundary(3, 0, 0));
+        assertFalse(shape.isOnBoundary(2, 0, 2));
+    }
+
+    @Test
+    public void testSphere() {
+        CubeLoadShape shape = CubeLoadShape.create(CubeLoadShape.Type.SPHERE, 12, 3);
+        assertEquals(12, shape.getVerticalRadius());
+        for (int i = -12; i <= 12; i++) {
+            assertTrue(shape.contains(i, 0, 0));
+            assertTrue(shape.contains(0, i, 0));
+            assertTrue(shape.contains(0, 0, i));
+        }
+        assertFalse(shape.contains(12, 12, 12));
+        assertFalse(shape.contains(9, 0, 9));
+        assertTrue(shape.contains(8, 0, 8));
+        // about pi / 6 of the box
+        double ratio = count(shape) / (25.0 * 25 * 25);
+        assertTrue(ratio > 0.5 && ratio < 0.56);
+    }
+
+    @Test
+    public void testEllipsoid() {
+        CubeLoadShape shape = CubeLoadShape.create(CubeLoadShape.Type.ELLIPSOID, 8, 2);
+        assertEquals(2, shape.getHalfHeight(0, 0));
+        assertEquals(0, shape.getHalfHeight(8, 0));
+        assertEquals(-1, shape.getHalfHeight(8, 8));
+        assertTrue(shape.contains(0, -2, 0));
+        assertFalse(shape.contains(0, 3, 0));
+        assertTrue(shape.isOnBoundary(0, 2, 0));
+        assertFalse(shape.isOnBoundary(0, 1, 0));
+    }
+
+    private static int count(CubeLoadShape shape) {
+        int[] count = new int[1];
+        CubeViewDelta.forEachInView(0, 0, 0, shape, pos -> count[0]++);
+        return count[0];
+    }
+}
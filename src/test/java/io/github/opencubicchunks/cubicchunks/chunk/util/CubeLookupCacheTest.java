@@ -0,0 +1,76 @@
+package io.github.opencubicchunks.cubicchunks.chunk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CubeLookupCacheTest {
+
+    @Test
+    public void testCachesNeighbours() {
+        AtomicInteger loads = new AtomicInteger();
+        CubeLookupCache<String> cache = new CubeLookupCache<>((x, y, z) -> {
+            loads.incrementAndGet();
+            return x + "," + y + "," + z;
+        });
+        for (int i = 0; i < 3; i++) {
+            for (int x = -2; x < 2; x++) {
+                for (int y = 10; y < 14; y++) {
+                    for (int z = 5; z < 9; z++) {
+                        assertEquals(x + "," + y + "," + z, cache.get(x, y, z));
+                    }
+                }
+            }
+        }
+        assertEquals(64, loads.get());
+
+        // same slot, different cube
+        assertEquals("2,10,5", cache.get(2, 10, 5));
+        assertEquals("-2,10,5", cache.get(-2, 10, 5));
+        assertEquals(66, loads.get());
+    }
+
+    @Test
+    public void testInvalidate() {
+        AtomicInteger loads = new AtomicInteger();
+        CubeLookupCache<Integer> cache = new CubeLookupCache<>((x, y, z) -> loads.incrementAndGet());
+        assertEquals(1, (int) cache.get(0, 0, 0));
+        assertEquals(1, (int) cache.get(0, 0, 0));
+        cache.invalidate();
+        assertEquals(2, (int) cache.get(0, 0, 0));
+        CubeLookupCache.invalidateAll();
+        assertEquals(3, (int) cache.get(0, 0, 0));
+        assertEquals(3, (int) cache.get(0, 0, 0));
+    }
+
+    @Test
+    public void testNullCached() {
+        AtomicInteger loads = new AtomicInteger();
+        CubeLookupCache<String> cache = new CubeLookupCache<>((x, y, z) -> {
+            loads.incrementAndGet();
+            return null;
+        });
+        assertNull(cache.get(1, 2, 3));
+        assertNull(cache.get(1, 2, 3));
+        assertEquals(1, loads.get());
+        // a cube loaded meanwhile is found after the next invalidation
+        cache.invalidate();
+        assertNull(cache.get(1, 2, 3));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testSeparateThreads() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger();
+        CubeLookupCache<Integer> cache = new CubeLookupCache<>((x, y, z) -> loads.incrementAndGet());
+        assertEquals(1, (int) cache.get(0, 0, 0));
+        Thread thread = new Thread(() -> cache.get(0, 0, 0));
+        thread.start();
+        thread.join();
+        assertEquals(2, loads.get());
+        assertEquals(1, (int) cache.get(0, 0, 0));
+    }
+}
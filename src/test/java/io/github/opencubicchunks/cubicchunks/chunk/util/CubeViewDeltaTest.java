@@ -0,0 +1,84 @@
+package io.github.opencubicchunks.cubicchunks.chunk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class CubeViewDeltaTest {
+
+    @Test
+    public void testMatchesFullScan() {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            CubeLoadShape shape = CubeLoadShape.create(CubeLoadShape.Type.values()[random.nextInt(3)], random.nextInt(5), random.nextInt(5));
+            int radius = shape.getRadius();
+            int verticalRadius = shape.getVerticalRadius();
+            int oldX = random.nextInt(20) - 10;
+            int oldY = random.nextInt(20) - 10;
+            int oldZ = random.nextInt(20) - 10;
+            int newX = oldX + random.nextInt(radius * 4 + 3) - radius * 2 - 1;
+            int newY = oldY + random.nextInt(verticalRadius * 4 + 3) - verticalRadius * 2 - 1;
+            int newZ = oldZ + random.nextInt(radius * 4 + 3) - radius * 2 - 1;
+
+            Set<Long> expectedLeaving = new HashSet<>();
+            Set<Long> expectedEntering = new HashSet<>();
+            for (int x = Math.min(oldX, newX) - radius; x <= Math.max(oldX, newX) + radius; x++) {
+                for (int y = Math.min(oldY, newY) - verticalRadius; y <= Math.max(oldY, newY) + verticalRadius; y++) {
+                    for (int z = Math.min(oldZ, newZ) - radius; z <= Math.max(oldZ, newZ) + radius; z++) {
+                        boolean before = shape.contains(x - oldX, y - oldY, z - oldZ);
+                        boolean now = shape.contains(x - newX, y - newY, z - newZ);
+                        if (before && !now) {
+                            expectedLeaving.add(CubePos.asLong(x, y, z));
+                        } else if (now && !before) {
+                            expectedEntering.add(CubePos.asLong(x, y, z));
+                        }
+                    }
+                }
+            }
+
+            Set<Long> leaving = new HashSet<>();
+            Set<Long> entering = new HashSet<>();
+            CubeViewDelta.forEachChanged(oldX, oldY, oldZ, newX, newY, newZ, shape,
+                    pos -> assertTrue("visited twice", leaving.add(pos)),
+                    pos -> assertTrue("visited twice", entering.add(pos)));
+            assertEquals(expectedLeaving, leaving);
+            assertEquals(expectedEntering, entering);
+        }
+    }
+
+    @Test
+    public void testOneCubeMoveVisitsOneSlab() {
+        int[] count = new int[2];
+        CubeViewDelta.forEachChanged(0, 0, 0, 1, 0, 0, CubeLoadShape.create(CubeLoadShape.Type.BOX, 12, 12), pos -> count[0]++, pos -> count[1]++);
+        assertEquals(25 * 25, count[0]);
+        assertEquals(25 * 25, count[1]);
+
+        count[0] = 0;
+        count[1] = 0;
+        CubeViewDelta.forEachChanged(0, 0, 0, 0, 1, 0, CubeLoadShape.create(CubeLoadShape.Type.BOX, 12, 4), pos -> count[0]++, pos -> count[1]++);
+        assertEquals(25 * 25, count[0]);
+        assertEquals(25 * 25, count[1]);
+
+        count[0] = 0;
+        count[1] = 0;
+        CubeViewDelta.forEachChanged(0, 0, 0, 0, 0, 0, CubeLoadShape.create(CubeLoadShape.Type.SPHERE, 12, 12), pos -> count[0]++, pos -> count[1]++);
+        assertEquals(0, count[0]);
+        assertEquals(0, count[1]);
+    }
+
+    @Test
+    public void testInView() {
+        Set<Long> cubes = new HashSet<>();
+        CubeViewDelta.forEachInView(3, -4, 5, CubeLoadShape.create(CubeLoadShape.Type.BOX, 2, 1), pos -> assertTrue(cubes.add(pos)));
+        assertEquals(75, cubes.size());
+        assertTrue(cubes.contains(CubePos.asLong(1, -5, 7)));
+        assertTrue(cubes.contains(CubePos.asLong(5, -3, 3)));
+        assertFalse(cubes.contains(CubePos.asLong(3, -6, 5)));
+    }
+}
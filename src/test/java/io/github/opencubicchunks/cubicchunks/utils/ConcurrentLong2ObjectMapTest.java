@@ -0,0 +1,99 @@
+package io.github.opencubicchunks.cubicchunks.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentLong2ObjectMapTest {
+
+    @Test
+    public void testMatchesHashMap() {
+        Random random = new Random(42);
+        ConcurrentLong2ObjectMap<String> map = new ConcurrentLong2ObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // a small key range, so keys get removed and added back often
+            long key = random.nextInt(3000) - 1500L;
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    String value = "v" + i;
+                    assertEquals(expected.put(key, value), map.put(key, value));
+                    break;
+                case 2:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    String current = expected.get(key);
+                    boolean removed = current != null && random.nextBoolean();
+                    assertEquals(removed, map.remove(key, removed ? current : "other"));
+                    if (removed) {
+                        expected.remove(key);
+                    }
+            }
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.size(), map.size());
+        }
+        List<String> values = new ArrayList<>(map.values());
+        List<String> expectedValues = new ArrayList<>(expected.values());
+        Collections.sort(values);
+        Collections.sort(expectedValues);
+        assertEquals(expectedValues, values);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.values().iterator().hasNext());
+    }
+
+    @Test
+    public void testReadsWhileWriting() throws InterruptedException {
+        ConcurrentLong2ObjectMap<Long> map = new ConcurrentLong2ObjectMap<>();
+        // stable keys are never removed, the writer keeps adding and removing others around them, which rebuilds the table
+        for (long key = 0; key < 1000; key++) {
+            map.put(key * 2, key * 2);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            Random random = new Random(1);
+            while (!done.get()) {
+                long key = random.nextInt(1000) * 2L;
+                Long value = map.get(key);
+                if (value == null || value != key) {
+                    failure.set("Wrong value " + value + " for " + key);
+                    return;
+                }
+                Long other = map.get(key + 1);
+                if (other != null && other != key + 1) {
+                    failure.set("Wrong value " + other + " for " + (key + 1));
+                    return;
+                }
+            }
+        });
+        reader.start();
+        Random random = new Random(2);
+        for (int i = 0; i < 500000; i++) {
+            long key = random.nextInt(20000) * 2L + 1;
+            if (random.nextBoolean()) {
+                map.put(key, key);
+            } else {
+                map.remove(key);
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class CubeCompressionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCodecs() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        byte[] data = sample(new Random(1));
+        for (String codec : new String[] { "none", "deflate" }) {
+            try (OutputStream out = Files.newOutputStream(dir.resolve("compression.properties"))) {
+                out.write(("codec=" + codec + "\nlevel=9\n").getBytes("UTF-8"));
+            }
+            CubeCompression compression = CubeCompression.load(dir);
+            CubeRegionFile.Entry entry = compression.compress(data);
+            assertEquals(codec.equals("none") ? CubeCompression.CODEC_NONE : CubeCompression.CODEC_DEFLATE, entry.getCompression());
+            assertArrayEquals(data, compression.decompress(entry));
+        }
+    }
+
+    @Test
+    public void testDictionary() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Random random = new Random(2);
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            samples.add(sample(random));
+        }
+        byte[] data = sample(random);
+
+        CubeCompression compression = CubeCompression.load(dir);
+        CubeRegionFile.Entry plain = compression.compress(data);
+        byte[] dictionary = CubeCompression.trainDictionary(samples, CubeCompression.MAX_DICTIONARY_SIZE);
+        compression.useDictionary(dictionary);
+        CubeRegionFile.Entry withDictionary = compression.compress(data);
+        assertEquals(CubeCompression.CODEC_DEFLATE_DICTIONARY, withDictionary.getCompression());
+        assertTrue(withDictionary.getData().length < plain.getData().length);
+
+        // a new instance finds the dictionary again, and still reads data written without it
+        CubeCompression reloaded = CubeCompression.load(dir);
+        assertArrayEquals(data, reloaded.decompress(withDictionary));
+        assertArrayEquals(data, reloaded.decompress(plain));
+        assertEquals(CubeCompression.CODEC_DEFLATE_DICTIONARY, reloaded.compress(data).getCompression());
+    }
+
+    // a shared block of content plus a little random data, like cubes of similar terrain
+    private static byte[] sample(Random random) {
+        byte[] data = new byte[4096];
+        for (int i = 0; i < 3072; i++) {
+            data[i] = (byte) (i * 31 ^ i >> 3);
+        }
+        for (int i = 3072; i < data.length; i++) {
+            data[i] = (byte) random.nextInt(4);
+        }
+        return data;
+    }
+}
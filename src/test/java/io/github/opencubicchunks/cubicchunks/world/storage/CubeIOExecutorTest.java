@@ -0,0 +1,40 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+public class CubeIOExecutorTest {
+
+    @Test
+    public void testSharedPool() throws InterruptedException, ExecutionException {
+        CubeIOExecutor first = CubeIOExecutor.createShared("Test IO Worker", 1);
+        CubeIOExecutor second = CubeIOExecutor.createShared("Test IO Worker", 1);
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        CompletableFuture<String> blocking = first.submit(0, () -> {
+            release.get();
+            return Thread.currentThread().getName();
+        });
+        CompletableFuture<String> queued = second.submit(0, () -> Thread.currentThread().getName());
+        // the only thread of the pool is taken by the first executor
+        assertFalse(queued.isDone());
+        release.complete(null);
+        assertEquals(blocking.get(), queued.get());
+
+        first.close();
+        try {
+            first.execute(() -> { });
+            fail("Closed executor accepted a task");
+        } catch (RejectedExecutionException expected) {
+        }
+        // the pool keeps running for the other executor
+        assertEquals("done", second.submit(1, () -> "done").get());
+        second.close();
+    }
+}
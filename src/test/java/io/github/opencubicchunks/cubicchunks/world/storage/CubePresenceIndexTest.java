@@ -0,0 +1,55 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CubePresenceIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRebuild() throws IOException {
+        Path regionDir = folder.newFolder("region3d").toPath();
+        Path legacyDir = folder.newFolder("cubes32").toPath();
+        try (CubeRegionFile file = new CubeRegionFile(regionDir.resolve("-1.0.2.3dr"))) {
+            byte[] data = new byte[10];
+            file.write(CubeRegionFile.index(15, 3, 0), (byte) 2, data, data.length);
+        }
+        Files.write(legacyDir.resolve("5_-6_7.bin"), new byte[1]);
+
+        CubePresenceIndex index = CubePresenceIndex.loadOrRebuild(regionDir.resolve("cubes.idx"), regionDir, legacyDir);
+        assertTrue(index.contains(CubePos.of(-1, 3, 32)));
+        assertTrue(index.contains(CubePos.of(5, -6, 7)));
+        assertFalse(index.contains(CubePos.of(-1, 3, 33)));
+        assertFalse(index.contains(CubePos.of(0, 0, 0)));
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        Path regionDir = folder.newFolder("region3d").toPath();
+        Path legacyDir = regionDir.resolveSibling("cubes32");
+        Path indexFile = regionDir.resolve("cubes.idx");
+
+        CubePresenceIndex index = CubePresenceIndex.loadOrRebuild(indexFile, regionDir, legacyDir);
+        index.add(CubePos.of(100, -200, 300));
+        index.add(CubePos.of(101, -200, 300));
+        index.remove(CubePos.of(101, -200, 300));
+        index.save();
+
+        CubePresenceIndex loaded = CubePresenceIndex.loadOrRebuild(indexFile, regionDir, legacyDir);
+        assertTrue(loaded.contains(CubePos.of(100, -200, 300)));
+        assertFalse(loaded.contains(CubePos.of(101, -200, 300)));
+        // kept after loading, the journal replay adds cubes saved after it
+        assertTrue(Files.exists(indexFile));
+    }
+}
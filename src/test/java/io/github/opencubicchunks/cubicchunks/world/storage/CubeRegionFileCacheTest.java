@@ -0,0 +1,43 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class CubeRegionFileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFilesInUseStayOpen() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        byte[] data = { 1, 2, 3 };
+        try (CubeRegionFileCache cache = new CubeRegionFileCache(dir, 1)) {
+            assertNull(cache.acquire(0, 0, 0, false));
+            CubeRegionFile first = cache.acquire(0, 0, 0, true);
+            CubeRegionFile second = cache.acquire(1, 0, 0, true);
+            // over the limit, but the first file is still in use
+            first.write(0, (byte) 2, data, data.length);
+            second.write(0, (byte) 2, data, data.length);
+            cache.release(second);
+            assertSame(first, cache.acquire(0, 0, 0, false));
+            cache.release(first);
+            cache.release(first);
+
+            // the second file was closed when it was released over the limit
+            CubeRegionFile reopened = cache.acquire(1, 0, 0, false);
+            assertNotSame(second, reopened);
+            assertArrayEquals(data, reopened.read(0).getData());
+            cache.release(reopened);
+        }
+    }
+}
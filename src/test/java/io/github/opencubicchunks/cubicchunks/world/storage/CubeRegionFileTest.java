@@ -0,0 +1,212 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class CubeRegionFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteRead() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        byte[] small = randomBytes(100, 1);
+        byte[] large = randomBytes(CubeRegionFile.SECTOR_SIZE * 7 + 3, 2);
+        int idx1 = CubeRegionFile.index(1, 2, 3);
+        int idx2 = CubeRegionFile.index(15, 15, 15);
+
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            assertNull(file.read(idx1));
+            file.write(idx1, (byte) 2, small, small.length);
+            file.write(idx2, (byte) 1, large, large.length);
+            assertEntry(file.read(idx1), (byte) 2, small);
+            assertEntry(file.read(idx2), (byte) 1, large);
+        }
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            assertEntry(file.read(idx1), (byte) 2, small);
+            assertEntry(file.read(idx2), (byte) 1, large);
+            assertFalse(file.hasEntry(CubeRegionFile.index(0, 0, 0)));
+        }
+    }
+
+    @Test
+    public void testReadAfterFileGrows() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            // the file stays smaller than a mapped chunk, so every read goes past the mapped part
+            for (int i = 0; i < 32; i++) {
+                byte[] data = randomBytes(CubeRegionFile.SECTOR_SIZE * 2 + i, i);
+                file.write(i, (byte) 2, data, data.length);
+                assertEntry(file.read(i), (byte) 2, data);
+            }
+            for (int i = 0; i < 32; i++) {
+                assertEntry(file.read(i), (byte) 2, randomBytes(CubeRegionFile.SECTOR_SIZE * 2 + i, i));
+            }
+        }
+    }
+
+    @Test
+    public void testReadMappedChunksAfterTruncate() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        int entries = 40;
+        int length = CubeRegionFile.SECTOR_SIZE * 200;
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            // a few megabytes, some entries cross the end of a mapped chunk
+            for (int i = 0; i < entries; i++) {
+                byte[] data = randomBytes(length, i);
+                file.write(i, (byte) 2, data, data.length);
+                assertEntry(file.read(i), (byte) 2, data);
+            }
+            for (int i = 0; i < entries; i += 2) {
+                file.delete(i);
+            }
+            while (file.compactStep()) {
+                for (int i = 1; i < entries; i += 2) {
+                    assertEntry(file.read(i), (byte) 2, randomBytes(length, i));
+                }
+            }
+            assertTrue(file.truncate() > 0);
+            for (int i = 1; i < entries; i += 2) {
+                assertEntry(file.read(i), (byte) 2, randomBytes(length, i));
+            }
+        }
+    }
+
+    @Test
+    public void testOverwriteReusesFreedSectors() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        int idx = CubeRegionFile.index(4, 5, 6);
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            for (int i = 0; i < 20; i++) {
+                byte[] data = randomBytes(CubeRegionFile.SECTOR_SIZE * 3, i);
+                file.write(idx, (byte) 2, data, data.length);
+                assertEntry(file.read(idx), (byte) 2, data);
+            }
+        }
+        // with copy-on-write, at most two allocations of the entry are ever needed
+        long headerSize = CubeRegionFile.ENTRY_COUNT * Integer.BYTES * 2;
+        assertTrue(Files.size(path) <= headerSize + CubeRegionFile.SECTOR_SIZE * 8);
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        int idx = CubeRegionFile.index(0, 0, 1);
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            byte[] data = randomBytes(10, 0);
+            file.write(idx, (byte) 2, data, data.length);
+            file.delete(idx);
+            assertNull(file.read(idx));
+        }
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            assertNull(file.read(idx));
+        }
+    }
+
+    @Test
+    public void testInlineEntry() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        int idx = CubeRegionFile.index(7, 0, 7);
+        long headerSize = CubeRegionFile.ENTRY_COUNT * Integer.BYTES * 2;
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            byte[] data = randomBytes(CubeRegionFile.SECTOR_SIZE, 0);
+            file.write(idx, (byte) 2, data, data.length);
+            file.writeInline(idx, 0x12345678);
+            assertTrue(file.isInline(idx));
+            assertNull(file.read(idx));
+            // the sectors of the replaced entry are free again
+            file.write(CubeRegionFile.index(0, 0, 0), (byte) 2, data, data.length);
+        }
+        assertTrue(Files.size(path) <= headerSize + CubeRegionFile.SECTOR_SIZE * 2);
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            assertTrue(file.hasEntry(idx));
+            assertEquals(0x12345678, file.readInline(idx));
+        }
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        byte[] first = randomBytes(CubeRegionFile.SECTOR_SIZE * 4, 1);
+        byte[] last = randomBytes(100, 2);
+        int idx1 = CubeRegionFile.index(0, 0, 1);
+        int idx2 = CubeRegionFile.index(0, 0, 2);
+
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            file.write(idx1, (byte) 2, first, first.length);
+            file.write(idx2, (byte) 2, last, last.length, 1234);
+            long sizeBefore = Files.size(path);
+            file.delete(idx1);
+            assertTrue(file.getFreeSectorRatio() > 0.5);
+
+            assertTrue(file.compactStep());
+            assertFalse(file.compactStep());
+            assertTrue(file.truncate() > 0);
+            assertTrue(Files.size(path) < sizeBefore);
+            assertEquals(0, file.getFreeSectorRatio(), 0);
+            assertEquals(1234, file.getTimestamp(idx2));
+            assertEntry(file.read(idx2), (byte) 2, last);
+        }
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            assertEntry(file.read(idx2), (byte) 2, last);
+        }
+    }
+
+    @Test
+    public void testMovedSectorsReservedUntilSync() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        long headerSize = CubeRegionFile.ENTRY_COUNT * Integer.BYTES * 2;
+        byte[] data = randomBytes(100, 1);
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            file.write(0, (byte) 2, data, data.length);
+            file.write(1, (byte) 2, data, data.length);
+            file.delete(0);
+            assertTrue(file.compactStep());
+            // the header may still point at the old sectors after a crash, so they aren't reused yet
+            file.write(2, (byte) 2, data, data.length);
+            assertEquals(headerSize + CubeRegionFile.SECTOR_SIZE * 3, Files.size(path));
+            file.sync();
+            file.write(3, (byte) 2, data, data.length);
+            assertEquals(headerSize + CubeRegionFile.SECTOR_SIZE * 3, Files.size(path));
+            assertEntry(file.read(1), (byte) 2, data);
+        }
+    }
+
+    @Test
+    public void testRewriteSkipsChangedEntry() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("0.0.0.3dr");
+        byte[] data = randomBytes(100, 1);
+        byte[] rewritten = randomBytes(50, 2);
+        try (CubeRegionFile file = new CubeRegionFile(path)) {
+            file.write(0, (byte) 2, data, data.length, 1000);
+            assertFalse(file.rewrite(0, 999, (byte) 3, rewritten, rewritten.length));
+            assertTrue(file.rewrite(0, 1000, (byte) 3, rewritten, rewritten.length));
+            assertEquals(1000, file.getTimestamp(0));
+            assertEntry(file.read(0), (byte) 3, rewritten);
+        }
+    }
+
+    private static void assertEntry(CubeRegionFile.Entry entry, byte compression, byte[] data) {
+        assertEquals(compression, entry.getCompression());
+        assertArrayEquals(data, entry.getData());
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,243 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.github.opencubicchunks.cubicchunks.chunk.util.CubePos;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+public class RegionCubeIOTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        CubePos pos = CubePos.of(-3, 17, 40);
+        byte[] data = { 1, 2, 3, 4, 5 };
+        try (RegionCubeIO io = new RegionCubeIO(dir, 2)) {
+            assertNull(io.loadCubeData(pos));
+            save(io, pos, data);
+            assertArrayEquals(data, readAll(io.loadCubeData(pos)));
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 2)) {
+            assertArrayEquals(data, readAll(io.loadCubeData(pos)));
+        }
+    }
+
+    @Test
+    public void testUpdatesApplyInOrder() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        CubePos pos = CubePos.of(0, 0, 0);
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            save(io, pos, new byte[] { 1 });
+            io.flush();
+            for (int i = 2; i <= 5; i++) {
+                byte value = (byte) i;
+                io.updateCubeDataAsync(pos, stored -> append(stored, value));
+            }
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, readAll(io.loadCubeData(pos)));
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, readAll(io.loadCubeData(pos)));
+        }
+    }
+
+    @Test
+    public void testUpdateQueuedWhileApplying() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        CubePos pos = CubePos.of(0, 2, 0);
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            save(io, pos, new byte[] { 1 });
+            io.flush();
+            // updates are applied outside the monitor of the pending saves, so they can queue more
+            io.updateCubeDataAsync(pos, stored -> {
+                io.updateCubeDataAsync(pos, queued -> append(queued, (byte) 3));
+                return append(stored, (byte) 2);
+            });
+            assertArrayEquals(new byte[] { 1, 2, 3 }, readAll(io.loadCubeData(pos)));
+            io.flush();
+            assertArrayEquals(new byte[] { 1, 2, 3 }, readAll(io.loadCubeData(pos)));
+        }
+    }
+
+    @Test
+    public void testBatchedSaves() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (RegionCubeIO io = new RegionCubeIO(dir, 2)) {
+            for (int i = 0; i < 1000; i++) {
+                save(io, CubePos.of(i, -i, i % 7), new byte[] { (byte) i, (byte) (i >> 8) });
+            }
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 2)) {
+            for (int i = 0; i < 1000; i++) {
+                assertArrayEquals(new byte[] { (byte) i, (byte) (i >> 8) }, readAll(io.loadCubeData(CubePos.of(i, -i, i % 7))));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedSaveIsKept() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        CubePos pos = CubePos.of(3, 0, 0);
+        // doesn't compress, so it's too large for a region file entry
+        byte[] tooLarge = new byte[1 << 18];
+        new Random(1).nextBytes(tooLarge);
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            save(io, pos, tooLarge);
+            try {
+                io.flush();
+                fail("Saving " + tooLarge.length + " bytes didn't fail");
+            } catch (IOException expected) {
+            }
+            assertEquals(1, io.getPendingSaveCount());
+            assertArrayEquals(tooLarge, readAll(io.loadCubeData(pos)));
+
+            io.updateCubeDataAsync(pos, stored -> new byte[] { stored[0], 5 });
+            io.flush();
+            assertEquals(0, io.getPendingSaveCount());
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertArrayEquals(new byte[] { tooLarge[0], 5 }, readAll(io.loadCubeData(pos)));
+        }
+    }
+
+    @Test
+    public void testLegacyFileKeptUntilSynced() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path legacyFile = dir.resolve("cubes32").resolve("1_-2_3.bin");
+        Files.createDirectories(legacyFile.getParent());
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(legacyFile))) {
+            out.write(new byte[] { 4, 5, 6 });
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertArrayEquals(new byte[] { 4, 5, 6 }, readAll(io.loadCubeData(CubePos.of(1, -2, 3))));
+            assertTrue(Files.exists(legacyFile));
+            io.flush();
+            assertFalse(Files.exists(legacyFile));
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertArrayEquals(new byte[] { 4, 5, 6 }, readAll(io.loadCubeData(CubePos.of(1, -2, 3))));
+        }
+    }
+
+    @Test
+    public void testInlineData() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        CubePos pos = CubePos.of(1, -1, 1);
+        byte[] data = { (byte) 0xFF, 0, 1, 2 };
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            save(io, pos, data);
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertArrayEquals(data, readAll(io.loadCubeData(pos)));
+        }
+    }
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path regionDir = dir.resolve("region3d");
+        Files.createDirectories(regionDir);
+        CubePos pos = CubePos.of(5, -6, 7);
+        CubePos cutOff = CubePos.of(5, -6, 8);
+        byte[] data = { (byte) 0xFF, 1, 2, 3 };
+        Path journalFile = regionDir.resolve(RegionCubeIO.JOURNAL_FILE);
+        try (SectionBlobStore blobStore = new SectionBlobStore(regionDir.resolve(RegionCubeIO.SECTION_BLOB_FILE));
+             CubeSaveJournal journal = new CubeSaveJournal(journalFile, blobStore)) {
+            journal.commit(journal.append(pos, CubeSaveJournal.INLINE, data, data.length));
+            journal.commit(journal.append(cutOff, CubeSaveJournal.INLINE, data, data.length));
+        }
+        // a record the crash interrupted
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertArrayEquals(data, readAll(io.loadCubeData(pos)));
+            assertNull(io.loadCubeData(cutOff));
+        }
+    }
+
+    @Test
+    public void testJournalReplayWithoutOpening() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path regionDir = dir.resolve("region3d");
+        CubePos pos = CubePos.of(-9, 0, 3);
+        byte[] data = { 1, 2, 3, 4 };
+        // an index saved before the crash, which doesn't know the cube yet
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertNull(io.loadCubeData(pos));
+        }
+        Path journalFile = regionDir.resolve(RegionCubeIO.JOURNAL_FILE);
+        try (SectionBlobStore blobStore = new SectionBlobStore(regionDir.resolve(RegionCubeIO.SECTION_BLOB_FILE));
+             CubeSaveJournal journal = new CubeSaveJournal(journalFile, blobStore)) {
+            journal.commit(journal.append(pos, CubeSaveJournal.INLINE, data, data.length));
+        }
+        RegionCubeIO.replayJournal(dir);
+        assertEquals(0, Files.size(journalFile));
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            assertArrayEquals(data, readAll(io.loadCubeData(pos)));
+        }
+    }
+
+    @Test
+    public void testIncrementalBackup() throws IOException {
+        Path dir = folder.getRoot().toPath().resolve("world");
+        Path restoreDir = folder.getRoot().toPath().resolve("restored");
+        CubePos unchanged = CubePos.of(0, 0, 0);
+        CubePos changed = CubePos.of(20, -5, 3);
+        Path full = dir.resolve("full" + CubeBackup.EXTENSION);
+        Path incremental = dir.resolve("incremental" + CubeBackup.EXTENSION);
+        try (RegionCubeIO io = new RegionCubeIO(dir, 1)) {
+            save(io, unchanged, new byte[] { 1, 2, 3, 4, 5 });
+            save(io, changed, new byte[] { 6 });
+            io.flush();
+            assertEquals(2, io.exportBackup(full, null, "full"));
+            save(io, changed, new byte[] { 7, 8 });
+            io.flush();
+            assertEquals(1, io.exportBackup(incremental, "full", "incremental"));
+        }
+        try (RegionCubeIO io = new RegionCubeIO(restoreDir, 1)) {
+            io.restoreBackup(full);
+            io.restoreBackup(incremental);
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, readAll(io.loadCubeData(unchanged)));
+            assertArrayEquals(new byte[] { 7, 8 }, readAll(io.loadCubeData(changed)));
+        }
+    }
+
+    private static byte[] append(byte[] data, byte value) {
+        byte[] result = new byte[data.length + 1];
+        System.arraycopy(data, 0, result, 0, data.length);
+        result[data.length] = value;
+        return result;
+    }
+
+
+    private static void save(RegionCubeIO io, CubePos pos, byte[] data) {
+        io.updateCubeDataAsync(pos, stored -> data);
+    }
+    private static byte[] readAll(DataInputStream in) throws IOException {
+        try (DataInputStream stream = in) {
+            byte[] data = new byte[stream.available()];
+            stream.readFully(data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.opencubicchunks.cubicchunks.world.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class SectionBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStoredOnSecondUse() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("sections.blobs");
+        byte[] payload = randomPayload(1);
+        byte[] hash = SectionBlobStore.hash(payload);
+        try (SectionBlobStore store = new SectionBlobStore(file)) {
+            assertFalse(store.acquire(hash, payload));
+            assertTrue(store.acquire(hash, payload));
+            assertTrue(store.acquire(hash, payload));
+            assertEquals(1, store.getBlobCount());
+            assertEquals(2, store.getDeduplicationRatio(), 0);
+            assertArrayEquals(payload, store.read(hash));
+            store.sync();
+        }
+        try (SectionBlobStore store = new SectionBlobStore(file)) {
+            assertEquals(1, store.getBlobCount());
+            assertArrayEquals(payload, store.read(hash));
+        }
+    }
+
+    @Test
+    public void testReleaseFreesBlob() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("sections.blobs");
+        byte[] payload = randomPayload(2);
+        byte[] hash = SectionBlobStore.hash(payload);
+        try (SectionBlobStore store = new SectionBlobStore(file)) {
+            store.acquire(hash, payload);
+            store.acquire(hash, payload);
+            store.acquireExisting(hash);
+            store.release(hash);
+            store.release(hash);
+            // releases only apply once they are committed
+            assertEquals(1, store.getBlobCount());
+            store.commitReleases();
+            assertEquals(0, store.getBlobCount());
+            store.sync();
+        }
+        try (SectionBlobStore store = new SectionBlobStore(file)) {
+            assertEquals(0, store.getBlobCount());
+        }
+    }
+
+    private static byte[] randomPayload(long seed) {
+        byte[] payload = new byte[2048];
+        new Random(seed).nextBytes(payload);
+        return payload;
+    }
+}